@@ -0,0 +1,117 @@
+package btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Word streams shared by the benchmarks. A stream of {@code size} words is
+ * drawn from a vocabulary a quarter that size, either uniformly or with
+ * Zipfian frequencies, the way words occur in text.
+ */
+public class BenchmarkWords {
+    public static final String UNIFORM = "uniform";
+    public static final String ZIPFIAN = "zipfian";
+    // The exponent of the Zipfian distribution; 1 is typical of English
+    public static final double ZIPF_EXPONENT = 1.0;
+
+    /**
+     * @return {@code n} distinct lowercase words of 3 to 12 letters, in no
+     * particular order
+     */
+    public static String[] vocabulary( int n, long seed ) {
+	Random rand = new Random( seed );
+	HashSet<String> seen = new HashSet<String>();
+	String[] words = new String[n];
+	int count = 0;
+	char[] letters = new char[12];
+	while( count < n ) {
+	    int len = 3 + rand.nextInt( 5 ) + rand.nextInt( 6 );
+	    for( int i = 0 ; i < len ; i++ )
+		letters[i] = (char) ( 'a' + rand.nextInt( 26 ) );
+	    String word = new String( letters, 0, len );
+	    if( seen.add( word ) )
+		words[count++] = word;
+	}
+	return words;
+    }
+
+    /**
+     * @return the vocabulary behind a stream of {@code size} words
+     */
+    public static String[] vocabularyFor( int size, long seed ) {
+	return vocabulary( Math.max( 1, size / 4 ), seed );
+    }
+
+    /**
+     * @param distribution {@code UNIFORM} or {@code ZIPFIAN}
+     * @return {@code size} words drawn from {@code vocab}
+     */
+    public static String[] stream( String[] vocab, int size,
+				   String distribution, long seed ) {
+	Random rand = new Random( seed );
+	String[] words = new String[size];
+	if( UNIFORM.equals( distribution ) ) {
+	    for( int i = 0 ; i < size ; i++ )
+		words[i] = vocab[rand.nextInt( vocab.length )];
+	} else if( ZIPFIAN.equals( distribution ) ) {
+	    // The chance of drawing each rank or a lower one
+	    double[] cumulative = new double[vocab.length];
+	    double total = 0;
+	    for( int i = 0 ; i < vocab.length ; i++ ) {
+		total += 1 / Math.pow( i + 1, ZIPF_EXPONENT );
+		cumulative[i] = total;
+	    }
+	    for( int i = 0 ; i < size ; i++ ) {
+		int rank = Arrays.binarySearch( cumulative,
+						rand.nextDouble() * total );
+		if( rank < 0 )
+		    rank = -rank - 1;
+		words[i] = vocab[Math.min( rank, vocab.length - 1 )];
+	    }
+	} else
+	    throw new IllegalArgumentException( "Unknown distribution "
+						+ distribution );
+	return words;
+    }
+
+    /**
+     * @return the node format called {@code layout}: "fixed" for the
+     * default, "offheap" for the default kept in direct memory,
+     * "slotted" for 4KB slotted pages, "linked" for 4KB slotted pages
+     * with every word in a chain of leaves, or "checksummed" for 4KB
+     * slotted pages that are checked as they're read
+     */
+    public static NodeFormat format( String layout ) {
+	if( "fixed".equals( layout ) || "offheap".equals( layout ) )
+	    return NodeFormat.DEFAULT;
+	else if( "slotted".equals( layout ) )
+	    return NodeFormat.slotted( 4096 );
+	else if( "linked".equals( layout ) )
+	    return NodeFormat.slotted( 4096 ).linked();
+	else if( "checksummed".equals( layout ) )
+	    return NodeFormat.slotted( 4096 ).checksummed();
+	throw new IllegalArgumentException( "Unknown layout " + layout );
+    }
+
+    /**
+     * @return a tree with the nodes called {@code layout}, as described at
+     * {@link #format}
+     */
+    public static Tree tree( String path, String layout, long cacheBytes,
+			     boolean lazy ) {
+	return new Tree( path, format( layout ), cacheBytes, lazy,
+			 "offheap".equals( layout ) );
+    }
+
+    /**
+     * @return a file in the temporary directory that's deleted on exit
+     */
+    public static String tempFile( String name ) throws IOException {
+	File f = File.createTempFile( name, ".tree" );
+	f.deleteOnExit();
+	return f.getPath();
+    }
+}
@@ -0,0 +1,95 @@
+// These benchmarks were written against JMH 1.37. Install the tree with
+// "mvn install" in the top directory, build them with "mvn package" in
+// this one, and run them with "java -jar target/benchmarks.jar".
+
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times writing a full leaf with {@link Node#updateOnFile} and reading it
+ * back with {@link Node#readFromFile}, through the operating system's
+ * cache, as well as encoding and decoding it in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeIOBenchmark {
+    @Param({ "fixed", "slotted" })
+    String layout;
+
+    NodeFormat format;
+    Node node;
+    RandomAccessFile file;
+    ByteBuffer buf;
+    ByteBuffer encoded;
+
+    @Setup(Level.Trial)
+    public void makeNode() throws IOException {
+	format = BenchmarkWords.format( layout );
+	node = new Node( 0, format, null );
+	String[] words = BenchmarkWords.vocabulary( format.MAX_KEYS, 1 );
+	Arrays.sort( words );
+	// Only as many words as fit on a slotted page
+	for( int i = 0 ; i < words.length ; i++ ) {
+	    if( ! node.hasRoomFor( words[i] ) )
+		break;
+	    node.set( i, words[i], i + 1 );
+	}
+	file = new RandomAccessFile( BenchmarkWords.tempFile( "node" ), "rw" );
+	node.updateOnFile( 0, file );
+	buf = ByteBuffer.allocate( format.SLOT_SIZE );
+	encoded = ByteBuffer.allocate( format.SLOT_SIZE );
+	node.writeTo( encoded );
+    }
+
+    @TearDown(Level.Trial)
+    public void closeFile() throws IOException {
+	file.close();
+    }
+
+    @Benchmark
+    public Node updateOnFile() throws IOException {
+	node.updateOnFile( 0, file );
+	return node;
+    }
+
+    @Benchmark
+    public Node readFromFile() throws IOException {
+	return Node.readFromFile( 0, file, format );
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo() {
+	buf.clear();
+	node.writeTo( buf );
+	return buf;
+    }
+
+    @Benchmark
+    public Node readFrom() {
+	encoded.rewind();
+	return Node.readFrom( 0, encoded, format, null );
+    }
+}
@@ -0,0 +1,122 @@
+// These benchmarks were written against JMH 1.37. Install the tree with
+// "mvn install" in the top directory, build them with "mvn package" in
+// this one, and run them with "java -jar target/benchmarks.jar".
+
+package btree;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares finding a word's place within a node by binary search
+ * ({@link Node#insertionPoint(String[],String)}) with the linear scans that
+ * {@code Tree} used before: walking the entries that {@code Node.iterator()}
+ * builds, and comparing the words one by one. {@code order} sets how many
+ * words the node holds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeSearchBenchmark {
+    @Param({ "9", "33", "129", "513" })
+    int order;
+
+    String[] words;
+    int[] frequencies;
+    // Half of the queries are words in the node and half fall between them
+    String[] queries;
+    int next;
+
+    @Setup
+    public void setup() {
+	int maxKeys = order - 1;
+	words = new String[maxKeys];
+	frequencies = new int[maxKeys];
+	for( int i = 0 ; i < maxKeys ; i++ ) {
+	    words[i] = String.format( "w%06d", 2 * i );
+	    frequencies[i] = 1;
+	}
+	Random rand = new Random( 1 );
+	queries = new String[1024];
+	for( int i = 0 ; i < queries.length ; i++ )
+	    queries[i] = String.format( "w%06d", rand.nextInt( 2 * maxKeys ) );
+    }
+
+    private String nextQuery() {
+	next = ( next + 1 ) & ( queries.length - 1 );
+	return queries[next];
+    }
+
+    @Benchmark
+    public int binarySearch() {
+	return Node.insertionPoint( words, nextQuery() );
+    }
+
+    @Benchmark
+    public int iteratorScan() {
+	String str = nextQuery();
+	// What Node.iterator() used to build on every call
+	LinkedList<SimpleImmutableEntry<String,Integer>> list
+	    = new LinkedList<SimpleImmutableEntry<String,Integer>>();
+	for( int i = 0 ; i < words.length ; i++ ) {
+	    if( frequencies[i] > 0 )
+		list.add( new SimpleImmutableEntry<String,Integer>(
+				  words[i], frequencies[i] ));
+	    else
+		break;
+	}
+	int n = 0;
+	Iterator<SimpleImmutableEntry<String,Integer>> iter = list.iterator();
+	while( iter.hasNext() ) {
+	    if( str.compareTo( iter.next().getKey() ) > 0 )
+		n++;
+	    else
+		break;
+	}
+	return n;
+    }
+
+    @Benchmark
+    public int linearScan() {
+	String str = nextQuery();
+	int n = 0;
+	while( n < words.length && words[n] != null
+	       && str.compareTo( words[n] ) > 0 )
+	    n++;
+	return n;
+    }
+
+    @Benchmark
+    public boolean containsLinear() {
+	String str = nextQuery();
+	for( int i = 0 ; i < words.length ; i++ )
+	    if( str.equals( words[i] ) )
+		return true;
+	return false;
+    }
+
+    @Benchmark
+    public boolean containsBinary() {
+	String str = nextQuery();
+	int i = Node.insertionPoint( words, str );
+	return i < words.length && str.equals( words[i] );
+    }
+}
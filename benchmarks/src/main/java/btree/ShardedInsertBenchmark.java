@@ -0,0 +1,91 @@
+// These benchmarks were written against JMH 1.37. Install the tree with
+// "mvn install" in the top directory, build them with "mvn package" in
+// this one, and run them with "java -jar target/benchmarks.jar".
+
+package btree;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times adding {@code size} words to a {@link ShardedTree} of {@code shards}
+ * shards from {@code producers} threads at once, until every add is applied
+ * and flushed. Each measurement starts from empty files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShardedInsertBenchmark {
+    @Param({ "1000000" })
+    int size;
+
+    @Param({ BenchmarkWords.UNIFORM, BenchmarkWords.ZIPFIAN })
+    String distribution;
+
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    int shards;
+
+    @Param({ "8" })
+    int producers;
+
+    String[] words;
+    String path;
+    ShardedTree tree;
+
+    @Setup(Level.Trial)
+    public void makeWords() throws Exception {
+	words = BenchmarkWords.stream( BenchmarkWords.vocabularyFor( size, 1 ),
+				       size, distribution, 2 );
+	path = BenchmarkWords.tempFile( "sharded" );
+    }
+
+    @Setup(Level.Iteration)
+    public void openTree() {
+	for( int i = 0 ; i < shards ; i++ )
+	    new File( path + "." + i ).delete();
+	tree = new ShardedTree( path, shards );
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeTree() {
+	tree.close();
+	for( int i = 0 ; i < shards ; i++ )
+	    new File( path + "." + i ).delete();
+    }
+
+    @Benchmark
+    public ShardedTree add() throws InterruptedException {
+	Thread[] threads = new Thread[producers];
+	for( int p = 0 ; p < producers ; p++ ) {
+	    final int first = p;
+	    threads[p] = new Thread() {
+		    public void run() {
+			for( int i = first ; i < words.length ; i += producers )
+			    tree.add( words[i] );
+		    }
+		};
+	    threads[p].start();
+	}
+	for( Thread t : threads )
+	    t.join();
+	tree.flush();
+	return tree;
+    }
+}
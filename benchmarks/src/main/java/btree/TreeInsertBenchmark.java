@@ -0,0 +1,89 @@
+// These benchmarks were written against JMH 1.37. Install the tree with
+// "mvn install" in the top directory, build them with "mvn package" in
+// this one, and run them with "java -jar target/benchmarks.jar". The
+// largest sizes need a few gigabytes of heap (-jvmArgs -Xmx8g).
+
+package btree;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times building a tree of {@code size} words, added one at a time, through
+ * {@code addAll} and through {@code addBatch}, and flushed to file. Each
+ * measurement starts from an empty file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeInsertBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ BenchmarkWords.UNIFORM, BenchmarkWords.ZIPFIAN })
+    String distribution;
+
+    @Param({ "fixed", "slotted", "offheap" })
+    String layout;
+
+    String[] words;
+    String path;
+    Tree tree;
+
+    @Setup(Level.Trial)
+    public void makeWords() throws Exception {
+	words = BenchmarkWords.stream( BenchmarkWords.vocabularyFor( size, 1 ),
+				       size, distribution, 2 );
+	path = BenchmarkWords.tempFile( "insert" );
+    }
+
+    @Setup(Level.Iteration)
+    public void openTree() {
+	new File( path ).delete();
+	tree = BenchmarkWords.tree( path, layout,
+				    PageCache.DEFAULT_CACHE_BYTES, false );
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeTree() {
+	tree.close();
+    }
+
+    @Benchmark
+    public Tree add() {
+	for( int i = 0 ; i < words.length ; i++ )
+	    tree.add( words[i] );
+	tree.flush();
+	return tree;
+    }
+
+    @Benchmark
+    public Tree addAll() {
+	tree.addAll( Arrays.asList( words ) );
+	tree.flush();
+	return tree;
+    }
+
+    @Benchmark
+    public Tree addBatch() {
+	return tree.addBatch( Arrays.asList( words ) );
+    }
+}
@@ -0,0 +1,111 @@
+// These benchmarks were written against JMH 1.37. Install the tree with
+// "mvn install" in the top directory, build them with "mvn package" in
+// this one, and run them with "java -jar target/benchmarks.jar". The
+// largest sizes need a few gigabytes of heap (-jvmArgs -Xmx8g).
+
+package btree;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Times looking up words that are in the tree and words that aren't, and
+ * walking every word with {@code iterator()}. The tree holds the words of a
+ * stream of {@code size} words and is built once for all the measurements.
+ * Lookups are drawn from the same distribution as the stream, so Zipfian
+ * runs mostly look up the same few words.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeLookupBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ BenchmarkWords.UNIFORM, BenchmarkWords.ZIPFIAN })
+    String distribution;
+
+    @Param({ "fixed", "slotted", "offheap", "linked", "checksummed" })
+    String layout;
+
+    Tree tree;
+    String[] hits;
+    String[] misses;
+    int next;
+
+    @Setup(Level.Trial)
+    public void buildTree() throws Exception {
+	String[] vocab = BenchmarkWords.vocabularyFor( size, 1 );
+	String[] words = BenchmarkWords.stream( vocab, size, distribution, 2 );
+	TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+	for( String w : words ) {
+	    Integer count = counts.get( w );
+	    counts.put( w, count == null ? 1 : count + 1 );
+	}
+	tree = BenchmarkWords.tree( BenchmarkWords.tempFile( "lookup" ),
+				    layout, PageCache.DEFAULT_CACHE_BYTES,
+				    false );
+	tree.bulkLoad( counts.entrySet().iterator() );
+
+	// The vocabulary is in rank order, which the tree's keys aren't, so
+	// the hits come from the words of it that made it into the stream
+	ArrayList<String> ranked = new ArrayList<String>( counts.size() );
+	for( String w : vocab )
+	    if( counts.containsKey( w ) )
+		ranked.add( w );
+	hits = BenchmarkWords.stream( ranked.toArray( new String[0] ),
+				      1 << 16, distribution, 3 );
+	// Uppercase never appears in the vocabulary
+	misses = new String[hits.length];
+	Random rand = new Random( 4 );
+	for( int i = 0 ; i < misses.length ; i++ )
+	    misses[i] = hits[i] + (char) ( 'A' + rand.nextInt( 26 ) );
+    }
+
+    @TearDown(Level.Trial)
+    public void closeTree() {
+	tree.close();
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+	next = ( next + 1 ) & ( hits.length - 1 );
+	return tree.contains( hits[next] );
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+	next = ( next + 1 ) & ( misses.length - 1 );
+	return tree.contains( misses[next] );
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public void iterate( Blackhole bh ) {
+	for( SimpleImmutableEntry<String,Integer> e : tree )
+	    bh.consume( e );
+    }
+}
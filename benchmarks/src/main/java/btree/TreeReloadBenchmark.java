@@ -0,0 +1,77 @@
+// These benchmarks were written against JMH 1.37. Install the tree with
+// "mvn install" in the top directory, build them with "mvn package" in
+// this one, and run them with "java -jar target/benchmarks.jar". The
+// largest sizes need a few gigabytes of heap (-jvmArgs -Xmx8g).
+
+package btree;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times opening a saved tree with {@code readFromFile}. Eagerly that reads
+ * every node; lazily it only reads the root, so the lazy runs also look up
+ * one word to show the cost of reaching a leaf from a cold cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TreeReloadBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    int size;
+
+    @Param({ BenchmarkWords.UNIFORM, BenchmarkWords.ZIPFIAN })
+    String distribution;
+
+    @Param({ "fixed", "slotted", "offheap", "linked", "checksummed" })
+    String layout;
+
+    @Param({ "false", "true" })
+    boolean lazy;
+
+    String path;
+    String probe;
+
+    @Setup(Level.Trial)
+    public void saveTree() throws Exception {
+	String[] vocab = BenchmarkWords.vocabularyFor( size, 1 );
+	String[] words = BenchmarkWords.stream( vocab, size, distribution, 2 );
+	TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+	for( String w : words ) {
+	    Integer count = counts.get( w );
+	    counts.put( w, count == null ? 1 : count + 1 );
+	}
+	path = BenchmarkWords.tempFile( "reload" );
+	Tree t = BenchmarkWords.tree( path, layout,
+				      PageCache.DEFAULT_CACHE_BYTES, false );
+	t.bulkLoad( counts.entrySet().iterator() );
+	t.close();
+	probe = words[words.length / 2];
+    }
+
+    @Benchmark
+    public int readFromFile() {
+	Tree t = BenchmarkWords.tree( path, layout,
+				      PageCache.DEFAULT_CACHE_BYTES, lazy );
+	t.readFromFile();
+	int freq = t.getFrequency( probe );
+	t.close();
+	return freq;
+    }
+}
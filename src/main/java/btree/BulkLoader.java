@@ -0,0 +1,278 @@
+package btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Builds a tree bottom-up from words that arrive in sorted order. Each level
+ * of the tree fills one node at a time and hands a separator and the
+ * finished node's address to the level above, so every node is written
+ * exactly once and, apart from the root, in address order. Slotted pages
+ * are filled by size instead of by number of words.
+ *
+ * In a linked format every word stays in a leaf and a shortened copy of the
+ * first word of each leaf after the first goes up as a separator. A leaf
+ * can only be encoded once the address of the leaf after it is known, so
+ * it and the nodes finished after it wait until the next leaf is started.
+ */
+class BulkLoader {
+    // How many nodes are encoded before they're written out together
+    private static final int WRITE_BATCH = 64;
+
+    private final PageCache pages;
+    private final NodeFormat format;
+    private final int MAX_KEYS;
+    /** The fewest words a node other than the root may hold */
+    private final int MIN_KEYS;
+    private final int keysPerNode;
+    // How many bytes of each slotted page to fill
+    private final int bytesPerNode;
+    private final boolean keepNodes;
+    private final ArrayList<Level> levels;
+    private final ByteBuffer buf;
+    private int bufStart;
+    private int numNodes;
+    private String lastWord;
+    // The last leaf written, in a linked format, and the nodes after it
+    // that haven't been encoded yet
+    private Node lastLeaf;
+    private final LinkedList<Node> waiting = new LinkedList<Node>();
+
+    /**
+     * The words and child addresses handed to one level that haven't been
+     * put in a node yet. A level above the leaves always has one more child
+     * waiting than it has words, apart from just after a word arrives.
+     */
+    private static class Level {
+	LinkedList<String>  words = new LinkedList<String>();
+	LinkedList<Integer> freqs = new LinkedList<Integer>();
+	LinkedList<Integer> links = new LinkedList<Integer>();
+	// The UTF-8 length of the waiting words
+	int bytes;
+    }
+
+    /**
+     * @param fillFactor the fraction of each node's slots to fill. It's
+     * raised if needed so that nodes hold at least {@code MIN_KEYS} words.
+     * @param keepNodes whether the built nodes are added to the page cache
+     */
+    BulkLoader( PageCache pages, double fillFactor, boolean keepNodes ) {
+	if( ! ( fillFactor > 0 && fillFactor <= 1 ) )
+	    throw new IllegalArgumentException( "Fill factor " + fillFactor
+						+ " isn't in (0,1]" );
+	this.pages = pages;
+	this.keepNodes = keepNodes;
+	format = pages.getFormat();
+	MAX_KEYS = format.MAX_KEYS;
+	MIN_KEYS = MAX_KEYS / 2;
+	keysPerNode = Math.max( MIN_KEYS,
+				(int) Math.round( fillFactor * MAX_KEYS ) );
+	bytesPerNode = (int) ( fillFactor * format.PAGE_SPACE );
+	levels = new ArrayList<Level>();
+	levels.add( new Level() );
+	buf = ByteBuffer.allocate( WRITE_BATCH * format.SLOT_SIZE );
+	// Address 0 is saved for the root, which is finished last
+	numNodes = 1;
+	bufStart = 1;
+    }
+
+    public int getNumNodes() {
+	return numNodes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the words don't arrive in
+     * strictly increasing order, a frequency isn't positive, or a word is too
+     * big to fit in a node
+     */
+    public void add( String word, int freq ) throws IOException {
+	if( lastWord != null && lastWord.compareTo( word ) >= 0 )
+	    throw new IllegalArgumentException( "\"" + word + "\" came after \""
+						+ lastWord + "\"" );
+	if( freq <= 0 )
+	    throw new IllegalArgumentException( "\"" + word
+						+ "\" has frequency " + freq );
+	if( ! format.canAdd( word ) )
+	    throw new IllegalArgumentException( "\"" + word
+						+ "\" is too big" );
+	lastWord = word;
+	addWord( 0, word, freq );
+    }
+
+    // A node is only closed once enough words are waiting behind it for the
+    // next node to reach MIN_KEYS, so no node is ever left underfull
+    private void addWord( int height, String word, int freq )
+	throws IOException {
+	Level level = levels.get( height );
+	level.words.add( word );
+	level.freqs.add( freq );
+	level.bytes += NodeFormat.utf8Length( word, word.length() );
+	if( format.SLOTTED ) {
+	    // Enough is kept back for a last page with a word on it
+	    if( level.words.size() > MAX_KEYS + 1
+		|| size( level, height > 0 ) > bytesPerNode + 2 * maxEntry() )
+		closeNode( height, fillPage( level, height > 0 ) );
+	} else if( level.words.size() > keysPerNode + 1 + MIN_KEYS )
+	    closeNode( height, keysPerNode );
+    }
+
+    // Writes the first size words waiting on a level as a node and hands
+    // it and the word after it to the level above
+    private void closeNode( int height, int size ) throws IOException {
+	Level level = levels.get( height );
+	String last = level.words.get( size - 1 );
+	addLink( height + 1, writeNode( height, size, false ) );
+	if( format.LINKED && height == 0 )
+	    addWord( 1, NodeFormat.separator( last, level.words.getFirst() ),
+		     Node.SEPARATOR );
+	else
+	    addWord( height + 1, removeWord( level ), level.freqs.remove() );
+    }
+
+    private String removeWord( Level level ) {
+	String word = level.words.remove();
+	level.bytes -= NodeFormat.utf8Length( word, word.length() );
+	return word;
+    }
+
+    // The most bytes one word can add to a slotted page
+    private int maxEntry() {
+	return NodeFormat.ENTRY_SIZE + 4 + format.WORD_SIZE;
+    }
+
+    // The size of a slotted page holding every word waiting on a level
+    private int size( Level level, boolean internal ) {
+	return NodeFormat.pageSize( level.words.size(), level.bytes,
+				    NodeFormat.prefixLength(
+					level.words.getFirst(),
+					level.words.getLast() ),
+				    internal );
+    }
+
+    /**
+     * @return how many of the words waiting on a level fill a slotted page
+     * to {@code bytesPerNode}, leaving at least two behind
+     */
+    private int fillPage( Level level, boolean internal ) {
+	String first = level.words.getFirst();
+	int count = 0;
+	int bytes = 0;
+	for( String word : level.words ) {
+	    if( count == level.words.size() - 2 || count == MAX_KEYS )
+		break;
+	    int wordBytes = NodeFormat.utf8Length( word, word.length() );
+	    int size = NodeFormat.pageSize( count + 1, bytes + wordBytes,
+					    NodeFormat.prefixLength( first,
+								     word ),
+					    internal );
+	    if( count > 0 && size > bytesPerNode )
+		break;
+	    count++;
+	    bytes += wordBytes;
+	}
+	return count;
+    }
+
+    private void addLink( int height, int addr ) {
+	if( height == levels.size() )
+	    levels.add( new Level() );
+	levels.get( height ).links.add( addr );
+    }
+
+    /**
+     * Puts the words still waiting on each level into their last nodes and
+     * writes the root.
+     * @return the root, at address 0
+     */
+    public Node finish() throws IOException {
+	int height = 0;
+	while( true ) {
+	    Level level = levels.get( height );
+	    boolean top = ( height == levels.size() - 1 );
+	    int size = level.words.size();
+	    boolean fits = ( size <= MAX_KEYS );
+	    if( format.SLOTTED && size > 0 )
+		fits = fits && size( level, height > 0 ) <= format.PAGE_SPACE;
+	    if( fits ) {
+		if( top )
+		    break;
+		addLink( height + 1, writeNode( height, size, false ) );
+	    } else {
+		// Too many for one node, but always enough for two
+		String[] words = level.words.toArray( new String[size] );
+		boolean leaves = ( format.LINKED && height == 0 );
+		int leftSize = ( leaves
+				 ? format.leafSplitPoint( words, size )
+				 : format.splitPoint( words, size,
+						      height > 0 ) );
+		addLink( height + 1, writeNode( height, leftSize, false ) );
+		Level parent = levels.get( height + 1 );
+		String separator;
+		int freq;
+		if( leaves ) {
+		    separator = NodeFormat.separator( words[leftSize - 1],
+						      words[leftSize] );
+		    freq = Node.SEPARATOR;
+		} else {
+		    separator = removeWord( level );
+		    freq = level.freqs.remove();
+		}
+		parent.words.add( separator );
+		parent.bytes += NodeFormat.utf8Length( separator,
+						       separator.length() );
+		parent.freqs.add( freq );
+		addLink( height + 1, writeNode( height, level.words.size(),
+						false ) );
+	    }
+	    height++;
+	}
+	// The last leaf has no next leaf
+	while( ! waiting.isEmpty() )
+	    encode( waiting.remove(), false );
+	pages.writePages( buf, bufStart );
+	int rootSize = levels.get( height ).words.size();
+	writeNode( height, rootSize, true );
+	pages.writePages( buf, 0 );
+	return pages.get( 0 );
+    }
+
+    /**
+     * Takes the first {@code size} words waiting on a level, and the links
+     * around them, and writes them out as a node
+     * @return the address of the node
+     */
+    private int writeNode( int height, int size, boolean root )
+	throws IOException {
+	Level level = levels.get( height );
+	Node n = new Node( root ? 0 : numNodes++, format, pages );
+	for( int i = 0 ; i < size ; i++ )
+	    n.set( i, removeWord( level ), level.freqs.remove() );
+	if( height > 0 )
+	    for( int i = 0 ; i <= size ; i++ )
+		n.setLinkAddress( i, level.links.remove() );
+	if( format.LINKED && height == 0 && ! root ) {
+	    if( lastLeaf != null )
+		lastLeaf.setNextAddress( n.ADDRESS );
+	    while( ! waiting.isEmpty() )
+		encode( waiting.remove(), false );
+	    lastLeaf = n;
+	}
+	if( root || waiting.isEmpty() && n != lastLeaf )
+	    encode( n, root );
+	else
+	    waiting.add( n );
+	return n.ADDRESS;
+    }
+
+    private void encode( Node n, boolean root ) throws IOException {
+	n.writeTo( buf );
+	if( keepNodes || root )
+	    pages.put( n );
+	if( ! root && ! buf.hasRemaining() ) {
+	    pages.writePages( buf, bufStart );
+	    bufStart = n.ADDRESS + 1;
+	}
+    }
+}
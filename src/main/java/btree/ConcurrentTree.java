@@ -0,0 +1,388 @@
+package btree;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * A {@link Tree} that can be read and added to by many threads at once.
+ *
+ * Lookups and adds latch their way down the tree one node at a time
+ * ("crabbing"): a reader takes the read latch of a child before letting go
+ * of its parent, and a writer keeps write latches on every ancestor that a
+ * split could reach, letting go of them as soon as it gets to a node that
+ * isn't full. Operations that cover the whole tree, like flushing or
+ * reloading, wait for every lookup and add to finish and run on their own,
+ * and iterators do the same for each batch of words they read.
+ */
+public class ConcurrentTree extends Tree {
+    /** How many words an iterator reads each time it takes the tree */
+    public static final int ITERATOR_BATCH = 1024;
+
+    // Held shared by lookups and adds, and exclusively by whole-tree work
+    private final ReentrantReadWriteLock structure
+	= new ReentrantReadWriteLock();
+    // Guards the root field itself, which changes when the root splits
+    private final ReentrantReadWriteLock rootLatch
+	= new ReentrantReadWriteLock();
+
+    public ConcurrentTree(String fPath) {
+	super( fPath );
+    }
+
+    public ConcurrentTree(String fPath, long cacheBytes) {
+	super( fPath, cacheBytes );
+    }
+
+    public ConcurrentTree(String fPath, long cacheBytes, boolean lazy) {
+	super( fPath, cacheBytes, lazy );
+    }
+
+    public ConcurrentTree(String fPath, NodeFormat format, long cacheBytes,
+			  boolean lazy) {
+	super( fPath, format, cacheBytes, lazy );
+    }
+
+    public ConcurrentTree(String fPath, NodeFormat format, long cacheBytes,
+			  boolean lazy, boolean offHeap) {
+	super( fPath, format, cacheBytes, lazy, offHeap );
+    }
+
+    @Override
+    protected int addWord( String str, int count ) {
+	if( ! getFormat().canAdd( str ) ) {
+	    System.err.println("Error: Could not add \"" + str +
+			       "\" to tree because it's too big.");
+	    return 0;
+	}
+	structure.readLock().lock();
+	// The nodes this thread has latched. They're also the path that
+	// the add may have to split its way back up.
+	Stack<Node> nodes = new Stack<Node>();
+	boolean holdsRoot = false;
+	int freq = 0;
+	try {
+	    // Checkpoints wait for the structure lock, so the add can't be
+	    // logged before one and made after it
+	    logAdd( str, count );
+	    rootLatch.writeLock().lock();
+	    holdsRoot = true;
+	    Node n = root;
+	    while( true ) {
+		n.latch().writeLock().lock();
+		// The parent is still latched, so nobody else can have read
+		// another copy of the node in the meantime
+		pages.reattach( n );
+		// Nothing above a node with room to spare, or that already has
+		// the word, can split, so the latches above it can go
+		if( ! n.isFull() || n.holds( str ) ) {
+		    release( nodes );
+		    if( holdsRoot ) {
+			rootLatch.writeLock().unlock();
+			holdsRoot = false;
+		    }
+		}
+		nodes.push(n);
+		if( n.isLeaf() || n.holds( str ) )
+		    break;
+		n = n.getLink( n.childIndex( str ) );
+	    }
+	    Stack<Node> path = new Stack<Node>();
+	    path.addAll( nodes );
+	    freq = add( str, count, path );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	} finally {
+	    release( nodes );
+	    if( holdsRoot )
+		rootLatch.writeLock().unlock();
+	    structure.readLock().unlock();
+	}
+	if( needsCheckpoint() )
+	    flush();
+	return freq;
+    }
+
+    private void release( Stack<Node> nodes ) {
+	while( ! nodes.empty() )
+	    nodes.pop().latch().writeLock().unlock();
+    }
+
+    @Override
+    public boolean contains( String str ) {
+	return getFrequency( str ) != 0;
+    }
+
+    @Override
+    protected int findFrequency( String str ) {
+	structure.readLock().lock();
+	try {
+	    rootLatch.readLock().lock();
+	    Node current = root;
+	    current.latch().readLock().lock();
+	    rootLatch.readLock().unlock();
+	    while( true ) {
+		int i = findInsertionPoint( str, current );
+		Node next = null;
+		int freq = 0;
+		if( i < current.getFormat().MAX_KEYS
+		    && str.equals( current.getWord(i) ) ) {
+		    if( ! current.getFormat().LINKED || current.isLeaf() )
+			freq = current.getFreq(i);
+		    else
+			next = current.getLink(i + 1);
+		} else
+		    next = current.getLink(i);
+		if( next != null )
+		    next.latch().readLock().lock();
+		current.latch().readLock().unlock();
+		if( next == null )
+		    return freq;
+		current = next;
+	    }
+	} finally {
+	    structure.readLock().unlock();
+	}
+    }
+
+    @Override
+    public int getHeight() {
+	structure.readLock().lock();
+	try {
+	    rootLatch.readLock().lock();
+	    Node current = root;
+	    current.latch().readLock().lock();
+	    rootLatch.readLock().unlock();
+	    int height = 1;
+	    while( ! current.isLeaf() ) {
+		Node next = current.getLink( 0 );
+		next.latch().readLock().lock();
+		current.latch().readLock().unlock();
+		current = next;
+		height++;
+	    }
+	    current.latch().readLock().unlock();
+	    return height;
+	} finally {
+	    structure.readLock().unlock();
+	}
+    }
+
+    /**
+     * Latches belong to the thread that takes them, so the whole lookup
+     * runs on one of the page cache's I/O threads instead of moving from
+     * thread to thread as nodes are read.
+     */
+    @Override
+    public CompletableFuture<Integer> getAsync( final String str ) {
+	return CompletableFuture.supplyAsync( new Supplier<Integer>() {
+		public Integer get() {
+		    return getFrequency( str );
+		}
+	    }, pages.getExecutor() );
+    }
+
+    /**
+     * The batch runs on its own, with every other operation waiting. This
+     * covers {@link #addBatch} too.
+     */
+    @Override
+    public Tree addCounts( SortedMap<String,Integer> counts ) {
+	structure.writeLock().lock();
+	try {
+	    return super.addCounts( counts );
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Removals run on their own, since merging nodes can reach both ways
+     * along the tree
+     */
+    @Override
+    public int remove( String str ) {
+	structure.writeLock().lock();
+	try {
+	    return super.remove( str );
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public int decrement( String str, int count ) {
+	structure.writeLock().lock();
+	try {
+	    return super.decrement( str, count );
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public void compact() {
+	structure.writeLock().lock();
+	try {
+	    super.compact();
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public Tree bulkLoad( Iterator<? extends Map.Entry<String,Integer>>
+			  entries, double fillFactor ) {
+	structure.writeLock().lock();
+	try {
+	    return super.bulkLoad( entries, fillFactor );
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public void readFromFile() {
+	structure.writeLock().lock();
+	try {
+	    super.readFromFile();
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    protected void countWords() {
+	structure.writeLock().lock();
+	try {
+	    super.countWords();
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public void openLog( int syncBatch ) {
+	structure.writeLock().lock();
+	try {
+	    super.openLog( syncBatch );
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public void flush() {
+	structure.writeLock().lock();
+	try {
+	    super.flush();
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Nothing can change the tree while it's verified
+     */
+    @Override
+    public TreeVerifier.Report verify( int threads ) {
+	structure.writeLock().lock();
+	try {
+	    return super.verify( threads );
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public void close() {
+	structure.writeLock().lock();
+	try {
+	    super.close();
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public void printTree() {
+	structure.writeLock().lock();
+	try {
+	    super.printTree();
+	} finally {
+	    structure.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Nodes can't be read without their latches while other threads add to
+     * the tree, so the words come from {@link #iterator} in batches rather
+     * than by splitting the tree. Parallel streams still split the batches
+     * between threads.
+     */
+    @Override
+    public Spliterator<SimpleImmutableEntry<String,Integer>> spliterator() {
+	return TreeIterator.spliterator( iterator() );
+    }
+
+    /**
+     * The words are read {@code ITERATOR_BATCH} at a time while every other
+     * operation waits, and each batch picks up after the last word of the
+     * one before. Every batch is a consistent view of the tree, but words
+     * added between batches may or may not be seen.
+     */
+    @Override
+    protected Iterator<SimpleImmutableEntry<String,Integer>> rangeIterator(
+	final String from, final String to ) {
+	return new Iterator<SimpleImmutableEntry<String,Integer>>() {
+	    private final LinkedList<SimpleImmutableEntry<String,Integer>> batch
+		= new LinkedList<SimpleImmutableEntry<String,Integer>>();
+	    // Where the next batch starts, and whether that word was in the
+	    // last batch already
+	    private String resume = from;
+	    private boolean skip = false;
+	    private boolean done = false;
+
+	    private void fill() {
+		structure.writeLock().lock();
+		try {
+		    Iterator<SimpleImmutableEntry<String,Integer>> iter
+			= ConcurrentTree.super.rangeIterator( resume, to );
+		    while( iter.hasNext() && batch.size() < ITERATOR_BATCH ) {
+			SimpleImmutableEntry<String,Integer> e = iter.next();
+			if( ! ( skip && e.getKey().equals( resume ) ) )
+			    batch.add( e );
+		    }
+		    done = ! iter.hasNext();
+		} finally {
+		    structure.writeLock().unlock();
+		}
+		if( ! batch.isEmpty() ) {
+		    resume = batch.getLast().getKey();
+		    skip = true;
+		}
+	    }
+
+	    public boolean hasNext() {
+		while( batch.isEmpty() && ! done )
+		    fill();
+		return ! batch.isEmpty();
+	    }
+
+	    public SimpleImmutableEntry<String,Integer> next() {
+		if( ! hasNext() )
+		    throw new NoSuchElementException();
+		return batch.remove();
+	    }
+	};
+    }
+}
@@ -0,0 +1,212 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts adds in memory before they reach a tree, so that a word added over
+ * and over costs one descent per flush instead of one per add.
+ *
+ * The counts are split between {@code STRIPES} maps by the word's hash,
+ * each with its own lock, so threads adding different words rarely wait on
+ * each other. Each map keeps its most recently added words, and the count
+ * of the word that's gone the longest without an add is added to the tree
+ * when room is needed. Every count is also added to the tree each flush
+ * interval and by {@link #flush}.
+ *
+ * {@link #getFrequency} adds the waiting count to the tree's, so it's always
+ * exact. Anything else that reads the tree only sees counts that have been
+ * flushed. Counts that are waiting aren't in the tree's log either, so a
+ * crash can lose up to a flush interval of them.
+ *
+ * The flusher and the threads adding words reach the tree from different
+ * stripes at once. A {@link ConcurrentTree} takes care of that itself;
+ * any other tree is only ever reached under one lock, so its adds and
+ * lookups through the cache run one at a time. Nothing else should change
+ * a plain tree while a cache with a flush interval sits in front of it.
+ */
+public class HotWordCache implements AutoCloseable {
+    public static final int STRIPES = 16;
+
+    /** How many words may have counts waiting at once */
+    public final int CAPACITY;
+    /** How often every count is added to the tree, or {@code 0} for never */
+    public final long FLUSH_MILLIS;
+    private final Tree tree;
+    // Held around every use of the tree, unless it's a ConcurrentTree
+    private final Object treeLock;
+    // Each stripe is its own lock. The counts are arrays so they can be
+    // bumped in place, least recently added first.
+    private final List<LinkedHashMap<String,int[]>> stripes;
+    private final int stripeCapacity;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param capacity how many words may have counts waiting at once. It's
+     * shared evenly between the stripes.
+     * @param flushMillis how often every waiting count is added to the tree,
+     * or {@code 0} to only add them when they're pushed out or on
+     * {@link #flush}
+     */
+    public HotWordCache( Tree tree, int capacity, long flushMillis ) {
+	if( capacity <= 0 )
+	    throw new IllegalArgumentException( "Capacity " + capacity
+						+ " isn't positive" );
+	if( flushMillis < 0 )
+	    throw new IllegalArgumentException( "Flush interval " + flushMillis
+						+ " is negative" );
+	this.tree = tree;
+	treeLock = ( tree instanceof ConcurrentTree ) ? null : new Object();
+	CAPACITY = capacity;
+	FLUSH_MILLIS = flushMillis;
+	stripeCapacity = Math.max( 1, capacity / STRIPES );
+	stripes = new ArrayList<LinkedHashMap<String,int[]>>( STRIPES );
+	for( int i = 0 ; i < STRIPES ; i++ )
+	    stripes.add( new LinkedHashMap<String,int[]>( 16, 0.75f, true ) );
+	if( flushMillis == 0 ) {
+	    flusher = null;
+	    return;
+	}
+	flusher = Executors.newSingleThreadScheduledExecutor(
+	    new ThreadFactory() {
+		public Thread newThread( Runnable r ) {
+		    Thread t = new Thread( r, "HotWordCache flush" );
+		    t.setDaemon( true );
+		    return t;
+		}
+	    } );
+	flusher.scheduleWithFixedDelay( new Runnable() {
+		public void run() {
+		    // An exception would stop every later flush
+		    try {
+			flush();
+		    } catch ( RuntimeException e ) {
+			e.printStackTrace();
+		    }
+		}
+	    }, flushMillis, flushMillis, TimeUnit.MILLISECONDS );
+    }
+
+    public Tree getTree() {
+	return tree;
+    }
+
+    private LinkedHashMap<String,int[]> stripe( String str ) {
+	int h = str.hashCode();
+	return stripes.get( ( h ^ ( h >>> 16 ) ) & ( STRIPES - 1 ) );
+    }
+
+    private void addToTree( String str, int count ) {
+	if( treeLock == null ) {
+	    tree.add( str, count );
+	    return;
+	}
+	synchronized( treeLock ) {
+	    tree.add( str, count );
+	}
+    }
+
+    private int treeFrequency( String str ) {
+	if( treeLock == null )
+	    return tree.getFrequency( str );
+	synchronized( treeLock ) {
+	    return tree.getFrequency( str );
+	}
+    }
+
+    public HotWordCache add( String str ) {
+	// Words that are too big go straight to the tree to be turned away
+	if( ! tree.getFormat().canAdd( str ) ) {
+	    addToTree( str, 1 );
+	    return this;
+	}
+	LinkedHashMap<String,int[]> stripe = stripe( str );
+	synchronized( stripe ) {
+	    int[] count = stripe.get( str );
+	    if( count == null ) {
+		count = new int[1];
+		stripe.put( str, count );
+	    }
+	    if( count[0] == Integer.MAX_VALUE ) {
+		addToTree( str, count[0] );
+		count[0] = 0;
+	    }
+	    count[0]++;
+	    Iterator<Map.Entry<String,int[]>> iter
+		= stripe.entrySet().iterator();
+	    while( stripe.size() > stripeCapacity ) {
+		Map.Entry<String,int[]> eldest = iter.next();
+		iter.remove();
+		addToTree( eldest.getKey(), eldest.getValue()[0] );
+	    }
+	}
+	return this;
+    }
+
+    public boolean contains( String str ) {
+	return getFrequency( str ) != 0;
+    }
+
+    /**
+     * @return how many times {@code str} has been added, counting the adds
+     * that haven't reached the tree yet. Like the tree's, it stops at
+     * {@code Integer.MAX_VALUE}.
+     */
+    public int getFrequency( String str ) {
+	LinkedHashMap<String,int[]> stripe = stripe( str );
+	// The count can't move to the tree in between the two reads
+	synchronized( stripe ) {
+	    int[] count = stripe.get( str );
+	    return (int) Math.min( (long) treeFrequency( str )
+				   + ( count == null ? 0 : count[0] ),
+				   Integer.MAX_VALUE );
+	}
+    }
+
+    /**
+     * @return how many words have counts waiting
+     */
+    public int size() {
+	int size = 0;
+	for( LinkedHashMap<String,int[]> stripe : stripes )
+	    synchronized( stripe ) {
+		size += stripe.size();
+	    }
+	return size;
+    }
+
+    /**
+     * Adds every waiting count to the tree
+     */
+    public void flush() {
+	for( LinkedHashMap<String,int[]> stripe : stripes )
+	    synchronized( stripe ) {
+		for( Map.Entry<String,int[]> e : stripe.entrySet() )
+		    addToTree( e.getKey(), e.getValue()[0] );
+		stripe.clear();
+	    }
+    }
+
+    /**
+     * Stops the flushes and adds every waiting count to the tree, which is
+     * left open
+     */
+    public void close() {
+	if( flusher != null ) {
+	    flusher.shutdown();
+	    try {
+		flusher.awaitTermination( 1, TimeUnit.MINUTES );
+	    } catch ( InterruptedException e ) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	flush();
+    }
+}
@@ -0,0 +1,361 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only view of a tree file that answers queries straight from the
+ * memory-mapped pages written by {@link Node#writeTo}. No {@code Node}s are
+ * built; keys are compared as UTF-8 bytes where they lie in the mapping.
+ * The shape of the nodes is taken from the file's header. The words of a
+ * linked tree are walked along its chain of leaves.
+ */
+public class MappedTree
+    implements Iterable<SimpleImmutableEntry<String,Integer>>, AutoCloseable {
+    // Deeper than any tree whose addresses fit in an int
+    private static final int MAX_HEIGHT = 64;
+
+    public final String FILEPATH;
+    public final NodeFormat FORMAT;
+    private final int MAX_KEYS;
+    private final int WORD_SIZE;
+    private final int SLOT_SIZE;
+    private final boolean SLOTTED;
+    private final boolean LINKED;
+    // Offsets of the blocks within a node
+    private final int WORDS_OFFSET;
+    private final int LINKS_OFFSET;
+    // A single mapping can't be larger than 2GB, so bigger files are mapped
+    // as several segments that each hold a whole number of nodes
+    private final int NODES_PER_SEGMENT;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final int rootAddr;
+
+    public MappedTree( String fPath ) throws IOException {
+	FILEPATH = fPath;
+	file = new RandomAccessFile( fPath, "r" );
+	FileChannel channel = file.getChannel();
+	NodeFormat format = NodeFormat.readHeader( channel );
+	FORMAT = ( format == null ? NodeFormat.DEFAULT : format );
+	MAX_KEYS = FORMAT.MAX_KEYS;
+	WORD_SIZE = FORMAT.WORD_SIZE;
+	SLOT_SIZE = FORMAT.SLOT_SIZE;
+	SLOTTED = FORMAT.SLOTTED;
+	LINKED = FORMAT.LINKED;
+	WORDS_OFFSET = 4 * MAX_KEYS;
+	LINKS_OFFSET = WORDS_OFFSET + MAX_KEYS * WORD_SIZE;
+	NODES_PER_SEGMENT = Integer.MAX_VALUE / SLOT_SIZE;
+	long numNodes = FORMAT.numSlots( channel.size() );
+	int numSegments = (int) ( ( numNodes + NODES_PER_SEGMENT - 1 )
+				  / NODES_PER_SEGMENT );
+	segments = new MappedByteBuffer[numSegments];
+	for( int i = 0 ; i < numSegments ; i++ ) {
+	    long first = (long) i * NODES_PER_SEGMENT;
+	    long count = Math.min( NODES_PER_SEGMENT, numNodes - first );
+	    segments[i] = channel.map( FileChannel.MapMode.READ_ONLY,
+				       FORMAT.offset( (int) first ),
+				       count * SLOT_SIZE );
+	}
+	Superblock sb = new Superblock();
+	if( NodeFormat.readSuperblock( channel, sb ) )
+	    rootAddr = sb.getRootAddress();
+	else
+	    rootAddr = 0;
+    }
+
+    // ========================  Raw page access  ========================
+
+    private ByteBuffer segment( int addr ) {
+	return segments[addr / NODES_PER_SEGMENT];
+    }
+    private int base( int addr ) {
+	return ( addr % NODES_PER_SEGMENT ) * SLOT_SIZE;
+    }
+
+    // In a slotted page each word is the page's prefix followed by the
+    // rest of the word; in fixed pages the prefix is always empty
+
+    private int numKeys( ByteBuffer seg, int base ) {
+	if( SLOTTED )
+	    return seg.getShort( base ) & 0xffff;
+	int n = 0;
+	while( n < MAX_KEYS && seg.getInt( base + 4 * n ) != 0 )
+	    n++;
+	return n;
+    }
+    private int prefixPos( int base ) {
+	return base + NodeFormat.PAGE_HEADER_SIZE;
+    }
+    private int prefixLength( ByteBuffer seg, int base ) {
+	return SLOTTED ? seg.getShort( base + 4 ) & 0xffff : 0;
+    }
+    // Where the rest of word i starts
+    private int wordPos( ByteBuffer seg, int base, int i ) {
+	if( ! SLOTTED )
+	    return base + WORDS_OFFSET + i * WORD_SIZE;
+	int dir = prefixPos( base ) + prefixLength( seg, base )
+	    + 4 * ( seg.getShort( base + 2 ) & 0xffff );
+	return base + ( seg.getShort( dir + 2 * i ) & 0xffff ) + 6;
+    }
+    private int wordLength( ByteBuffer seg, int wordPos ) {
+	if( SLOTTED )
+	    return seg.getShort( wordPos - 2 ) & 0xffff;
+	int len = 0;
+	while( len < WORD_SIZE && seg.get( wordPos + len ) != 0 )
+	    len++;
+	return len;
+    }
+    private int frequency( ByteBuffer seg, int base, int i ) {
+	if( SLOTTED )
+	    return seg.getInt( wordPos( seg, base, i ) - 6 );
+	return seg.getInt( base + 4 * i );
+    }
+    private int link( ByteBuffer seg, int base, int j ) {
+	if( ! SLOTTED )
+	    return seg.getInt( base + LINKS_OFFSET + 4 * j );
+	if( j >= ( seg.getShort( base + 2 ) & 0xffff ) )
+	    return -1;
+	return seg.getInt( prefixPos( base ) + prefixLength( seg, base )
+			   + 4 * j );
+    }
+    private int nextLeaf( ByteBuffer seg, int base ) {
+	if( SLOTTED )
+	    return seg.getInt( base + FORMAT.PAGE_SPACE );
+	return seg.getInt( base + LINKS_OFFSET + 4 * FORMAT.ORDER );
+    }
+
+    /**
+     * Compares {@code key} against the {@code len} bytes starting at
+     * {@code prefixPos}.
+     * @return {@code 0} if the key starts with them, otherwise how the key
+     * compares with every word that does
+     */
+    private static int comparePrefix( byte[] key, ByteBuffer seg,
+				      int prefixPos, int len ) {
+	for( int i = 0 ; i < len ; i++ ) {
+	    if( i == key.length )
+		return -1;
+	    int a = key[i] & 0xff;
+	    int b = seg.get( prefixPos + i ) & 0xff;
+	    if( a != b )
+		return NodeFormat.utf16Order( a, b );
+	}
+	return 0;
+    }
+
+    /**
+     * Compares the rest of {@code key}, from {@code from} on, against the
+     * {@code len} bytes starting at {@code wordPos}, in the same order as
+     * {@link String#compareTo}, which is the order the tree was built in.
+     */
+    private static int compare( byte[] key, int from, ByteBuffer seg,
+				int wordPos, int len ) {
+	for( int i = 0 ; i < len ; i++ ) {
+	    if( from + i == key.length )
+		return -1;
+	    int a = key[from + i] & 0xff;
+	    int b = seg.get( wordPos + i ) & 0xff;
+	    if( a != b )
+		return NodeFormat.utf16Order( a, b );
+	}
+	return key.length > from + len ? 1 : 0;
+    }
+
+    // ============================  Queries  ============================
+
+    public boolean contains( String str ) {
+	return getFrequency( str ) != 0;
+    }
+    public boolean contains( byte[] utf8 ) {
+	return getFrequency( utf8 ) != 0;
+    }
+
+    public int getFrequency( String str ) {
+	return getFrequency( str.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * @param utf8 the word to look up, encoded as UTF-8
+     * @return how many times the word was added, or {@code 0} if it isn't
+     * in the tree
+     */
+    public int getFrequency( byte[] utf8 ) {
+	if( segments.length == 0 )
+	    return 0;
+	int addr = rootAddr;
+	while( addr != -1 ) {
+	    ByteBuffer seg = segment( addr );
+	    int base = base( addr );
+	    int n = numKeys( seg, base );
+	    int prefix = prefixLength( seg, base );
+	    int c = comparePrefix( utf8, seg, prefixPos( base ), prefix );
+	    // A key without the page's prefix goes before or after every word
+	    int lo = ( c > 0 ? n : 0 );
+	    int hi = ( c == 0 ? n - 1 : -1 );
+	    while( lo <= hi ) {
+		int mid = ( lo + hi ) >>> 1;
+		int wordPos = wordPos( seg, base, mid );
+		c = compare( utf8, prefix, seg, wordPos,
+			     wordLength( seg, wordPos ) );
+		if( c == 0 ) {
+		    // Separators that match send the search to the right
+		    if( ! LINKED || link( seg, base, 0 ) == -1 )
+			return frequency( seg, base, mid );
+		    lo = mid + 1;
+		    break;
+		} else if( c < 0 )
+		    hi = mid - 1;
+		else
+		    lo = mid + 1;
+	    }
+	    addr = link( seg, base, lo );
+	}
+	return 0;
+    }
+
+    public Cursor cursor() {
+	return new Cursor();
+    }
+
+    /**
+     * Decodes each word as it's reached. Use {@link #cursor} to walk the tree
+     * without building any objects.
+     */
+    public Iterator<SimpleImmutableEntry<String,Integer>> iterator() {
+	final Cursor c = cursor();
+	return new Iterator<SimpleImmutableEntry<String,Integer>>() {
+	    private boolean ready = c.next();
+	    public boolean hasNext() {
+		return ready;
+	    }
+	    public SimpleImmutableEntry<String,Integer> next() {
+		if( ! ready )
+		    throw new NoSuchElementException();
+		SimpleImmutableEntry<String,Integer> e
+		    = new SimpleImmutableEntry<String,Integer>(c.word(),
+							       c.frequency());
+		ready = c.next();
+		return e;
+	    }
+	};
+    }
+
+    public void close() throws IOException {
+	file.close();
+    }
+
+    /**
+     * Walks the words of the tree in order, keeping its position as a stack
+     * of node addresses and key indices, or in a linked tree, as the address
+     * of the current leaf and the index in it
+     */
+    public class Cursor {
+	private final int[] addrs = new int[MAX_HEIGHT];
+	private final int[] positions = new int[MAX_HEIGHT];
+	private int depth = -1;
+	private ByteBuffer wordSeg;
+	private int prefixPos;
+	private int prefixLen;
+	private int wordPos = -1;
+	private int freq;
+
+	private Cursor() {
+	    if( segments.length > 0 )
+		descend( rootAddr );
+	}
+
+	// Pushes addr and the leftmost path below it, or only the leftmost
+	// leaf in a linked tree
+	private void descend( int addr ) {
+	    while( addr != -1 ) {
+		if( LINKED )
+		    depth = -1;
+		depth++;
+		addrs[depth] = addr;
+		positions[depth] = 0;
+		addr = link( segment( addr ), base( addr ), 0 );
+	    }
+	}
+
+	/**
+	 * Moves to the next word.
+	 * @return {@code false} once every word has been visited
+	 */
+	public boolean next() {
+	    while( depth >= 0 ) {
+		int addr = addrs[depth];
+		int pos = positions[depth];
+		ByteBuffer seg = segment( addr );
+		int base = base( addr );
+		if( pos < numKeys( seg, base ) ) {
+		    wordSeg = seg;
+		    prefixPos = prefixPos( base );
+		    prefixLen = prefixLength( seg, base );
+		    wordPos = wordPos( seg, base, pos );
+		    freq = MappedTree.this.frequency( seg, base, pos );
+		    positions[depth] = pos + 1;
+		    if( ! LINKED )
+			descend( link( seg, base, pos + 1 ) );
+		    return true;
+		}
+		depth--;
+		int next = ( LINKED ? nextLeaf( seg, base ) : -1 );
+		if( next != -1 ) {
+		    depth++;
+		    addrs[depth] = next;
+		    positions[depth] = 0;
+		}
+	    }
+	    wordSeg = null;
+	    return false;
+	}
+
+	public int frequency() {
+	    return freq;
+	}
+
+	public int wordLength() {
+	    return prefixLen + MappedTree.this.wordLength( wordSeg, wordPos );
+	}
+
+	/**
+	 * Copies the UTF-8 bytes of the current word into {@code dst}, which
+	 * has to have room for {@code WORD_SIZE} bytes
+	 * @return the length of the word
+	 */
+	public int copyWord( byte[] dst ) {
+	    int len = wordLength();
+	    for( int i = 0 ; i < prefixLen ; i++ )
+		dst[i] = wordSeg.get( prefixPos + i );
+	    for( int i = prefixLen ; i < len ; i++ )
+		dst[i] = wordSeg.get( wordPos + i - prefixLen );
+	    return len;
+	}
+
+	/**
+	 * @return how the current word compares with {@code utf8}, in the
+	 * same order as {@link String#compareTo}
+	 */
+	public int compareWord( byte[] utf8 ) {
+	    int c = comparePrefix( utf8, wordSeg, prefixPos, prefixLen );
+	    if( c == 0 )
+		c = compare( utf8, prefixLen, wordSeg, wordPos,
+			     MappedTree.this.wordLength( wordSeg, wordPos ) );
+	    return -c;
+	}
+
+	public String word() {
+	    byte[] bytes = new byte[WORD_SIZE];
+	    int len = copyWord( bytes );
+	    return new String( bytes, 0, len, StandardCharsets.UTF_8 );
+	}
+    }
+}
@@ -0,0 +1,815 @@
+package btree;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.FileNotFoundException;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+public class Node implements Iterable<SimpleImmutableEntry<String,Integer>> {
+    public final int ADDRESS;
+    public static final int ORDER = 9;
+    public static final int MAX_KEYS = ORDER - 1;
+    public static final int WORD_SIZE = 64;
+    public static final int NODE_SIZE = MAX_KEYS * WORD_SIZE
+	+ 4 * (MAX_KEYS + ORDER);
+    /**
+     * The frequency of a separator in an internal node of a linked format,
+     * which only guides lookups and was never added
+     */
+    public static final int SEPARATOR = -1;
+    private String[] words;
+    private int[]  frequencies;
+    // Addresses of the children, -1 where there is no child
+    private int[]  links;
+    // The address of the next leaf in a linked format, -1 for the last
+    private int next = -1;
+    // Children of a node that isn't backed by a page cache
+    private Node[] children;
+    // The node's contents when its cache keeps nodes off the heap, in the
+    // fixed layout used on file. Words, frequencies and links are read and
+    // written in place, and the arrays above are left null, so the node
+    // holds no object per word.
+    private final ByteBuffer page;
+    private final PageCache pages;
+    private final NodeFormat format;
+    // Guards the contents of the node when it's shared between threads
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+    
+    /**
+     * @param addr determines where the node will be written within a file
+     */
+    public Node(int addr) {
+	this( addr, NodeFormat.DEFAULT, null );
+    }
+
+    /**
+     * @param addr  determines where the node will be written within a file
+     * @param pages the cache that children are looked up in by address. The
+     * node takes the shape of the cache's nodes.
+     */
+    public Node(int addr, PageCache pages) {
+	this( addr, pages.getFormat(), pages );
+    }
+
+    /**
+     * @param addr   determines where the node will be written within a file
+     * @param format the shape of the node
+     * @param pages  the cache that children are looked up in by address. If
+     * it's {@code null} the node keeps references to its children instead.
+     * If it keeps nodes off the heap then so does this one.
+     */
+    public Node(int addr, NodeFormat format, PageCache pages) {
+	ADDRESS = addr;
+	this.pages = pages;
+	this.format = format;
+	if( pages != null && pages.isOffHeap() ) {
+	    page = pages.allocatePage();
+	    for( int i = 0 ; i < format.ORDER ; i++ )
+		page.putInt( linkOffset( i ), -1 );
+	    if( format.LINKED )
+		page.putInt( linkOffset( format.ORDER ), -1 );
+	    return;
+	}
+	page = null;
+	words = new String[format.MAX_KEYS];
+	frequencies = new int[format.MAX_KEYS];
+	links = new int[format.ORDER];
+	for( int i = 0 ; i < format.ORDER ; i++ )
+	    links[i] = -1;
+	if( pages == null )
+	    children = new Node[format.ORDER];
+    }
+
+    // ============================  Getters  ============================
+
+    public int getFreq( int j ) {
+	if( page != null )
+	    return page.getInt( 4 * j );
+	return frequencies[j];
+    }
+    public Node getLink( int j ) {
+	int addr = getLinkAddress( j );
+	if( addr == -1 )
+	    return null;
+	else if( pages != null )
+	    return pages.get( addr );
+	else
+	    return children[j];
+    }
+    /**
+     * @return link {@code j}, which may still be being read from the file
+     */
+    public CompletableFuture<Node> getLinkAsync( int j ) {
+	int addr = getLinkAddress( j );
+	if( addr != -1 && pages != null )
+	    return pages.getAsync( addr );
+	return CompletableFuture.completedFuture( getLink( j ) );
+    }
+    /**
+     * Starts loading link {@code j} in the background, if it's on file
+     */
+    public void prefetchLink( int j ) {
+	if( pages != null )
+	    pages.prefetch( getLinkAddress( j ) );
+    }
+    public int getLinkAddress( int j ) {
+	if( page != null )
+	    return page.getInt( linkOffset( j ) );
+	return links[j];
+    }
+    /**
+     * Off-heap nodes decode the word each time it's asked for
+     */
+    public String getWord( int j ) {
+	if( page == null )
+	    return words[j];
+	if( getFreq( j ) == 0 )
+	    return null;
+	byte[] wordBytes = new byte[wordLength( j )];
+	page.get( wordOffset( j ), wordBytes );
+	return new String( wordBytes, StandardCharsets.UTF_8 );
+    }
+    /**
+     * @return the address of the leaf after this one in a linked format,
+     * or {@code -1} if it's the last
+     */
+    public int getNextAddress() {
+	if( page != null && format.LINKED )
+	    return page.getInt( linkOffset( format.ORDER ) );
+	return next;
+    }
+    /**
+     * @return the leaf after this one in a linked format, or {@code null}.
+     * Only meaningful for nodes backed by a page cache.
+     */
+    public Node getNext() {
+	int addr = getNextAddress();
+	return ( addr == -1 || pages == null ) ? null : pages.get( addr );
+    }
+    /**
+     * Starts loading the leaf after this one in the background
+     */
+    public void prefetchNext() {
+	if( pages != null )
+	    pages.prefetch( getNextAddress() );
+    }
+    public NodeFormat getFormat() {
+	return format;
+    }
+
+    public ReentrantReadWriteLock latch() {
+	return latch;
+    }
+
+    /**
+     * @return {@code True} if any thread holds the node's latch
+     */
+    public boolean isLatched() {
+	return latch.isWriteLocked() || latch.getReadLockCount() > 0;
+    }
+
+    public boolean isOffHeap() {
+	return page != null;
+    }
+
+    // Where word j and link j start in an off-heap page
+    private int wordOffset( int j ) {
+	return 4 * format.MAX_KEYS + j * format.WORD_SIZE;
+    }
+    private int linkOffset( int j ) {
+	return 4 * format.MAX_KEYS + format.MAX_KEYS * format.WORD_SIZE
+	    + 4 * j;
+    }
+    // The UTF-8 length of word j in an off-heap page, which is padded with
+    // zeros
+    private int wordLength( int j ) {
+	int from = wordOffset( j );
+	int len = 0;
+	while( len < format.WORD_SIZE && page.get( from + len ) != 0 )
+	    len++;
+	return len;
+    }
+
+    public int numKeys() {
+	int size = 0;
+	for( int i = 0; i < format.MAX_KEYS ; i ++ ) {
+	    if( this.getFreq(i) != 0 )
+		size ++;
+	    else
+		break;
+	}
+	return size;
+    }
+
+    // ============================  Setters  ============================
+    
+    public Node setFreq( int j , int k ) {
+	if( page != null )
+	    page.putInt( 4 * j, k );
+	else
+	    frequencies[j] = k;
+	return this;
+    }
+    public Node setLink( int j , Node n ) {
+	if( page != null ) {
+	    page.putInt( linkOffset( j ), n == null ? -1 : n.ADDRESS );
+	    return this;
+	}
+	links[j] = ( n == null ? -1 : n.ADDRESS );
+	if( children != null )
+	    children[j] = n;
+	return this;
+    }
+    /**
+     * Points link {@code j} at the node stored at {@code addr} without
+     * loading it. Only meaningful for nodes backed by a page cache.
+     */
+    public Node setLinkAddress( int j , int addr ) {
+	if( page != null ) {
+	    page.putInt( linkOffset( j ), addr );
+	    return this;
+	}
+	links[j] = addr;
+	if( children != null )
+	    children[j] = null;
+	return this;
+    }
+    public Node setNextAddress( int addr ) {
+	if( page != null && format.LINKED )
+	    page.putInt( linkOffset( format.ORDER ), addr );
+	else
+	    next = addr;
+	return this;
+    }
+    /**
+     * @throws IllegalArgumentException if the node is off the heap and
+     * {@code str} is longer than a word may be
+     */
+    public Node setWord( int j, String str ) {
+	if( page == null ) {
+	    words[j] = str;
+	    return this;
+	}
+	byte[] wordBytes = ( str == null ? new byte[0]
+			     : str.getBytes( StandardCharsets.UTF_8 ) );
+	if( wordBytes.length > format.WORD_SIZE )
+	    throw new IllegalArgumentException( "\"" + str + "\" is longer "
+						+ "than " + format.WORD_SIZE
+						+ " bytes" );
+	int from = wordOffset( j );
+	page.put( from, wordBytes );
+	for( int i = wordBytes.length ; i < format.WORD_SIZE ; i++ )
+	    page.put( from + i, (byte) 0 );
+	return this;
+    }
+
+    public boolean set( int index , String word , int freq ) {
+	if( format.canAdd(word) ) {
+	    this.setWord( index , word );
+	    this.setFreq( index , freq );
+	    return true;
+	} else {
+	    return false;
+	}
+    }
+
+    /**
+     * @return whether {@code str} fits in a node of the default shape
+     */
+    public static boolean canAdd( String str ) {
+	byte[] bytes;
+	try {
+	    bytes = str.getBytes("UTF-8");
+	} catch (UnsupportedEncodingException e) {
+	    bytes = new byte[WORD_SIZE+1];
+	    e.printStackTrace();
+	}
+	return bytes.length <= WORD_SIZE ;
+    }
+
+    // ===========================  File I/O  ============================
+
+    public void writeToFile( String fileName ) {
+	try{
+	    RandomAccessFile outFile = new RandomAccessFile(fileName, "rw");
+	    this.writeToFile( outFile );
+	    outFile.close();
+	} catch( IOException e ) {
+	    e.printStackTrace();
+	}
+    }
+    
+    public void writeToFile( RandomAccessFile outFile ) throws IOException {
+	this.updateOnFile( 0, outFile );
+    }
+
+    /**
+     * Writes the node at {@code ADDRESS * SLOT_SIZE}, the way nodes are laid
+     * out in a file without a header.
+     * @param start ignored. The whole slot is always written, since a
+     * single write of it costs no more than a write of part of it.
+     */
+    public void updateOnFile( int start, RandomAccessFile outFile )
+	throws IOException {
+	// The whole node is encoded up front so that it reaches the file in a
+	// single write instead of one call per int and per padding byte
+	ByteBuffer buf = ByteBuffer.allocate( format.SLOT_SIZE );
+	this.writeTo( buf );
+	outFile.seek( (long) this.ADDRESS * format.SLOT_SIZE );
+	outFile.write( buf.array() );
+    }
+
+    /**
+     * Encodes the node into {@code buf} using the same layout as on file:
+     * the frequencies, then the zero-padded words, then the link addresses,
+     * then zeros up to the end of the slot. Slotted pages are laid out as
+     * described at {@link #writeSlotted}. Exactly {@code SLOT_SIZE} bytes
+     * are written at the buffer's position, ending with the page's checksum
+     * in a checksummed format.
+     */
+    public void writeTo( ByteBuffer buf ) {
+	int start = buf.position();
+	if( format.SLOTTED )
+	    writeSlotted( buf );
+	else
+	    writeFixed( buf );
+	while( buf.position() < start + format.SLOT_SIZE )
+	    buf.put( (byte) 0 );
+	format.seal( buf, start, ADDRESS );
+    }
+
+    private void writeFixed( ByteBuffer buf ) {
+	if( page != null ) {
+	    // Already laid out as it is on file
+	    buf.put( page.duplicate().clear() );
+	    return;
+	}
+	int MAX_KEYS = format.MAX_KEYS;
+	int WORD_SIZE = format.WORD_SIZE;
+	for( int i = 0 ; i < MAX_KEYS ; i++ )
+	    buf.putInt( frequencies[i] );
+	for( int i = 0 ; i < MAX_KEYS ; i++ ) {
+	    int written = 0;
+	    if( words[i] != null ) {
+		byte[] wordBytes = words[i].getBytes( StandardCharsets.UTF_8 );
+		buf.put( wordBytes );
+		written = wordBytes.length;
+	    }
+	    for( int j = written ; j < WORD_SIZE ; j++ )
+		buf.put( (byte) 0 );
+	}
+	for( int i = 0 ; i < format.ORDER ; i++ )
+	    buf.putInt( links[i] );
+	if( format.LINKED )
+	    buf.putInt( next );
+    }
+
+    /**
+     * Writes the number of words, the number of links and the length of the
+     * prefix the words share, then the prefix, the links, and a directory
+     * of where each word's entry starts. The entries, each a frequency, a
+     * length and the rest of the word, are packed in at the end of the
+     * page, before the next leaf's address in a linked format.
+     */
+    private void writeSlotted( ByteBuffer buf ) {
+	int start = buf.position();
+	int n = numKeys();
+	int numLinks = ( isLeaf() ? 0 : n + 1 );
+	byte[][] wordBytes = new byte[n][];
+	int total = 0;
+	for( int i = 0 ; i < n ; i++ ) {
+	    wordBytes[i] = words[i].getBytes( StandardCharsets.UTF_8 );
+	    total += wordBytes[i].length;
+	}
+	int prefix = ( n == 0 ? 0
+		       : NodeFormat.prefixLength( words[0], words[n - 1] ) );
+	if( NodeFormat.pageSize( n, total, prefix, numLinks > 0 )
+	    > format.PAGE_SPACE )
+	    throw new IllegalStateException( "Node " + ADDRESS
+					     + " doesn't fit in its page" );
+	buf.putShort( (short) n );
+	buf.putShort( (short) numLinks );
+	buf.putShort( (short) prefix );
+	if( n > 0 )
+	    buf.put( wordBytes[0], 0, prefix );
+	for( int i = 0 ; i < numLinks ; i++ )
+	    buf.putInt( links[i] );
+	int entries = format.PAGE_SPACE - ( total + n * ( 6 - prefix ) );
+	int offset = entries;
+	for( int i = 0 ; i < n ; i++ ) {
+	    buf.putShort( (short) offset );
+	    offset += 6 + wordBytes[i].length - prefix;
+	}
+	while( buf.position() < start + entries )
+	    buf.put( (byte) 0 );
+	for( int i = 0 ; i < n ; i++ ) {
+	    buf.putInt( frequencies[i] );
+	    buf.putShort( (short) ( wordBytes[i].length - prefix ) );
+	    buf.put( wordBytes[i], prefix, wordBytes[i].length - prefix );
+	}
+	if( format.LINKED )
+	    buf.putInt( next );
+    }
+
+    /**
+     * Decodes a node that was encoded with {@link #writeTo}. Links are only
+     * read as addresses; no children are loaded.
+     *
+     * @param pages the cache the node will look its children up in, whose
+     * nodes are all of the same shape
+     */
+    public static Node readFrom( int thisAddr, ByteBuffer buf,
+				 PageCache pages ) {
+	return readFrom( thisAddr, buf, pages.getFormat(), pages );
+    }
+
+    /**
+     * @param pages the cache the node will look its children up in, or
+     * {@code null} if it will hold its children itself
+     */
+    public static Node readFrom( int thisAddr, ByteBuffer buf,
+				 NodeFormat format, PageCache pages ) {
+	Node node = new Node( thisAddr, format, pages );
+	if( format.SLOTTED ) {
+	    node.readSlotted( buf );
+	    return node;
+	}
+	int MAX_KEYS = format.MAX_KEYS;
+	int WORD_SIZE = format.WORD_SIZE;
+	int start = buf.position();
+	if( node.page != null ) {
+	    node.page.put( 0, buf, start, format.NODE_SIZE );
+	    // Whatever follows the last word and its right link isn't used
+	    int numWords = node.numKeys();
+	    for( int i = numWords + 1 ; i < MAX_KEYS ; i++ )
+		node.setFreq( i, 0 );
+	    for( int i = numWords + 1 ; i < format.ORDER ; i++ )
+		node.setLinkAddress( i, -1 );
+	    buf.position( start + format.SLOT_SIZE );
+	    return node;
+	}
+	int numWords = MAX_KEYS;
+	for( int i = 0 ; i < MAX_KEYS ; i++ ) {
+	    node.frequencies[i] = buf.getInt();
+	    if( node.frequencies[i] == 0 ) {
+		numWords = i;
+		break;
+	    }
+	}
+	int wordStart = start + 4 * MAX_KEYS;
+	for( int i = 0 ; i < numWords ; i++ ) {
+	    int from = wordStart + i * WORD_SIZE;
+	    int len = 0;
+	    while( len < WORD_SIZE && buf.get( from + len ) != 0 )
+		len++;
+	    byte[] wordBytes = new byte[len];
+	    buf.position( from );
+	    buf.get( wordBytes );
+	    node.words[i] = new String( wordBytes, StandardCharsets.UTF_8 );
+	}
+	buf.position( wordStart + MAX_KEYS * WORD_SIZE );
+	for( int i = 0 ; i < format.ORDER ; i++ )
+	    node.links[i] = ( i <= numWords ? buf.getInt() : -1 );
+	if( format.LINKED )
+	    node.next = buf.getInt( start + format.NODE_SIZE - 4 );
+	buf.position( start + format.SLOT_SIZE );
+	return node;
+    }
+
+    private void readSlotted( ByteBuffer buf ) {
+	int start = buf.position();
+	int n = buf.getShort() & 0xffff;
+	int numLinks = buf.getShort() & 0xffff;
+	byte[] prefixBytes = new byte[buf.getShort() & 0xffff];
+	buf.get( prefixBytes );
+	String prefix = new String( prefixBytes, StandardCharsets.UTF_8 );
+	for( int i = 0 ; i < numLinks ; i++ )
+	    links[i] = buf.getInt();
+	for( int i = 0 ; i < n ; i++ ) {
+	    int entry = start + ( buf.getShort() & 0xffff );
+	    frequencies[i] = buf.getInt( entry );
+	    byte[] rest = new byte[buf.getShort( entry + 4 ) & 0xffff];
+	    for( int j = 0 ; j < rest.length ; j++ )
+		rest[j] = buf.get( entry + 6 + j );
+	    words[i] = prefix + new String( rest, StandardCharsets.UTF_8 );
+	}
+	if( format.LINKED )
+	    next = buf.getInt( start + format.PAGE_SPACE );
+	buf.position( start + format.SLOT_SIZE );
+    }
+    
+    /**
+     * Reads the node at {@code thisAddr} and, recursively, all of its
+     * children, from a file of default-shaped nodes without a header. The
+     * nodes that are returned aren't backed by a page cache.
+     */
+    public static Node readFromFile( int thisAddr , RandomAccessFile file )
+	throws IOException {
+	return readFromFile( thisAddr, file, NodeFormat.DEFAULT );
+    }
+
+    public static Node readFromFile( int thisAddr , RandomAccessFile file,
+				     NodeFormat format ) throws IOException {
+	
+	byte[] page = new byte[format.SLOT_SIZE];
+	file.seek( (long) thisAddr * format.SLOT_SIZE );
+	file.readFully( page );
+	Node node = Node.readFrom( thisAddr, ByteBuffer.wrap( page ), format,
+				   null );
+
+	// Read links from file
+	for( int i = 0 ; i < format.ORDER ; i++ ) {
+	    if( node.links[i] != -1 )
+		node.children[i] = Node.readFromFile( node.links[i], file,
+						      format );
+	}
+	return node;
+    }
+    
+    // ============================   Other   ============================
+    
+    /**
+     * A slotted page is also full once a word of the largest size, sharing
+     * nothing with the others, wouldn't fit. Adding any word to a node that
+     * isn't full never splits it.
+     */
+    public boolean isFull() {
+	if( getFreq( format.MAX_KEYS - 1 ) != 0 )
+	    return true;
+	return format.SLOTTED
+	    && NodeFormat.pageSize( numKeys() + 1,
+				    totalBytes() + format.WORD_SIZE, 0,
+				    ! isLeaf() ) > format.PAGE_SPACE;
+    }
+
+    /**
+     * @return whether {@code str} can be put in the node without splitting
+     * it
+     */
+    public boolean hasRoomFor( String str ) {
+	if( ! format.SLOTTED )
+	    return ! isFull();
+	int n = numKeys();
+	if( n == format.MAX_KEYS )
+	    return false;
+	String first = str, last = str;
+	if( n > 0 && words[0].compareTo( str ) < 0 )
+	    first = words[0];
+	if( n > 0 && words[n - 1].compareTo( str ) > 0 )
+	    last = words[n - 1];
+	int bytes = totalBytes() + NodeFormat.utf8Length( str, str.length() );
+	return NodeFormat.pageSize( n + 1, bytes,
+				    NodeFormat.prefixLength( first, last ),
+				    ! isLeaf() ) <= format.PAGE_SPACE;
+    }
+
+    /**
+     * A node other than the root is underfull once it holds fewer than half
+     * as many words as it can, or for a slotted page, once it fills less
+     * than a quarter of the page. Removing words merges an underfull node
+     * with a neighbour or evens them out.
+     */
+    public boolean isUnderfull() {
+	int n = numKeys();
+	if( ! format.SLOTTED )
+	    return n < format.MAX_KEYS / 2;
+	return n == 0 || pageSize( n ) < format.PAGE_SPACE / 4;
+    }
+
+    // How much of a slotted page the first n words take up
+    private int pageSize( int n ) {
+	return NodeFormat.pageSize( n, totalBytes(),
+				    n == 0 ? 0 : NodeFormat.prefixLength(
+					words[0], words[n - 1] ),
+				    ! isLeaf() );
+    }
+
+    // The UTF-8 length of all of the words together
+    private int totalBytes() {
+	int total = 0;
+	for( int i = 0 ; i < words.length && words[i] != null ; i++ )
+	    total += NodeFormat.utf8Length( words[i], words[i].length() );
+	return total;
+    }
+    public boolean isLeaf() {
+	return ( getLinkAddress( 0 ) == -1 );
+    }
+
+    /**
+     * @return {@code True} if the input string occurs as any entry within
+     * the node, {@code False} otherwise
+     */
+    public boolean contains( String str ) {
+	return indexOf( str ) != -1;
+    }
+
+    /**
+     * @return whether the node keeps the frequency of {@code str}. The
+     * internal nodes of a linked format only hold separators.
+     */
+    public boolean holds( String str ) {
+	return ( isLeaf() || ! format.LINKED ) && contains( str );
+    }
+
+    /**
+     * @return the link to follow to find {@code str} below the node. In a
+     * linked format words equal to a separator are to its right.
+     */
+    public int childIndex( String str ) {
+	int i = insertionPoint( str );
+	if( format.LINKED && i < format.MAX_KEYS && getFreq( i ) != 0
+	    && str.equals( getWord( i ) ) )
+	    i++;
+	return i;
+    }
+
+    /**
+     * @return the index of {@code str} within the node, or {@code -1} if
+     * it isn't there
+     */
+    public int indexOf( String str ) {
+	if( page != null ) {
+	    byte[] key = str.getBytes( StandardCharsets.UTF_8 );
+	    int i = insertionPoint( key );
+	    return ( i < format.MAX_KEYS && getFreq( i ) != 0
+		     && compareWord( i, key ) == 0 ) ? i : -1;
+	}
+	int i = insertionPoint( words, str );
+	return ( i < words.length && str.equals( words[i] ) ) ? i : -1;
+    }
+
+    /**
+     * @return the index that {@code str} belongs at: the number of words in
+     * the node that come before it
+     */
+    public int insertionPoint( String str ) {
+	if( page != null )
+	    return insertionPoint( str.getBytes( StandardCharsets.UTF_8 ) );
+	return insertionPoint( words, str );
+    }
+
+    // The same search over an off-heap page, comparing encoded words
+    private int insertionPoint( byte[] key ) {
+	int lo = 0;
+	int hi = format.MAX_KEYS;
+	while( lo < hi ) {
+	    int mid = ( lo + hi ) >>> 1;
+	    if( getFreq( mid ) != 0 && compareWord( mid, key ) < 0 )
+		lo = mid + 1;
+	    else
+		hi = mid;
+	}
+	return lo;
+    }
+
+    // Compares word j of an off-heap page with key, in the order of
+    // String.compareTo
+    private int compareWord( int j, byte[] key ) {
+	int from = wordOffset( j );
+	int len = wordLength( j );
+	for( int i = 0 ; i < len ; i++ ) {
+	    if( i == key.length )
+		return 1;
+	    int a = page.get( from + i ) & 0xff;
+	    int b = key[i] & 0xff;
+	    if( a != b )
+		return NodeFormat.utf16Order( a, b );
+	}
+	return len < key.length ? -1 : 0;
+    }
+
+    /**
+     * Binary search over sorted words, where the empty ({@code null}) slots
+     * at the end count as coming after every word. Nothing is allocated.
+     * @return the number of words in {@code words} that come before
+     * {@code str}
+     */
+    public static int insertionPoint( String[] words, String str ) {
+	int lo = 0;
+	int hi = words.length;
+	while( lo < hi ) {
+	    int mid = ( lo + hi ) >>> 1;
+	    if( words[mid] != null && words[mid].compareTo( str ) < 0 )
+		lo = mid + 1;
+	    else
+		hi = mid;
+	}
+	return lo;
+    }
+
+    /**
+     * makes everything to the right of {@code splitpoint} get shifted one slot
+     * to the right, leaving the stuff at {@code splitpoint} empty
+     */
+    public void shiftRight( int splitPoint ) {
+	if( page != null ) {
+	    // Each of the three runs moves over by one entry in a single copy
+	    int moved = format.MAX_KEYS - 1 - splitPoint;
+	    if( moved > 0 ) {
+		move( 4 * splitPoint, 4 * moved, 4 );
+		move( wordOffset( splitPoint ), format.WORD_SIZE * moved,
+		      format.WORD_SIZE );
+	    }
+	    if( format.ORDER - 1 - splitPoint > 0 )
+		move( linkOffset( splitPoint ),
+		      4 * ( format.ORDER - 1 - splitPoint ), 4 );
+	    return;
+	}
+	for( int i = format.MAX_KEYS-1 ; i > splitPoint ; i -- ) {
+	    words[i] = words[i-1];
+	    frequencies[i] = frequencies[i-1];
+	}
+	for( int i = format.ORDER-1 ; i > splitPoint ; i -- ) {
+	    links[i] = links[i-1];
+	    if( children != null )
+		children[i] = children[i-1];
+	}
+    }
+    
+    /**
+     * Takes out the word at {@code index} and the link to its right, moving
+     * everything after them one slot to the left and leaving the last slot
+     * empty. Undoes {@link #shiftRight}.
+     */
+    public void shiftLeft( int index ) {
+	int last = format.MAX_KEYS - 1;
+	if( page != null ) {
+	    int moved = last - index;
+	    if( moved > 0 ) {
+		move( 4 * ( index + 1 ), 4 * moved, -4 );
+		move( wordOffset( index + 1 ), format.WORD_SIZE * moved,
+		      - format.WORD_SIZE );
+	    }
+	    if( format.ORDER - 2 - index > 0 )
+		move( linkOffset( index + 2 ),
+		      4 * ( format.ORDER - 2 - index ), -4 );
+	    setWord( last, null );
+	    setFreq( last, 0 );
+	    setLinkAddress( format.ORDER - 1, -1 );
+	    return;
+	}
+	for( int i = index ; i < last ; i++ ) {
+	    words[i] = words[i+1];
+	    frequencies[i] = frequencies[i+1];
+	}
+	words[last] = null;
+	frequencies[last] = 0;
+	for( int i = index + 1 ; i < format.ORDER - 1 ; i++ ) {
+	    links[i] = links[i+1];
+	    if( children != null )
+		children[i] = children[i+1];
+	}
+	setLinkAddress( format.ORDER - 1, -1 );
+    }
+
+    /**
+     * Empties every slot from word {@code from} and the link to its right
+     * onwards
+     */
+    public void clear( int from ) {
+	for( int i = from ; i < format.MAX_KEYS ; i++ ) {
+	    setWord( i, null );
+	    setFreq( i, 0 );
+	}
+	for( int i = from + 1 ; i < format.ORDER ; i++ )
+	    setLinkAddress( i, -1 );
+    }
+
+    // Copies length bytes of an off-heap page from from to from + by, which
+    // may be negative
+    private void move( int from, int length, int by ) {
+	byte[] run = new byte[length];
+	page.get( from, run );
+	page.put( from + by, run );
+    }
+    
+    public void printNode() {
+    	System.out.print( "Node " + ADDRESS );
+    	for( int i = 0; i < format.MAX_KEYS ; i++ )
+    	    System.out.println( i +  ")  (x" + this.getFreq(i) + ")  "
+    				+ (this.getWord(i)==null?"":this.getWord(i)));
+    	System.out.print("\n");
+    }
+
+    public Iterator<SimpleImmutableEntry<String,Integer>> iterator() {
+    	LinkedList<SimpleImmutableEntry<String,Integer>> list
+	    = new LinkedList<SimpleImmutableEntry<String,Integer>>();
+	for( int i = 0 ; i < format.MAX_KEYS ; i++ ) {
+	    if( this.getFreq( i ) > 0 )
+		list.add(new SimpleImmutableEntry<String,Integer>(
+							  this.getWord(i),
+							  this.getFreq(i)));
+	    else
+		break;
+	}
+	return list.iterator();
+    }
+}
@@ -0,0 +1,584 @@
+package btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * The shape of the nodes in one tree file: how many links a node has, how
+ * many bytes each word may take, and how much room each node is given on
+ * file.
+ *
+ * Nodes are either laid out with every word padded to {@code WORD_SIZE}
+ * bytes, or as slotted pages. A slotted page stores the prefix that all of
+ * its words share once, followed by each word's remainder at its own
+ * length, so a node holds as many words as fit in its slot rather than a
+ * fixed number.
+ *
+ * Either layout can be linked, making the tree a B+-tree: every word and
+ * its frequency is kept in a leaf, each leaf links to the next one, and
+ * internal nodes only hold separators, which are as short as they can be
+ * while still falling between the leaves either side of them. Scans then
+ * read leaves one after another without going back up the tree, and
+ * slotted internal pages fit more of the shorter separators.
+ *
+ * Either layout can also be checksummed: the last four bytes of every slot
+ * hold a CRC32C of the rest of it and of the node's address, so a page that
+ * was damaged, or written in the wrong place, is caught when it's read
+ * instead of being taken for a node.
+ *
+ * Files start with a header that records the format, followed by the
+ * tree's {@link Superblock}, and the header takes up the first slot so that
+ * nodes stay aligned to their slot size. Files
+ * written before there was a header hold nodes of the default shape from
+ * the first byte; they're still read and written in that layout.
+ */
+public class NodeFormat {
+    // Files without a header start with a frequency, which is never
+    // negative, so a magic number with the top bit set can't be mistaken
+    // for one
+    public static final int MAGIC = 0xB7EEF11E;
+    public static final int VERSION = 4;
+    // The format's part of the header, which is all that versions 1 and 2
+    // had
+    private static final int FORMAT_SIZE = 24;
+    public static final int HEADER_SIZE = FORMAT_SIZE + Superblock.SIZE;
+    public static final int MIN_ORDER = 3;
+    // The layouts recorded in the header
+    private static final int FIXED_LAYOUT = 0;
+    private static final int SLOTTED_LAYOUT = 1;
+    // Added to the layout for linked and checksummed formats
+    private static final int LINKED_FLAG = 2;
+    private static final int CHECKSUM_FLAG = 4;
+
+    /**
+     * Bytes at the start of a slotted page: the number of words, the number
+     * of links and the length of the shared prefix, as unsigned shorts
+     */
+    public static final int PAGE_HEADER_SIZE = 6;
+    /**
+     * Bytes each word of a slotted page takes besides its remainder: its
+     * directory entry, its frequency and the remainder's length
+     */
+    public static final int ENTRY_SIZE = 8;
+
+    /** The shape of files written before the header existed */
+    public static final NodeFormat LEGACY
+	= new NodeFormat( Node.ORDER, Node.WORD_SIZE, Node.NODE_SIZE, false );
+    /** The shape given to new trees unless another one is asked for */
+    public static final NodeFormat DEFAULT
+	= new NodeFormat( Node.ORDER, Node.WORD_SIZE );
+
+    public final int ORDER;
+    public final int MAX_KEYS;
+    public final int WORD_SIZE;
+    /** The number of bytes a node's data takes up */
+    public final int NODE_SIZE;
+    /** The number of bytes each node is given on file */
+    public final int SLOT_SIZE;
+    public final boolean HAS_HEADER;
+    public final boolean SLOTTED;
+    /** Whether leaves hold every word and link to the next leaf */
+    public final boolean LINKED;
+    /** Whether every slot ends with a checksum of the page */
+    public final boolean CHECKSUMMED;
+    /**
+     * The bytes of a slotted page that its words, links and directory may
+     * fill: all of the slot, apart from the next leaf's address at the end
+     * of a linked page and the checksum after it
+     */
+    public final int PAGE_SPACE;
+
+    /**
+     * Nodes smaller than the header are given slots as big as the header
+     */
+    public NodeFormat( int order, int wordSize ) {
+	this( order, wordSize, Math.max( nodeSize( order, wordSize ),
+					 HEADER_SIZE ), true, false );
+    }
+
+    /**
+     * @param slotSize how many bytes each node is given on file, which may
+     * be more than its data needs so that nodes line up with disk pages
+     */
+    public NodeFormat( int order, int wordSize, int slotSize ) {
+	this( order, wordSize, slotSize, true, false );
+    }
+
+    private NodeFormat( int order, int wordSize, int slotSize,
+			boolean hasHeader ) {
+	this( order, wordSize, slotSize, hasHeader, false );
+    }
+
+    private NodeFormat( int order, int wordSize, int slotSize,
+			boolean hasHeader, boolean slotted ) {
+	this( order, wordSize, slotSize, hasHeader, slotted, false );
+    }
+
+    private NodeFormat( int order, int wordSize, int slotSize,
+			boolean hasHeader, boolean slotted, boolean linked ) {
+	this( order, wordSize, slotSize, hasHeader, slotted, linked, false );
+    }
+
+    private NodeFormat( int order, int wordSize, int slotSize,
+			boolean hasHeader, boolean slotted, boolean linked,
+			boolean checksummed ) {
+	if( order < MIN_ORDER )
+	    throw new IllegalArgumentException( "Order " + order + " is less"
+						+ " than " + MIN_ORDER );
+	if( wordSize < 1 )
+	    throw new IllegalArgumentException( "Word size " + wordSize
+						+ " is less than 1" );
+	ORDER = order;
+	MAX_KEYS = order - 1;
+	WORD_SIZE = wordSize;
+	SLOTTED = slotted;
+	LINKED = linked;
+	CHECKSUMMED = checksummed;
+	// A slotted page is only ever filled as far as its slot. Fixed nodes
+	// keep the next leaf's address after their links, and the checksum
+	// always takes the last four bytes of the slot.
+	NODE_SIZE = slotted ? slotSize
+	    : nodeSize( order, wordSize ) + ( linked ? 4 : 0 );
+	PAGE_SPACE = slotSize - ( linked ? 4 : 0 ) - ( checksummed ? 4 : 0 );
+	if( slotSize < NODE_SIZE + ( checksummed && ! slotted ? 4 : 0 )
+	    || ( hasHeader && slotSize < HEADER_SIZE ) )
+	    throw new IllegalArgumentException( "A slot of " + slotSize
+						+ " bytes is too small" );
+	// Splitting a full page has to leave two halves that fit
+	if( slotted && ( slotSize > 0xffff
+			 || wordSize > maxSlottedWordSize( PAGE_SPACE ) ) )
+	    throw new IllegalArgumentException( wordSize + "-byte words don't"
+						+ " suit a slotted page of "
+						+ slotSize + " bytes" );
+	SLOT_SIZE = slotSize;
+	HAS_HEADER = hasHeader;
+    }
+
+    /**
+     * @return a format of slotted pages of {@code pageSize} bytes, taking
+     * words of up to a quarter of the page
+     */
+    public static NodeFormat slotted( int pageSize ) {
+	// The most words fit when every one is the shared prefix, leaving
+	// only its entry and a link
+	int order = ( pageSize - PAGE_HEADER_SIZE - 4 ) / ( ENTRY_SIZE + 4 );
+	order++;
+	return new NodeFormat( order, maxSlottedWordSize( pageSize ),
+			       pageSize, true, true );
+    }
+
+    // Four of the largest words, with their links, fit in one page
+    private static int maxSlottedWordSize( int pageSize ) {
+	return ( pageSize - PAGE_HEADER_SIZE - 4 ) / 4 - ENTRY_SIZE - 4;
+    }
+
+    /**
+     * @return the same format with linked leaves. Fixed nodes are given
+     * room for the link if their slot is full; slotted pages take it out of
+     * the page, which may make the largest word a few bytes shorter.
+     */
+    public NodeFormat linked() {
+	if( LINKED )
+	    return this;
+	if( SLOTTED )
+	    return new NodeFormat( ORDER, Math.min( WORD_SIZE,
+						    maxSlottedWordSize(
+							PAGE_SPACE - 4 ) ),
+				   SLOT_SIZE, HAS_HEADER, true, true,
+				   CHECKSUMMED );
+	return new NodeFormat( ORDER, WORD_SIZE,
+			       Math.max( SLOT_SIZE, NODE_SIZE + 4
+					 + ( CHECKSUMMED ? 4 : 0 ) ),
+			       HAS_HEADER, false, true, CHECKSUMMED );
+    }
+
+    /**
+     * @return the same format with a checksum at the end of every slot.
+     * Like the next leaf's address, it's given room in fixed slots that are
+     * full and taken out of slotted pages.
+     * @throws IllegalStateException if the format has no header, since
+     * files without one can't record it
+     */
+    public NodeFormat checksummed() {
+	if( CHECKSUMMED )
+	    return this;
+	if( ! HAS_HEADER )
+	    throw new IllegalStateException( "Files without a header can't be"
+					     + " checksummed" );
+	if( SLOTTED )
+	    return new NodeFormat( ORDER, Math.min( WORD_SIZE,
+						    maxSlottedWordSize(
+							PAGE_SPACE - 4 ) ),
+				   SLOT_SIZE, true, true, LINKED, true );
+	return new NodeFormat( ORDER, WORD_SIZE,
+			       Math.max( SLOT_SIZE, NODE_SIZE + 4 ),
+			       true, false, LINKED, true );
+    }
+
+    /**
+     * @return the format with the highest order whose nodes fit in
+     * {@code pageSize} bytes, with every node given a whole page
+     */
+    public static NodeFormat forPageSize( int pageSize, int wordSize ) {
+	// (order-1) words, (order-1) frequencies and order links
+	int order = ( pageSize + wordSize + 4 ) / ( wordSize + 8 );
+	return new NodeFormat( order, wordSize, pageSize );
+    }
+
+    public static int nodeSize( int order, int wordSize ) {
+	return ( order - 1 ) * wordSize + 4 * ( ( order - 1 ) + order );
+    }
+
+    /**
+     * @return where the node at {@code addr} starts on file
+     */
+    public long offset( int addr ) {
+	return ( HAS_HEADER ? SLOT_SIZE : 0 ) + (long) addr * SLOT_SIZE;
+    }
+
+    /**
+     * @return the number of whole nodes that fit in a file of
+     * {@code fileSize} bytes
+     */
+    public int numSlots( long fileSize ) {
+	long data = fileSize - ( HAS_HEADER ? SLOT_SIZE : 0 );
+	return data <= 0 ? 0 : (int) ( data / SLOT_SIZE );
+    }
+
+    // =============================  Checksums  ===========================
+
+    /**
+     * Puts the checksum of the page that starts at {@code start} at the end
+     * of its slot. Does nothing if the format isn't checksummed.
+     */
+    public void seal( ByteBuffer buf, int start, int addr ) {
+	if( CHECKSUMMED )
+	    buf.putInt( start + SLOT_SIZE - 4, checksum( buf, start, addr ) );
+    }
+
+    /**
+     * @return whether the page that starts at {@code start} matches the
+     * checksum at the end of its slot. Pages of a format without checksums
+     * always do.
+     */
+    public boolean checkPage( ByteBuffer buf, int start, int addr ) {
+	return ! CHECKSUMMED
+	    || buf.getInt( start + SLOT_SIZE - 4 ) == checksum( buf, start,
+								 addr );
+    }
+
+    // Covers the address too, so a page written in the wrong place fails
+    private int checksum( ByteBuffer buf, int start, int addr ) {
+	CRC32C crc = new CRC32C();
+	crc.update( addr >>> 24 );
+	crc.update( addr >>> 16 );
+	crc.update( addr >>> 8 );
+	crc.update( addr );
+	ByteBuffer page = buf.duplicate();
+	page.limit( start + SLOT_SIZE - 4 ).position( start );
+	crc.update( page );
+	return (int) crc.getValue();
+    }
+
+    public boolean canAdd( String str ) {
+	return str.getBytes( StandardCharsets.UTF_8 ).length <= WORD_SIZE;
+    }
+
+    // ==========================  Slotted pages  ==========================
+
+    /**
+     * @return the number of bytes a slotted page takes
+     * @param count      the number of words on the page
+     * @param totalBytes the UTF-8 length of all of the words together
+     * @param prefix     the length of the prefix they share
+     * @param internal   whether the page has links
+     */
+    public static int pageSize( int count, int totalBytes, int prefix,
+				boolean internal ) {
+	return PAGE_HEADER_SIZE + prefix + ( internal ? 4 * ( count + 1 ) : 0 )
+	    + count * ( ENTRY_SIZE - prefix ) + totalBytes;
+    }
+
+    /**
+     * @return the UTF-8 length of the prefix shared by every word from
+     * {@code first} to {@code last}, which stops short of splitting a
+     * character
+     */
+    public static int prefixLength( String first, String last ) {
+	int n = Math.min( first.length(), last.length() );
+	int i = 0;
+	while( i < n && first.charAt( i ) == last.charAt( i ) )
+	    i++;
+	if( i > 0 && Character.isHighSurrogate( first.charAt( i - 1 ) ) )
+	    i--;
+	return utf8Length( first, i );
+    }
+
+    /**
+     * @return the UTF-8 length of the first {@code end} chars of {@code str}
+     */
+    public static int utf8Length( String str, int end ) {
+	int len = 0;
+	for( int i = 0 ; i < end ; i++ ) {
+	    char c = str.charAt( i );
+	    if( c < 0x80 )
+		len += 1;
+	    else if( c < 0x800 )
+		len += 2;
+	    else if( ! Character.isSurrogate( c ) )
+		len += 3;
+	    else if( Character.isHighSurrogate( c ) && i + 1 < end
+		     && Character.isLowSurrogate( str.charAt( i + 1 ) ) ) {
+		len += 4;
+		i++;
+	    } else
+		// Encoded as '?'
+		len += 1;
+	}
+	return len;
+    }
+
+    /**
+     * @return where to split {@code count} sorted words that don't fit in
+     * one node: how many go to the left node, with the next one moving up
+     * to the parent and the rest going to the right node
+     */
+    public int splitPoint( String[] words, int count, boolean internal ) {
+	if( ! SLOTTED )
+	    return ( count - 1 ) / 2;
+	int[] before = new int[count + 1];
+	for( int i = 0 ; i < count ; i++ )
+	    before[i + 1] = before[i] + utf8Length( words[i],
+						    words[i].length() );
+	// The split whose larger side is smallest. Putting the new word in
+	// the parent leaves two parts of a page that fitted, so there's
+	// always one that fits.
+	int best = -1;
+	int bestSize = Integer.MAX_VALUE;
+	for( int m = 1 ; m < count - 1 ; m++ ) {
+	    int left = pageSize( m, before[m],
+				 prefixLength( words[0], words[m - 1] ),
+				 internal );
+	    int right = pageSize( count - m - 1, before[count] - before[m + 1],
+				  prefixLength( words[m + 1], words[count-1] ),
+				  internal );
+	    int size = Math.max( left, right );
+	    if( size < bestSize ) {
+		best = m;
+		bestSize = size;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * @return where to split {@code count} sorted words between two leaves
+     * of a linked format, which keep every word: how many go to the left
+     * one
+     */
+    public int leafSplitPoint( String[] words, int count ) {
+	if( ! SLOTTED )
+	    return count / 2;
+	int[] before = new int[count + 1];
+	for( int i = 0 ; i < count ; i++ )
+	    before[i + 1] = before[i] + utf8Length( words[i],
+						    words[i].length() );
+	int best = 1;
+	int bestSize = Integer.MAX_VALUE;
+	for( int m = 1 ; m < count ; m++ ) {
+	    int left = pageSize( m, before[m],
+				 prefixLength( words[0], words[m - 1] ),
+				 false );
+	    int right = pageSize( count - m, before[count] - before[m],
+				  prefixLength( words[m], words[count - 1] ),
+				  false );
+	    int size = Math.max( left, right );
+	    if( size < bestSize ) {
+		best = m;
+		bestSize = size;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * @return the shortest word that comes after {@code left} but not after
+     * {@code right}, to go between two leaves of a linked format: the part
+     * of {@code right} up to and including the first character where they
+     * differ
+     */
+    public static String separator( String left, String right ) {
+	int i = 0;
+	while( i < left.length() && left.charAt( i ) == right.charAt( i ) )
+	    i++;
+	int end = i + 1;
+	if( Character.isHighSurrogate( right.charAt( i ) )
+	    && end < right.length() )
+	    end++;
+	return right.substring( 0, end );
+    }
+
+    /**
+     * @return whether {@code count} sorted words fit in one node
+     */
+    public boolean fits( String[] words, int count, boolean internal ) {
+	if( count > MAX_KEYS )
+	    return false;
+	if( ! SLOTTED || count == 0 )
+	    return true;
+	int total = 0;
+	for( int i = 0 ; i < count ; i++ )
+	    total += utf8Length( words[i], words[i].length() );
+	return pageSize( count, total, prefixLength( words[0], words[count-1] ),
+			 internal ) <= PAGE_SPACE;
+    }
+
+    /**
+     * UTF-8 bytes sort by code point, but {@code String} sorts by UTF-16
+     * unit, which puts supplementary characters (lead bytes 0xF0 and up)
+     * before U+E000 to U+FFFF (lead bytes 0xEE and 0xEF). Both bytes are at
+     * the same position of identical prefixes, so if they're both lead bytes
+     * this is the only case where the two orders disagree.
+     */
+    static int utf16Order( int a, int b ) {
+	if( a >= 0xf0 && ( b == 0xee || b == 0xef ) )
+	    return -1;
+	if( b >= 0xf0 && ( a == 0xee || a == 0xef ) )
+	    return 1;
+	return a - b;
+    }
+
+    // ============================  Header  =============================
+
+    /**
+     * @return the header of a file in this format holding the tree that
+     * {@code sb} describes, or {@code null} for files without a header
+     */
+    public ByteBuffer header( Superblock sb ) {
+	if( ! HAS_HEADER )
+	    return null;
+	ByteBuffer buf = ByteBuffer.allocate( HEADER_SIZE );
+	buf.putInt( MAGIC );
+	buf.putInt( VERSION );
+	buf.putInt( ORDER );
+	buf.putInt( WORD_SIZE );
+	buf.putInt( SLOT_SIZE );
+	buf.putInt( ( SLOTTED ? SLOTTED_LAYOUT : FIXED_LAYOUT )
+		    + ( LINKED ? LINKED_FLAG : 0 )
+		    + ( CHECKSUMMED ? CHECKSUM_FLAG : 0 ) );
+	sb.writeTo( buf );
+	return buf;
+    }
+
+    /**
+     * Writes the header into the first slot of the file. Does nothing for
+     * files without a header.
+     */
+    public void writeHeader( FileChannel channel, Superblock sb )
+	throws IOException {
+	ByteBuffer buf = header( sb );
+	if( buf == null )
+	    return;
+	buf.flip();
+	long pos = 0;
+	while( buf.hasRemaining() )
+	    pos += channel.write( buf, pos );
+    }
+
+    /**
+     * @return the format recorded at the start of the file, {@code LEGACY}
+     * if the file has no header, or {@code null} if the file is empty
+     */
+    public static NodeFormat readHeader( FileChannel channel )
+	throws IOException {
+	if( channel.size() == 0 )
+	    return null;
+	ByteBuffer buf = ByteBuffer.allocate( FORMAT_SIZE );
+	while( buf.hasRemaining() )
+	    if( channel.read( buf, buf.position() ) < 0 )
+		break;
+	buf.flip();
+	if( buf.remaining() < 4 || buf.getInt( 0 ) != MAGIC )
+	    return LEGACY;
+	if( buf.remaining() < 8 )
+	    throw new IOException( "The file's header is cut short" );
+	buf.getInt();
+	int version = buf.getInt();
+	if( version > VERSION )
+	    throw new IOException( "Unsupported tree file version " + version );
+	// Version 1 headers had no layout, since every node was fixed
+	if( buf.remaining() < ( version == 1 ? 12 : 16 ) )
+	    throw new IOException( "The file's header is cut short" );
+	int order = buf.getInt();
+	int wordSize = buf.getInt();
+	int slotSize = buf.getInt();
+	int layout = ( version == 1 ? FIXED_LAYOUT : buf.getInt() );
+	boolean linked = ( layout & LINKED_FLAG ) != 0;
+	boolean checksummed = ( layout & CHECKSUM_FLAG ) != 0;
+	layout &= ~( LINKED_FLAG | CHECKSUM_FLAG );
+	if( layout != FIXED_LAYOUT && layout != SLOTTED_LAYOUT )
+	    throw new IOException( "Unknown node layout " + layout );
+	try {
+	    return new NodeFormat( order, wordSize, slotSize, true,
+				   layout == SLOTTED_LAYOUT, linked,
+				   checksummed );
+	} catch ( IllegalArgumentException e ) {
+	    throw new IOException( "Bad header: " + e.getMessage() );
+	}
+    }
+
+    /**
+     * Reads the superblock that follows the format in the header into
+     * {@code sb}
+     * @return whether there was one. Files from before version 3 don't
+     * have one.
+     */
+    public static boolean readSuperblock( FileChannel channel, Superblock sb )
+	throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate( HEADER_SIZE );
+	while( buf.hasRemaining() )
+	    if( channel.read( buf, buf.position() ) < 0 )
+		break;
+	buf.flip();
+	if( buf.remaining() < FORMAT_SIZE || buf.getInt( 0 ) != MAGIC
+	    || buf.getInt( 4 ) < 3 )
+	    return false;
+	// Version 3 had no free list
+	int size = FORMAT_SIZE
+	    + ( buf.getInt( 4 ) == 3 ? 24 : Superblock.SIZE );
+	if( buf.remaining() < size )
+	    return false;
+	buf.limit( size );
+	buf.position( FORMAT_SIZE );
+	sb.readFrom( buf );
+	return true;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+	if( ! ( o instanceof NodeFormat ) )
+	    return false;
+	NodeFormat f = (NodeFormat) o;
+	return ORDER == f.ORDER && WORD_SIZE == f.WORD_SIZE
+	    && SLOT_SIZE == f.SLOT_SIZE && HAS_HEADER == f.HAS_HEADER
+	    && SLOTTED == f.SLOTTED && LINKED == f.LINKED
+	    && CHECKSUMMED == f.CHECKSUMMED;
+    }
+
+    @Override
+    public int hashCode() {
+	return ( ORDER * 31 + WORD_SIZE ) * 31 + SLOT_SIZE;
+    }
+
+    @Override
+    public String toString() {
+	return ( SLOTTED ? "slotted, " : "" ) + ( LINKED ? "linked, " : "" )
+	    + ( CHECKSUMMED ? "checksummed, " : "" )
+	    + "order " + ORDER + ", "
+	    + WORD_SIZE + "-byte words, " + SLOT_SIZE + "-byte slots"
+	    + ( HAS_HEADER ? "" : ", no header" );
+    }
+}
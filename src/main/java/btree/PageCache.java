@@ -0,0 +1,714 @@
+package btree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a single file handle open for the lifetime of a tree, looks nodes up
+ * by address and buffers modified nodes until they are written back in
+ * address order. Every method is synchronized, so one cache can be shared by
+ * several threads, except that nodes are read from the file outside the
+ * lock: a thread that misses waits only for the node it asked for, and
+ * threads that miss on the same node share one read.
+ *
+ * All the nodes in one file have the same {@link NodeFormat}, which new
+ * files are given when the cache is made and existing files record in their
+ * header.
+ *
+ * Nodes can be kept off the heap, each in a slice of direct memory laid out
+ * as it is on file, so that a large tree doesn't fill the heap with an
+ * object for every word. The slices are cut from slabs of
+ * {@code PAGES_PER_SLAB} nodes, which are freed once none of their nodes
+ * are in use.
+ *
+ * With a {@link WriteAheadLog} attached, modified nodes are only written back
+ * when asked, as a checkpoint through the log, and are never dropped before
+ * then.
+ *
+ * Nodes can also be read on a small pool of I/O threads, either to hand
+ * back through a future or ahead of time so they're loaded by the time
+ * they're asked for.
+ */
+public class PageCache implements AutoCloseable {
+    public static final long DEFAULT_CACHE_BYTES = 1024L * Node.NODE_SIZE;
+    /**
+     * Rough amount of heap taken up by a cached node of the default shape:
+     * the page itself plus the {@code String} objects and arrays it is
+     * decoded into
+     */
+    public static final int NODE_HEAP_SIZE = 2 * Node.NODE_SIZE;
+    /**
+     * The address the header is logged under, since its slot comes just
+     * before the first node's
+     */
+    public static final int HEADER_ADDRESS = -1;
+    public static final int PAGES_PER_SLAB = 64;
+    /** How many threads read nodes in the background */
+    public static final int IO_THREADS = 4;
+    public final String FILEPATH;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long cacheBytes;
+    private final boolean lazy;
+    private final boolean offHeap;
+    // The direct memory that off-heap pages are being cut from
+    private ByteBuffer slab;
+    private NodeFormat format;
+    private boolean headerWritten;
+    private final Superblock superblock = new Superblock();
+    private int dirtyCapacity;
+    private int nodeCapacity;
+    // The loaded nodes that match the file, least recently used first
+    private final LinkedHashMap<Integer,Node> nodes;
+    // The modified nodes, which are kept apart from the others until
+    // they're written back so that eviction never has to pass over them.
+    // Sorted by address so that a write-back touches the file sequentially
+    // and neighbouring nodes can go out in a single write.
+    private final TreeMap<Integer,Node> dirty;
+    private WriteAheadLog log;
+    // Started the first time a node is read in the background
+    private ExecutorService io;
+    private volatile TreeMetrics metrics;
+    private long hits;
+    private long misses;
+    // The reads under way, by address
+    private final HashMap<Integer,Load> loading = new HashMap<Integer,Load>();
+
+    // A read of one node, which every thread that misses on it waits for
+    private static class Load {
+	final CompletableFuture<Node> future = new CompletableFuture<Node>();
+	// Set once a thread has taken on the read. A read queued for an I/O
+	// thread can be taken on by a thread that misses on it first, so
+	// that no one waits for the pool.
+	boolean claimed;
+	// Set when the node may have changed on file since the read started
+	boolean stale;
+	// Set when it may have changed since the read was asked for, which
+	// unlike stale stays set when the read starts again
+	boolean invalidated;
+    }
+
+    /**
+     * @param cacheBytes the most memory that modified nodes may take up
+     * before they are written back to the file
+     * @param lazy if {@code true} then {@code cacheBytes} also bounds how
+     * many loaded nodes are kept, and the least recently used ones are
+     * dropped once it is reached. Otherwise every node stays in memory.
+     */
+    public PageCache( String fPath, long cacheBytes, boolean lazy )
+	throws IOException {
+	this( fPath, NodeFormat.DEFAULT, cacheBytes, lazy );
+    }
+
+    /**
+     * @param format the shape of the nodes that are written until
+     * {@link #readFormat} finds another one on file
+     */
+    public PageCache( String fPath, NodeFormat format, long cacheBytes,
+		      boolean lazy ) throws IOException {
+	this( fPath, format, cacheBytes, lazy, false );
+    }
+
+    /**
+     * @param offHeap whether to keep nodes in direct memory instead of as
+     * strings and arrays. Only fixed-width formats can be kept off the heap.
+     * @throws IllegalArgumentException if {@code offHeap} is asked for with
+     * a slotted format
+     */
+    public PageCache( String fPath, NodeFormat format, long cacheBytes,
+		      boolean lazy, boolean offHeap ) throws IOException {
+	FILEPATH = fPath;
+	this.cacheBytes = cacheBytes;
+	this.lazy = lazy;
+	this.offHeap = offHeap;
+	nodes = new LinkedHashMap<Integer,Node>( 16, 0.75f, true );
+	dirty = new TreeMap<Integer,Node>();
+	setFormat( format );
+	file = new RandomAccessFile( fPath, "rw" );
+	channel = file.getChannel();
+    }
+
+    public RandomAccessFile getFile() {
+	return file;
+    }
+
+    public boolean isLazy() {
+	return lazy;
+    }
+
+    public boolean isOffHeap() {
+	return offHeap;
+    }
+
+    /**
+     * @return zeroed direct memory for one node of the current format
+     */
+    public synchronized ByteBuffer allocatePage() {
+	int size = format.NODE_SIZE;
+	if( slab == null || slab.remaining() < size )
+	    slab = ByteBuffer.allocateDirect( PAGES_PER_SLAB * size );
+	ByteBuffer page = slab.slice( slab.position(), size );
+	slab.position( slab.position() + size );
+	return page;
+    }
+
+    public synchronized NodeFormat getFormat() {
+	return format;
+    }
+
+    /**
+     * Switches to nodes of another shape. The cache has to be empty, since
+     * the nodes in it are of the old shape.
+     * @throws IllegalArgumentException if nodes are kept off the heap and
+     * {@code format} is slotted
+     */
+    public synchronized void setFormat( NodeFormat format ) {
+	if( ! nodes.isEmpty() || ! dirty.isEmpty() )
+	    throw new IllegalStateException( "Nodes of the old format are "
+					     + "still cached" );
+	if( offHeap && format.SLOTTED )
+	    throw new IllegalArgumentException( "Slotted pages can't be kept"
+						+ " off the heap" );
+	invalidate( Integer.MIN_VALUE, Integer.MAX_VALUE );
+	this.format = format;
+	headerWritten = false;
+	slab = null;
+	dirtyCapacity = (int) Math.max( 1, cacheBytes / format.SLOT_SIZE );
+	if( lazy )
+	    nodeCapacity = (int) Math.max( 2, cacheBytes
+					   / ( 2 * format.SLOT_SIZE ) );
+	else
+	    nodeCapacity = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reads the format recorded in the file and switches to it. An empty
+     * file keeps the current format.
+     * @return the format now in use
+     */
+    public synchronized NodeFormat readFormat() throws IOException {
+	NodeFormat onFile = NodeFormat.readHeader( channel );
+	if( offHeap && onFile != null && onFile.SLOTTED )
+	    throw new IOException( FILEPATH + " has slotted pages, which can't"
+				   + " be kept off the heap" );
+	if( onFile != null && ! onFile.equals( format ) ) {
+	    clear();
+	    setFormat( onFile );
+	}
+	// The header is already there
+	headerWritten = ( onFile != null );
+	return format;
+    }
+
+    /**
+     * @return the superblock that goes out with the header. It describes
+     * the tree being built until {@link #readSuperblock} reads the one on
+     * file.
+     */
+    public Superblock getSuperblock() {
+	return superblock;
+    }
+
+    /**
+     * Reads the superblock on file into {@link #getSuperblock}
+     * @return whether the file has one
+     */
+    public synchronized boolean readSuperblock() throws IOException {
+	return NodeFormat.readSuperblock( channel, superblock );
+    }
+
+    /**
+     * Makes every write-back a checkpoint through {@code log}. Nodes that
+     * are modified aren't written until {@link #flush} is called, which the
+     * owner should do once {@link #needsFlush} says so, between operations
+     * rather than part way through one.
+     */
+    public synchronized void setLog( WriteAheadLog log ) {
+	this.log = log;
+    }
+
+    /**
+     * @return whether as many nodes have changed as the cache should hold
+     */
+    public synchronized boolean needsFlush() {
+	return dirty.size() >= dirtyCapacity;
+    }
+
+    public synchronized int numDirty() {
+	return dirty.size();
+    }
+
+    public synchronized int numCached() {
+	return nodes.size() + dirty.size();
+    }
+
+    /**
+     * @param metrics where to count node reads and writes, or {@code null}
+     */
+    public void setMetrics( TreeMetrics metrics ) {
+	this.metrics = metrics;
+    }
+
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    /**
+     * @return the number of whole nodes that fit in the file
+     */
+    public synchronized int numPages() throws IOException {
+	return format.numSlots( channel.size() );
+    }
+
+    /**
+     * @return the node at {@code addr}, reading it from the file if it isn't
+     * loaded
+     */
+    public Node get( int addr ) {
+	Load l;
+	boolean mine = false;
+	synchronized( this ) {
+	    Node n = cached( addr );
+	    if( n != null ) {
+		hits++;
+		return n;
+	    }
+	    misses++;
+	    l = loading.get( addr );
+	    if( l == null )
+		l = startLoad( addr );
+	    if( ! l.claimed ) {
+		l.claimed = true;
+		mine = true;
+	    }
+	}
+	if( mine )
+	    load( addr, l );
+	return await( l.future );
+    }
+
+    /**
+     * @return the node at {@code addr}, straight away if it's loaded and
+     * otherwise once an I/O thread has read it
+     */
+    public CompletableFuture<Node> getAsync( final int addr ) {
+	final Load l;
+	synchronized( this ) {
+	    Node n = cached( addr );
+	    if( n != null ) {
+		hits++;
+		return CompletableFuture.completedFuture( n );
+	    }
+	    misses++;
+	    Load under = loading.get( addr );
+	    if( under != null )
+		return under.future;
+	    l = startLoad( addr );
+	}
+	getExecutor().execute( new Runnable() {
+		public void run() {
+		    if( claim( l ) )
+			load( addr, l );
+		}
+	    } );
+	return l.future;
+    }
+
+    /**
+     * Starts reading the node at {@code addr} on an I/O thread if it isn't
+     * loaded. Addresses that are {@code -1} or past the end of the file are
+     * ignored, and so are reads that fail because the node has since
+     * changed or been cut off the end of the file.
+     */
+    public void prefetch( final int addr ) {
+	final Load l;
+	synchronized( this ) {
+	    try {
+		if( addr == -1 || cached( addr ) != null
+		    || loading.containsKey( addr ) || addr >= numPages() )
+		    return;
+	    } catch ( IOException e ) {
+		e.printStackTrace();
+		return;
+	    }
+	    l = startLoad( addr );
+	}
+	getExecutor().execute( new Runnable() {
+		public void run() {
+		    if( ! claim( l ) )
+			return;
+		    Exception e = load( addr, l );
+		    if( e != null && ! outdated( addr, l ) )
+			e.printStackTrace();
+		}
+	    } );
+    }
+
+    // Called with the lock held
+    private Node cached( int addr ) {
+	Node n = nodes.get( addr );
+	return ( n != null ) ? n : dirty.get( addr );
+    }
+
+    /**
+     * @return whether a read that failed was of a node that has since
+     * changed or been cut off the end of the file, so that no one needs to
+     * hear about it
+     */
+    private synchronized boolean outdated( int addr, Load l ) {
+	try {
+	    return l.invalidated || addr >= numPages();
+	} catch ( IOException e ) {
+	    return false;
+	}
+    }
+
+    private synchronized boolean claim( Load l ) {
+	if( l.claimed )
+	    return false;
+	l.claimed = true;
+	return true;
+    }
+
+    // Called with the lock held
+    private Load startLoad( int addr ) {
+	Load l = new Load();
+	loading.put( addr, l );
+	return l;
+    }
+
+    /**
+     * Reads the node at {@code addr} without holding the lock, then takes
+     * it only to put the node in the cache. If the node was put in the cache
+     * some other way meanwhile, that copy wins; if it may have been written
+     * to the file meanwhile, it's read again.
+     * @return what went wrong, which the future is also completed with, or
+     * {@code null}
+     */
+    private Exception load( int addr, Load l ) {
+	try {
+	    Node n;
+	    while( true ) {
+		NodeFormat f;
+		synchronized( this ) {
+		    f = format;
+		    l.stale = false;
+		}
+		TreeMetrics m = metrics;
+		if( m != null )
+		    m.nodeRead();
+		n = Node.readFrom( addr, read( f, addr ), f, this );
+		synchronized( this ) {
+		    Node cached = cached( addr );
+		    if( cached == null && l.stale )
+			continue;
+		    loading.remove( addr, l );
+		    if( cached != null )
+			n = cached;
+		    else {
+			nodes.put( addr, n );
+			evict();
+		    }
+		}
+		break;
+	    }
+	    l.future.complete( n );
+	    return null;
+	} catch ( IOException | RuntimeException e ) {
+	    synchronized( this ) {
+		loading.remove( addr, l );
+	    }
+	    l.future.completeExceptionally( e );
+	    return e;
+	}
+    }
+
+    private static Node await( CompletableFuture<Node> future ) {
+	try {
+	    return future.join();
+	} catch ( CompletionException e ) {
+	    Throwable cause = e.getCause();
+	    if( cause instanceof IOException )
+		throw new UncheckedIOException( (IOException) cause );
+	    if( cause instanceof RuntimeException )
+		throw (RuntimeException) cause;
+	    throw e;
+	}
+    }
+
+    /**
+     * Marks the reads of nodes from {@code from} up to {@code to} as stale,
+     * since those nodes may have changed. Called with the lock held.
+     */
+    private void invalidate( int from, int to ) {
+	if( loading.isEmpty() )
+	    return;
+	for( Map.Entry<Integer,Load> e : loading.entrySet() )
+	    if( e.getKey() >= from && e.getKey() < to ) {
+		e.getValue().stale = true;
+		e.getValue().invalidated = true;
+	    }
+    }
+
+    /**
+     * @return the pool of threads that read nodes in the background
+     */
+    public synchronized Executor getExecutor() {
+	if( io == null )
+	    io = Executors.newFixedThreadPool( IO_THREADS, new ThreadFactory() {
+		    public Thread newThread( Runnable r ) {
+			Thread t = new Thread( r, "PageCache I/O " + FILEPATH );
+			t.setDaemon( true );
+			return t;
+		    }
+		} );
+	return io;
+    }
+
+    /**
+     * Reads the page at {@code addr} and checks it. Doesn't take the lock.
+     */
+    ByteBuffer read( NodeFormat format, int addr ) throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate( format.SLOT_SIZE );
+	long pos = format.offset( addr );
+	while( buf.hasRemaining() ) {
+	    int n = channel.read( buf, pos + buf.position() );
+	    if( n < 0 )
+		throw new EOFException( "No node at address " + addr
+					+ " in " + FILEPATH );
+	}
+	buf.flip();
+	if( ! format.checkPage( buf, 0, addr ) )
+	    throw new IOException( "The node at address " + addr + " in "
+				   + FILEPATH + " doesn't match its checksum" );
+	return buf;
+    }
+
+    /**
+     * Adds a node that was created in memory to the cache without marking
+     * it as modified
+     */
+    public synchronized void put( Node n ) throws IOException {
+	invalidate( n.ADDRESS, n.ADDRESS + 1 );
+	if( dirty.containsKey( n.ADDRESS ) ) {
+	    dirty.put( n.ADDRESS, n );
+	    return;
+	}
+	nodes.put( n.ADDRESS, n );
+	evict();
+    }
+
+    /**
+     * Puts {@code n} back in the cache if it was dropped after it was looked
+     * up. A thread that is about to change a node calls this once it holds
+     * the node's latch, so that the next thread to look the node up finds
+     * the same copy instead of reading a new one from the file.
+     */
+    public synchronized void reattach( Node n ) throws IOException {
+	if( cached( n.ADDRESS ) == null ) {
+	    invalidate( n.ADDRESS, n.ADDRESS + 1 );
+	    nodes.put( n.ADDRESS, n );
+	    evict();
+	}
+    }
+
+    /**
+     * Records that {@code n} has changed and has to be written back. If too
+     * many nodes have changed, and there's no log, then they're all written
+     * back first.
+     */
+    public synchronized void markDirty( Node n ) throws IOException {
+	invalidate( n.ADDRESS, n.ADDRESS + 1 );
+	nodes.remove( n.ADDRESS );
+	dirty.put( n.ADDRESS, n );
+	if( log == null && dirty.size() >= dirtyCapacity )
+	    flush();
+	evict();
+    }
+
+    /**
+     * Drops least recently used nodes until the cache is within its budget.
+     * Only nodes that match the file are looked at, since a modified node
+     * can't be dropped before it's written. If that isn't enough then
+     * without a log every modified node is written back in a single batch,
+     * after which they can go too; with a log they wait for the next
+     * checkpoint. Nodes that another thread has latched are kept, so that no
+     * two copies of a node can be latched at once.
+     */
+    private void evict() throws IOException {
+	Iterator<Node> iter = nodes.values().iterator();
+	while( nodes.size() + dirty.size() > nodeCapacity && iter.hasNext() )
+	    if( ! iter.next().isLatched() )
+		iter.remove();
+	if( log == null && ! dirty.isEmpty()
+	    && nodes.size() + dirty.size() > nodeCapacity )
+	    flush();
+    }
+
+    /**
+     * Forgets every node and cuts the file down to {@code numPages} nodes
+     */
+    public synchronized void truncate( int numPages ) throws IOException {
+	clear();
+	channel.truncate( format.offset( numPages ) );
+	headerWritten = false;
+    }
+
+    /**
+     * Writes back every modified node, then forgets the nodes from
+     * {@code numPages} on and cuts the file down to {@code numPages} nodes
+     */
+    public synchronized void shrink( int numPages ) throws IOException {
+	flush();
+	invalidate( numPages, Integer.MAX_VALUE );
+	Iterator<Integer> iter = nodes.keySet().iterator();
+	while( iter.hasNext() )
+	    if( iter.next() >= numPages )
+		iter.remove();
+	channel.truncate( format.offset( numPages ) );
+    }
+
+    /**
+     * Forgets every loaded node without writing anything
+     */
+    public synchronized void clear() {
+	invalidate( Integer.MIN_VALUE, Integer.MAX_VALUE );
+	nodes.clear();
+	dirty.clear();
+    }
+
+    /**
+     * Writes every dirty node back to the file, followed by the header if
+     * the superblock has changed. Runs of consecutive addresses are encoded
+     * into one buffer and written with a single call.
+     *
+     * With a log this is a checkpoint: the nodes and header are copied into
+     * the log first, and once they're on disk in the file the log is
+     * emptied.
+     */
+    public synchronized void flush() throws IOException {
+	ByteBuffer header = null;
+	if( superblock.isChanged() )
+	    header = format.header( superblock );
+	if( dirty.isEmpty() && header == null ) {
+	    // Anything still logged is already in the file, or was replaced
+	    if( log != null && ! log.isEmpty() ) {
+		channel.force( true );
+		log.checkpointed();
+	    }
+	    return;
+	}
+	if( log != null )
+	    log.logPages( dirty.values(), header );
+	ByteBuffer buf = ByteBuffer.allocate( dirty.size() * format.SLOT_SIZE );
+	int runStart = -1;
+	int next = -1;
+	for( Map.Entry<Integer,Node> e : dirty.entrySet() ) {
+	    int addr = e.getKey();
+	    if( addr != next ) {
+		writePages( buf, runStart );
+		runStart = addr;
+	    }
+	    e.getValue().writeTo( buf );
+	    next = addr + 1;
+	}
+	writePages( buf, runStart );
+	// They match the file now, so they can be dropped like any other
+	nodes.putAll( dirty );
+	dirty.clear();
+	if( header != null ) {
+	    headerWritten = true;
+	    header.flip();
+	    TreeMetrics m = metrics;
+	    if( m != null )
+		m.written( 0, header.remaining() );
+	    long pos = 0;
+	    while( header.hasRemaining() )
+		pos += channel.write( header, pos );
+	}
+	if( log != null ) {
+	    channel.force( true );
+	    log.checkpointed();
+	}
+	evict();
+    }
+
+    /**
+     * Waits until everything written to the file is on disk
+     */
+    public synchronized void force() throws IOException {
+	channel.force( true );
+    }
+
+    /**
+     * Writes the nodes encoded in {@code buf}, up to its position, to the
+     * file starting at {@code startAddr}, then clears the buffer. The nodes
+     * don't pass through the cache. The file's header goes out with the
+     * first write.
+     */
+    public synchronized void writePages( ByteBuffer buf, int startAddr )
+	throws IOException {
+	if( buf.position() == 0 )
+	    return;
+	if( ! headerWritten ) {
+	    format.writeHeader( channel, superblock );
+	    headerWritten = true;
+	}
+	buf.flip();
+	int count = buf.remaining() / format.SLOT_SIZE;
+	invalidate( startAddr, startAddr + count );
+	TreeMetrics m = metrics;
+	if( m != null )
+	    m.written( count, buf.remaining() );
+	long pos = format.offset( startAddr );
+	while( buf.hasRemaining() )
+	    pos += channel.write( buf, pos );
+	buf.clear();
+    }
+
+    /**
+     * Lets any reads already started finish before the file is closed
+     */
+    public void close() throws IOException {
+	ExecutorService pool;
+	synchronized( this ) {
+	    pool = io;
+	    io = null;
+	}
+	if( pool != null ) {
+	    pool.shutdown();
+	    try {
+		pool.awaitTermination( 1, TimeUnit.MINUTES );
+	    } catch ( InterruptedException e ) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	synchronized( this ) {
+	    try {
+		flush();
+	    } finally {
+		file.close();
+	    }
+	}
+    }
+}
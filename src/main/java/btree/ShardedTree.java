@@ -0,0 +1,387 @@
+package btree;
+
+import java.io.File;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Spreads words over several trees, each in its own file with its own
+ * thread adding to it, so adds can use as many cores and disks as there are
+ * shards.
+ *
+ * A word's shard comes from its hash, or with {@code bounds}, from the range
+ * it falls in. Adds are queued for the shard's thread, and wait only while
+ * the queue is full, so they're applied a little after {@link #add}
+ * returns; {@link #flush} waits until every add before it has been applied.
+ * Lookups go straight to the word's shard, which is a
+ * {@link ConcurrentTree} so it can be read while its thread adds to it.
+ * Walking every word merges the shards' walks in order.
+ */
+public class ShardedTree
+    implements Iterable<SimpleImmutableEntry<String,Integer>>, AutoCloseable {
+    /** How many adds each shard's queue holds before adds wait */
+    public static final int QUEUE_CAPACITY = 16 * 1024;
+    // How many adds a shard's thread takes off its queue at once
+    private static final int DRAIN_BATCH = 1024;
+    // Put on a queue to stop its thread. It's compared by identity, so no
+    // word can be mistaken for it.
+    private static final String STOP = new String( "stop" );
+
+    public final String BASE_PATH;
+    private final Shard[] shards;
+    // The first word of each shard after the first, or null to hash
+    private final String[] bounds;
+
+    private static class Shard {
+	final ConcurrentTree tree;
+	final ArrayBlockingQueue<String> queue
+	    = new ArrayBlockingQueue<String>( QUEUE_CAPACITY );
+	final Thread writer;
+	// Adds counted in and applied so far, guarded by the shard. An add
+	// is counted before it's queued, so that a flush can't see it applied
+	// before it's counted, and one that never reaches the queue counts as
+	// applied.
+	long queued;
+	long applied;
+
+	Shard( ConcurrentTree tree, String name ) {
+	    this.tree = tree;
+	    writer = new Thread( name ) {
+		    public void run() {
+			write();
+		    }
+		};
+	    writer.setDaemon( true );
+	}
+
+	// Run by the shard's thread until it's stopped
+	void write() {
+	    List<String> batch = new ArrayList<String>( DRAIN_BATCH );
+	    while( true ) {
+		try {
+		    batch.add( queue.take() );
+		} catch ( InterruptedException e ) {
+		    return;
+		}
+		queue.drainTo( batch, DRAIN_BATCH - 1 );
+		boolean stop = false;
+		for( String str : batch ) {
+		    if( str == STOP ) {
+			stop = true;
+			continue;
+		    }
+		    try {
+			tree.add( str );
+		    } catch ( RuntimeException e ) {
+			e.printStackTrace();
+		    }
+		}
+		synchronized( this ) {
+		    applied += ( stop ? batch.size() - 1 : batch.size() );
+		    notifyAll();
+		}
+		batch.clear();
+		if( stop )
+		    return;
+	    }
+	}
+
+	void put( String str ) throws InterruptedException {
+	    synchronized( this ) {
+		queued++;
+	    }
+	    try {
+		queue.put( str );
+	    } catch ( InterruptedException e ) {
+		synchronized( this ) {
+		    applied++;
+		    notifyAll();
+		}
+		throw e;
+	    }
+	}
+
+	// Waits until the adds queued so far have been applied
+	synchronized void await() throws InterruptedException {
+	    long target = queued;
+	    while( applied < target )
+		wait();
+	}
+    }
+
+    /**
+     * Hashes words over {@code numShards} trees of the default format
+     */
+    public ShardedTree( String basePath, int numShards ) {
+	this( basePath, numShards, null, NodeFormat.DEFAULT,
+	      PageCache.DEFAULT_CACHE_BYTES, false );
+    }
+
+    /**
+     * Splits words into ranges, one for each shard. Words before
+     * {@code bounds[0]} go in the first shard, words from {@code bounds[i]}
+     * up to {@code bounds[i+1]} go in shard {@code i+1}, and so on.
+     */
+    public ShardedTree( String basePath, String[] bounds ) {
+	this( basePath, bounds.length + 1, bounds, NodeFormat.DEFAULT,
+	      PageCache.DEFAULT_CACHE_BYTES, false );
+    }
+
+    /**
+     * Shard {@code i} is kept in {@code basePath + "." + i}, and reopening
+     * the same files with the same number of shards and bounds finds the
+     * same words.
+     * @param bounds the ranges of the shards, or {@code null} to hash
+     * @param cacheBytes the page cache size of each shard
+     * @throws IllegalArgumentException if {@code bounds} isn't sorted or
+     * doesn't have one fewer word than there are shards
+     */
+    public ShardedTree( String basePath, int numShards, String[] bounds,
+			NodeFormat format, long cacheBytes, boolean lazy ) {
+	if( numShards <= 0 )
+	    throw new IllegalArgumentException( "Shard count " + numShards
+						+ " isn't positive" );
+	if( bounds != null ) {
+	    if( bounds.length != numShards - 1 )
+		throw new IllegalArgumentException( bounds.length
+						    + " bounds for "
+						    + numShards + " shards" );
+	    for( int i = 1 ; i < bounds.length ; i++ )
+		if( bounds[i - 1].compareTo( bounds[i] ) >= 0 )
+		    throw new IllegalArgumentException( "Bounds aren't in "
+							+ "order" );
+	    bounds = bounds.clone();
+	}
+	BASE_PATH = basePath;
+	this.bounds = bounds;
+	shards = new Shard[numShards];
+	for( int i = 0 ; i < numShards ; i++ ) {
+	    String path = basePath + "." + i;
+	    ConcurrentTree tree = new ConcurrentTree( path, format, cacheBytes,
+						      lazy );
+	    if( new File( path ).length() > 0 )
+		tree.readFromFile();
+	    shards[i] = new Shard( tree, "ShardedTree writer " + path );
+	    shards[i].writer.start();
+	}
+    }
+
+    public int numShards() {
+	return shards.length;
+    }
+
+    /**
+     * @return the tree that holds shard {@code i}. Words should only be
+     * added to it through the sharded tree.
+     */
+    public Tree getShard( int i ) {
+	return shards[i].tree;
+    }
+
+    /**
+     * @return which shard {@code str} belongs in
+     */
+    public int shardOf( String str ) {
+	if( bounds != null ) {
+	    int i = Arrays.binarySearch( bounds, str );
+	    return ( i >= 0 ? i + 1 : -i - 1 );
+	}
+	int h = str.hashCode();
+	return Math.floorMod( h ^ ( h >>> 16 ), shards.length );
+    }
+
+    /**
+     * Queues {@code str} to be added to its shard, waiting if the shard is
+     * behind. If the thread is interrupted while waiting, the word isn't
+     * added and the thread is left interrupted.
+     */
+    public ShardedTree add( String str ) {
+	try {
+	    shards[shardOf( str )].put( str );
+	} catch ( InterruptedException e ) {
+	    Thread.currentThread().interrupt();
+	}
+	return this;
+    }
+
+    public ShardedTree addAll( Iterable<String> c ) {
+	for( String str : c )
+	    add( str );
+	return this;
+    }
+
+    public boolean contains( String str ) {
+	return getFrequency( str ) != 0;
+    }
+
+    /**
+     * @return how many times {@code str} has been added, counting the adds
+     * that its shard has applied
+     */
+    public int getFrequency( String str ) {
+	return shards[shardOf( str )].tree.getFrequency( str );
+    }
+
+    public long size() {
+	long size = 0;
+	for( Shard s : shards )
+	    size += s.tree.size();
+	return size;
+    }
+
+    public long totalFrequency() {
+	long total = 0;
+	for( Shard s : shards )
+	    total += s.tree.totalFrequency();
+	return total;
+    }
+
+    /**
+     * Waits for every add queued so far to be applied, then writes every
+     * shard back to its file
+     */
+    public void flush() {
+	try {
+	    for( Shard s : shards )
+		s.await();
+	} catch ( InterruptedException e ) {
+	    Thread.currentThread().interrupt();
+	    return;
+	}
+	for( Shard s : shards )
+	    s.tree.flush();
+    }
+
+    /**
+     * Applies every queued add, stops the shards' threads and closes their
+     * trees. If the thread is interrupted first, the shards whose threads
+     * are still running are left open, since closing them would lose the
+     * adds still queued.
+     */
+    public void close() {
+	for( Shard s : shards ) {
+	    try {
+		s.queue.put( STOP );
+	    } catch ( InterruptedException e ) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	for( Shard s : shards ) {
+	    try {
+		s.writer.join();
+	    } catch ( InterruptedException e ) {
+		Thread.currentThread().interrupt();
+	    }
+	    if( s.writer.isAlive() ) {
+		System.err.println( "Error: " + s.tree.FILEPATH + " wasn't "
+				    + "closed because its adds are still "
+				    + "being applied." );
+		continue;
+	    }
+	    s.tree.close();
+	}
+    }
+
+    /**
+     * Every word of every shard, in order. Each shard is walked as
+     * {@link ConcurrentTree#iterator} walks it, so adds being applied at the
+     * same time may or may not be seen.
+     */
+    public Iterator<SimpleImmutableEntry<String,Integer>> iterator() {
+	return range( null, null ).iterator();
+    }
+
+    /**
+     * @return the words from {@code from} up to but not including
+     * {@code to}, where {@code null} leaves that end open
+     */
+    public Iterable<SimpleImmutableEntry<String,Integer>> range(
+	final String from, final String to ) {
+	return new Iterable<SimpleImmutableEntry<String,Integer>>() {
+	    public Iterator<SimpleImmutableEntry<String,Integer>> iterator() {
+		List<Iterator<SimpleImmutableEntry<String,Integer>>> iters
+		    = new ArrayList<Iterator<SimpleImmutableEntry<String,
+								  Integer>>>();
+		for( Shard s : shards )
+		    iters.add( s.tree.range( from, to ).iterator() );
+		return merge( iters );
+	    }
+	};
+    }
+
+    /**
+     * @return the words that start with {@code prefix}, in order
+     */
+    public Iterable<SimpleImmutableEntry<String,Integer>> prefixScan(
+	String prefix ) {
+	return range( prefix, Tree.prefixEnd( prefix ) );
+    }
+
+    /**
+     * @return the {@code k} most frequent words that start with
+     * {@code prefix}, as {@link Tree#topKByPrefix} finds them. No word is
+     * in two shards, so the best {@code k} of every shard's best {@code k}
+     * are the best overall.
+     */
+    public List<SimpleImmutableEntry<String,Integer>> topKByPrefix(
+	String prefix, int k ) {
+	List<SimpleImmutableEntry<String,Integer>> best
+	    = new ArrayList<SimpleImmutableEntry<String,Integer>>();
+	for( Shard s : shards )
+	    best.addAll( s.tree.topKByPrefix( prefix, k ) );
+	Collections.sort( best, TopKCache.BEST_FIRST );
+	return best.subList( 0, Math.min( k, best.size() ) );
+    }
+
+    // The next word of one of the iterators being merged
+    private static class Head {
+	final SimpleImmutableEntry<String,Integer> entry;
+	final int index;
+
+	Head( SimpleImmutableEntry<String,Integer> entry, int index ) {
+	    this.entry = entry;
+	    this.index = index;
+	}
+    }
+
+    /**
+     * Merges iterators that each visit words in order, and no two of which
+     * have a word in common, into one that visits all their words in order
+     */
+    static Iterator<SimpleImmutableEntry<String,Integer>> merge(
+	final List<Iterator<SimpleImmutableEntry<String,Integer>>> iters ) {
+	final PriorityQueue<Head> heads = new PriorityQueue<Head>(
+	    Math.max( 1, iters.size() ), new Comparator<Head>() {
+		    public int compare( Head a, Head b ) {
+			return a.entry.getKey().compareTo( b.entry.getKey() );
+		    }
+		} );
+	for( int i = 0 ; i < iters.size() ; i++ )
+	    if( iters.get(i).hasNext() )
+		heads.add( new Head( iters.get(i).next(), i ) );
+	return new Iterator<SimpleImmutableEntry<String,Integer>>() {
+	    public boolean hasNext() {
+		return ! heads.isEmpty();
+	    }
+
+	    public SimpleImmutableEntry<String,Integer> next() {
+		if( heads.isEmpty() )
+		    throw new NoSuchElementException();
+		Head head = heads.poll();
+		Iterator<SimpleImmutableEntry<String,Integer>> iter
+		    = iters.get( head.index );
+		if( iter.hasNext() )
+		    heads.add( new Head( iter.next(), head.index ) );
+		return head.entry;
+	    }
+	};
+    }
+}
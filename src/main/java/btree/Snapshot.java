@@ -0,0 +1,340 @@
+package btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/**
+ * A compact copy of a tree's words and frequencies, for moving a tree
+ * between hosts or keeping it somewhere. Unlike the tree's file it holds
+ * no nodes or links, only the words in order, so it doesn't depend on the
+ * node format and is loaded back with a bottom-up build.
+ *
+ * After a header the words come in blocks. Each block is its number of
+ * words, the length of its body, the body, and a CRC32C of all three. In
+ * the body each word is the number of bytes it shares with the word before
+ * it in the block, the length and bytes of the rest of it, and its
+ * frequency, all but the bytes as varints. A last block with no words holds
+ * the number of words and their total frequency, so a snapshot that was
+ * cut short is noticed too.
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x42545331;
+    /** How many bytes of words a block holds before the next one starts */
+    public static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // No block is anywhere near this long, so a length that is comes from
+    // damage, and isn't allocated
+    private static final int MAX_BLOCK = 64 * 1024 * 1024;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes words, which have to be added in strictly increasing order
+     * with positive frequencies, as a snapshot
+     */
+    public static class Writer implements AutoCloseable {
+	private final DataOutputStream out;
+	private final ByteArrayOutputStream block
+	    = new ByteArrayOutputStream( BLOCK_SIZE + 1024 );
+	private int blockWords;
+	private byte[] last;
+	private String lastWord;
+	private long keys;
+	private long total;
+	private boolean finished;
+
+	public Writer( String path ) throws IOException {
+	    this( new FileOutputStream( path ) );
+	}
+
+	public Writer( OutputStream out ) throws IOException {
+	    this.out = new DataOutputStream(
+		new BufferedOutputStream( out, BUFFER_SIZE ) );
+	    this.out.writeInt( MAGIC );
+	}
+
+	/**
+	 * @throws IllegalArgumentException if {@code word} doesn't come after
+	 * the word before it or {@code freq} isn't positive
+	 */
+	public void add( String word, int freq ) throws IOException {
+	    if( freq <= 0 )
+		throw new IllegalArgumentException( "Frequency " + freq
+						    + " of \"" + word
+						    + "\" isn't positive" );
+	    if( lastWord != null && lastWord.compareTo( word ) >= 0 )
+		throw new IllegalArgumentException( "\"" + word
+						    + "\" doesn't come after \""
+						    + lastWord + "\"" );
+	    byte[] bytes = word.getBytes( StandardCharsets.UTF_8 );
+	    int shared = 0;
+	    if( last != null ) {
+		int max = Math.min( last.length, bytes.length );
+		while( shared < max && last[shared] == bytes[shared] )
+		    shared++;
+	    }
+	    putVarint( block, shared );
+	    putVarint( block, bytes.length - shared );
+	    block.write( bytes, shared, bytes.length - shared );
+	    putVarint( block, freq );
+	    blockWords++;
+	    last = bytes;
+	    lastWord = word;
+	    keys++;
+	    total += freq;
+	    if( block.size() >= BLOCK_SIZE )
+		writeBlock();
+	}
+
+	private void writeBlock() throws IOException {
+	    Snapshot.writeBlock( out, blockWords, block );
+	    block.reset();
+	    blockWords = 0;
+	    // Every block starts over, so each can be read by itself
+	    last = null;
+	}
+
+	public long getKeys() {
+	    return keys;
+	}
+
+	/**
+	 * Writes the last block and closes the stream
+	 */
+	public void close() throws IOException {
+	    if( finished )
+		return;
+	    finished = true;
+	    try {
+		if( blockWords > 0 )
+		    writeBlock();
+		putVarlong( block, keys );
+		putVarlong( block, total );
+		Snapshot.writeBlock( out, 0, block );
+		block.reset();
+	    } finally {
+		out.close();
+	    }
+	}
+    }
+
+    private static void writeBlock( DataOutputStream out, int words,
+				    ByteArrayOutputStream body )
+	throws IOException {
+	byte[] bytes = body.toByteArray();
+	CRC32C crc = new CRC32C();
+	crc.update( words >>> 24 );
+	crc.update( words >>> 16 );
+	crc.update( words >>> 8 );
+	crc.update( words );
+	crc.update( bytes );
+	out.writeInt( words );
+	out.writeInt( bytes.length );
+	out.write( bytes );
+	out.writeInt( (int) crc.getValue() );
+    }
+
+    /**
+     * Reads the words of a snapshot back in order, checking each block as
+     * it comes to it. A block that doesn't match its checksum, or a
+     * snapshot that ends before its last block, ends the walk with an
+     * {@link UncheckedIOException}.
+     */
+    public static class Reader
+	implements Iterator<SimpleImmutableEntry<String,Integer>>,
+		   AutoCloseable {
+	private final DataInputStream in;
+	private byte[] body = new byte[0];
+	private int pos;
+	private int limit;
+	private int wordsLeft;
+	private byte[] last = new byte[0];
+	private int lastLength;
+	private int numBlocks;
+	private long keys;
+	private long total;
+	private boolean done;
+
+	public Reader( String path ) throws IOException {
+	    this( new FileInputStream( path ) );
+	}
+
+	/**
+	 * @throws IOException if the stream doesn't start with a snapshot
+	 * header
+	 */
+	public Reader( InputStream in ) throws IOException {
+	    this.in = new DataInputStream(
+		new BufferedInputStream( in, BUFFER_SIZE ) );
+	    int magic;
+	    try {
+		magic = this.in.readInt();
+	    } catch ( EOFException e ) {
+		magic = 0;
+	    }
+	    if( magic != MAGIC ) {
+		this.in.close();
+		throw new IOException( "Not a snapshot" );
+	    }
+	}
+
+	public boolean hasNext() {
+	    try {
+		while( wordsLeft == 0 && ! done )
+		    readBlock();
+	    } catch ( IOException e ) {
+		throw new UncheckedIOException( e );
+	    }
+	    return ! done;
+	}
+
+	public SimpleImmutableEntry<String,Integer> next() {
+	    if( ! hasNext() )
+		throw new NoSuchElementException();
+	    int shared = getVarint();
+	    int rest = getVarint();
+	    if( shared > lastLength || rest < 0 || rest > limit - pos )
+		throw new UncheckedIOException(
+		    new IOException( "Bad word in block " + numBlocks ) );
+	    if( last.length < shared + rest ) {
+		byte[] grown = new byte[Math.max( shared + rest,
+						  2 * last.length )];
+		System.arraycopy( last, 0, grown, 0, shared );
+		last = grown;
+	    }
+	    System.arraycopy( body, pos, last, shared, rest );
+	    pos += rest;
+	    lastLength = shared + rest;
+	    String word = new String( last, 0, lastLength,
+				      StandardCharsets.UTF_8 );
+	    int freq = getVarint();
+	    if( freq <= 0 )
+		throw new UncheckedIOException(
+		    new IOException( "Bad frequency in block " + numBlocks ) );
+	    wordsLeft--;
+	    keys++;
+	    total += freq;
+	    return new SimpleImmutableEntry<String,Integer>( word, freq );
+	}
+
+	private void readBlock() throws IOException {
+	    int words;
+	    int length;
+	    try {
+		words = in.readInt();
+		length = in.readInt();
+		if( words < 0 || length < 0 || length > MAX_BLOCK )
+		    throw new IOException( "Bad header on block "
+					   + numBlocks );
+		if( body.length < length )
+		    body = new byte[length];
+		in.readFully( body, 0, length );
+		CRC32C crc = new CRC32C();
+		crc.update( words >>> 24 );
+		crc.update( words >>> 16 );
+		crc.update( words >>> 8 );
+		crc.update( words );
+		crc.update( body, 0, length );
+		if( in.readInt() != (int) crc.getValue() )
+		    throw new IOException( "Block " + numBlocks
+					   + " doesn't match its checksum" );
+	    } catch ( EOFException e ) {
+		throw new IOException( "Snapshot ends in block " + numBlocks,
+				       e );
+	    }
+	    numBlocks++;
+	    pos = 0;
+	    limit = length;
+	    lastLength = 0;
+	    if( words > 0 ) {
+		wordsLeft = words;
+		return;
+	    }
+	    // The last block, which the words read have to agree with
+	    long expectedKeys = getVarlong();
+	    long expectedTotal = getVarlong();
+	    if( expectedKeys != keys || expectedTotal != total )
+		throw new IOException( "Snapshot has " + keys + " words of "
+				       + total + " adds, but should have "
+				       + expectedKeys + " of "
+				       + expectedTotal );
+	    done = true;
+	    in.close();
+	}
+
+	private int getVarint() {
+	    long v = getVarlong();
+	    if( v > Integer.MAX_VALUE )
+		throw new UncheckedIOException(
+		    new IOException( "Bad number in block " + numBlocks ) );
+	    return (int) v;
+	}
+
+	private long getVarlong() {
+	    long v = 0;
+	    for( int shift = 0 ; shift < 64 ; shift += 7 ) {
+		if( pos >= limit )
+		    break;
+		byte b = body[pos++];
+		v |= (long) ( b & 0x7f ) << shift;
+		if( b >= 0 )
+		    return v;
+	    }
+	    throw new UncheckedIOException(
+		new IOException( "Bad number in block " + numBlocks ) );
+	}
+
+	public void close() throws IOException {
+	    in.close();
+	}
+    }
+
+    /**
+     * Reads a whole snapshot, checking every block
+     * @return how many words it holds
+     * @throws IOException if it's damaged or cut short
+     */
+    public static long verify( String path ) throws IOException {
+	Reader r = new Reader( path );
+	try {
+	    long n = 0;
+	    while( r.hasNext() ) {
+		r.next();
+		n++;
+	    }
+	    return n;
+	} catch ( UncheckedIOException e ) {
+	    throw e.getCause();
+	} finally {
+	    r.close();
+	}
+    }
+
+    private static void putVarint( ByteArrayOutputStream out, int v ) {
+	putVarlong( out, v & 0xffffffffL );
+    }
+
+    private static void putVarlong( ByteArrayOutputStream out, long v ) {
+	while( ( v & ~0x7fL ) != 0 ) {
+	    out.write( (int) ( v & 0x7f ) | 0x80 );
+	    v >>>= 7;
+	}
+	out.write( (int) v );
+    }
+}
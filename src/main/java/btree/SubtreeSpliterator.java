@@ -0,0 +1,124 @@
+package btree;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.LinkedList;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Visits the words of a tree in order, and splits by handing off whole
+ * subtrees, so that a parallel stream runs each part of the tree as its own
+ * fork-join task. The part of the tree still to visit is a list of pieces:
+ * a node with index {@code -1} stands for every word below it, and a node
+ * with index {@code i} for its word {@code i} alone. Splitting a single
+ * subtree turns it into its children and the words between them, apart from
+ * the separators of a linked format, which aren't words of the tree.
+ */
+class SubtreeSpliterator
+    implements Spliterator<SimpleImmutableEntry<String,Integer>> {
+    private static final int SUBTREE = -1;
+
+    private final LinkedList<SimpleImmutableEntry<Node,Integer>> pieces;
+    private long estimate;
+
+    /**
+     * @param estimate roughly how many words are in the tree
+     */
+    SubtreeSpliterator( Node root, long estimate ) {
+	this( new LinkedList<SimpleImmutableEntry<Node,Integer>>(), estimate );
+	pieces.add( new SimpleImmutableEntry<Node,Integer>( root, SUBTREE ) );
+    }
+
+    private SubtreeSpliterator(
+	LinkedList<SimpleImmutableEntry<Node,Integer>> pieces,
+	long estimate ) {
+	this.pieces = pieces;
+	this.estimate = estimate;
+    }
+
+    // Replaces the subtree at the front of the list with its parts
+    private void expandFirst() {
+	Node n = pieces.removeFirst().getKey();
+	int numKeys = n.numKeys();
+	for( int i = numKeys ; i >= 0 ; i-- ) {
+	    if( i < numKeys && holdsWords( n ) )
+		pieces.addFirst( new SimpleImmutableEntry<Node,Integer>(
+				     n, i ) );
+	    Node child = n.getLink( i );
+	    if( child != null )
+		pieces.addFirst( new SimpleImmutableEntry<Node,Integer>(
+				     child, SUBTREE ) );
+	}
+    }
+
+    public Spliterator<SimpleImmutableEntry<String,Integer>> trySplit() {
+	if( pieces.size() == 1 && pieces.getFirst().getValue() == SUBTREE )
+	    expandFirst();
+	if( pieces.size() < 2 )
+	    return null;
+	// The first half of the pieces go to the new spliterator, since it
+	// has to cover the words that come first
+	LinkedList<SimpleImmutableEntry<Node,Integer>> front
+	    = new LinkedList<SimpleImmutableEntry<Node,Integer>>();
+	for( int half = pieces.size() / 2 ; half > 0 ; half-- )
+	    front.add( pieces.removeFirst() );
+	estimate /= 2;
+	return new SubtreeSpliterator( front, estimate );
+    }
+
+    public boolean tryAdvance(
+	Consumer<? super SimpleImmutableEntry<String,Integer>> action ) {
+	while( ! pieces.isEmpty() ) {
+	    if( pieces.getFirst().getValue() == SUBTREE ) {
+		expandFirst();
+		continue;
+	    }
+	    SimpleImmutableEntry<Node,Integer> p = pieces.removeFirst();
+	    action.accept( entry( p.getKey(), p.getValue() ) );
+	    return true;
+	}
+	return false;
+    }
+
+    @Override
+    public void forEachRemaining(
+	Consumer<? super SimpleImmutableEntry<String,Integer>> action ) {
+	while( ! pieces.isEmpty() ) {
+	    SimpleImmutableEntry<Node,Integer> p = pieces.removeFirst();
+	    if( p.getValue() == SUBTREE )
+		visit( p.getKey(), action );
+	    else
+		action.accept( entry( p.getKey(), p.getValue() ) );
+	}
+    }
+
+    private void visit( Node n,
+			Consumer<? super SimpleImmutableEntry<String,Integer>>
+			action ) {
+	int numKeys = n.numKeys();
+	for( int i = 0 ; i <= numKeys ; i++ ) {
+	    Node child = n.getLink( i );
+	    if( child != null )
+		visit( child, action );
+	    if( i < numKeys && holdsWords( n ) )
+		action.accept( entry( n, i ) );
+	}
+    }
+
+    private static boolean holdsWords( Node n ) {
+	return n.isLeaf() || ! n.getFormat().LINKED;
+    }
+
+    private static SimpleImmutableEntry<String,Integer> entry( Node n, int i ) {
+	return new SimpleImmutableEntry<String,Integer>( n.getWord( i ),
+							 n.getFreq( i ) );
+    }
+
+    public long estimateSize() {
+	return pieces.isEmpty() ? 0 : estimate;
+    }
+
+    public int characteristics() {
+	return ORDERED | DISTINCT | NONNULL;
+    }
+}
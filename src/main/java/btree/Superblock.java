@@ -0,0 +1,192 @@
+package btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What a tree file records about the tree as a whole, in its header after
+ * the format: where the root is, how many nodes there are, how many words
+ * and how many adds in all the tree holds, and which nodes have been freed
+ * for reuse. Opening a tree reads these instead of walking it. Every
+ * method is synchronized, since adds from several threads update the same
+ * superblock.
+ */
+public class Superblock {
+    /** The number of bytes the superblock takes up in the header */
+    public static final int SIZE = 32;
+    /** Stands for a count that hasn't been worked out yet */
+    public static final long UNKNOWN = -1;
+
+    private int rootAddress;
+    private int numNodes;
+    private long numKeys;
+    private long totalFrequency;
+    // The first of the freed nodes, each of which links to the next one
+    private int freeHead;
+    private int numFree;
+    // Whether anything has changed since the superblock was last written
+    private boolean changed;
+
+    /**
+     * Makes the superblock of an empty tree, which is just a root. It isn't
+     * written until the tree changes.
+     */
+    public Superblock() {
+	rootAddress = 0;
+	numNodes = 1;
+	numKeys = 0;
+	totalFrequency = 0;
+	freeHead = -1;
+	numFree = 0;
+    }
+
+    public synchronized int getRootAddress() {
+	return rootAddress;
+    }
+
+    public synchronized void setRootAddress( int addr ) {
+	if( addr != rootAddress )
+	    changed = true;
+	rootAddress = addr;
+    }
+
+    public synchronized int getNumNodes() {
+	return numNodes;
+    }
+
+    public synchronized void setNumNodes( int n ) {
+	if( n != numNodes )
+	    changed = true;
+	numNodes = n;
+    }
+
+    /**
+     * @return the address of a new node at the end of the file
+     */
+    public synchronized int allocate() {
+	changed = true;
+	return numNodes++;
+    }
+
+    /**
+     * @return the address of the last node freed, or {@code -1} if there
+     * are none to reuse
+     */
+    public synchronized int getFreeHead() {
+	return freeHead;
+    }
+
+    public synchronized int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Records that the node at {@code addr} was freed. The node itself has
+     * to be overwritten with a link to the old head of the list.
+     */
+    public synchronized void pushFree( int addr ) {
+	changed = true;
+	freeHead = addr;
+	numFree++;
+    }
+
+    /**
+     * Takes the head off the list of freed nodes
+     * @param next the address the head linked to
+     */
+    public synchronized void popFree( int next ) {
+	changed = true;
+	freeHead = next;
+	numFree--;
+    }
+
+    public synchronized void clearFree() {
+	if( freeHead != -1 )
+	    changed = true;
+	freeHead = -1;
+	numFree = 0;
+    }
+
+    /**
+     * @return how many different words the tree holds, or {@code UNKNOWN}
+     */
+    public synchronized long getNumKeys() {
+	return numKeys;
+    }
+
+    /**
+     * @return how many times words have been added to the tree in all, or
+     * {@code UNKNOWN}
+     */
+    public synchronized long getTotalFrequency() {
+	return totalFrequency;
+    }
+
+    public synchronized void setCounts( long numKeys, long totalFrequency ) {
+	changed = true;
+	this.numKeys = numKeys;
+	this.totalFrequency = totalFrequency;
+    }
+
+    /**
+     * Counts a word being added {@code freq} times
+     * @param newKey whether the word wasn't in the tree before
+     */
+    public synchronized void added( boolean newKey, long freq ) {
+	changed = true;
+	if( numKeys == UNKNOWN )
+	    return;
+	if( newKey )
+	    numKeys++;
+	totalFrequency += freq;
+    }
+
+    /**
+     * Counts {@code freq} of a word's adds being taken away
+     * @param gone whether that was the last of them
+     */
+    public synchronized void removed( boolean gone, long freq ) {
+	changed = true;
+	if( numKeys == UNKNOWN )
+	    return;
+	if( gone )
+	    numKeys--;
+	totalFrequency -= freq;
+    }
+
+    public synchronized boolean isChanged() {
+	return changed;
+    }
+
+    synchronized void writeTo( ByteBuffer buf ) {
+	buf.putInt( rootAddress );
+	buf.putInt( numNodes );
+	buf.putLong( numKeys );
+	buf.putLong( totalFrequency );
+	buf.putInt( freeHead );
+	buf.putInt( numFree );
+	changed = false;
+    }
+
+    synchronized void readFrom( ByteBuffer buf ) {
+	rootAddress = buf.getInt();
+	numNodes = buf.getInt();
+	numKeys = buf.getLong();
+	totalFrequency = buf.getLong();
+	// Version 3 superblocks stop before the free list
+	if( buf.remaining() >= 8 ) {
+	    freeHead = buf.getInt();
+	    numFree = buf.getInt();
+	} else {
+	    freeHead = -1;
+	    numFree = 0;
+	}
+	changed = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "root " + rootAddress + ", " + numNodes + " nodes, "
+	    + numKeys + " words, " + totalFrequency + " in all, " + numFree
+	    + " free";
+    }
+}
@@ -0,0 +1,220 @@
+package btree;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The most frequent words under prefixes that have been asked about, so
+ * that asking again doesn't walk every word under the prefix.
+ *
+ * A prefix is only kept once a walk over it has visited at least
+ * {@code MIN_WORDS} words, since shorter walks are fast anyway, and only
+ * prefixes of up to {@code MAX_PREFIX} chars are kept, at most
+ * {@code MAX_ENTRIES} of them. Each holds its best {@code K} words.
+ *
+ * The tree tells the cache about every add once it's made, along with the
+ * word's new frequency. Adds only ever raise frequencies, so a word that
+ * wasn't among the best can only join them when it's added, and then its
+ * new frequency is compared with the worst of them; while no kept prefix
+ * covers a word, adding it costs nothing extra. Removals can't be followed
+ * that way, so they drop the prefixes of the word, which are walked again
+ * when they're next asked about.
+ *
+ * A prefix is put in the cache before the walk that fills it starts, and
+ * adds made during the walk are held back and taken into account once it
+ * ends, so none are missed.
+ */
+class TopKCache {
+    /** How many of the best words are kept for each prefix */
+    static final int K = 16;
+    static final int MAX_PREFIX = 16;
+    static final int MIN_WORDS = 256;
+    static final int MAX_ENTRIES = 64 * 1024;
+
+    // Most frequent first, and in order among words as frequent
+    static final Comparator<SimpleImmutableEntry<String,Integer>> BEST_FIRST
+	= new Comparator<SimpleImmutableEntry<String,Integer>>() {
+		public int compare( SimpleImmutableEntry<String,Integer> a,
+				    SimpleImmutableEntry<String,Integer> b ) {
+		    int c = b.getValue().compareTo( a.getValue() );
+		    return c != 0 ? c : a.getKey().compareTo( b.getKey() );
+		}
+	    };
+
+    private final Tree tree;
+    private final ConcurrentHashMap<String,Entry> entries
+	= new ConcurrentHashMap<String,Entry>();
+    // Bit i is set once a prefix of i chars has been kept, so adds only
+    // look up prefixes of lengths that might be there
+    private volatile int lengths;
+
+    // The best words under one prefix
+    private static class Entry {
+	// Best first
+	final List<SimpleImmutableEntry<String,Integer>> best
+	    = new ArrayList<SimpleImmutableEntry<String,Integer>>( K + 1 );
+	// The latest frequency of each word added while the entry is being
+	// filled, or null once it's filled
+	Map<String,Integer> pending = new HashMap<String,Integer>();
+
+	synchronized boolean isReady() {
+	    return pending == null;
+	}
+
+	synchronized void fill( List<SimpleImmutableEntry<String,Integer>>
+				found ) {
+	    best.addAll( found );
+	    for( Map.Entry<String,Integer> e : pending.entrySet() )
+		update( e.getKey(), e.getValue() );
+	    pending = null;
+	}
+
+	// Whether str would be among the best with frequency freq
+	synchronized boolean wants( String str, int freq ) {
+	    if( pending != null || best.size() < K )
+		return true;
+	    SimpleImmutableEntry<String,Integer> worst = best.get( K - 1 );
+	    return freq >= worst.getValue() || str.equals( worst.getKey() );
+	}
+
+	/**
+	 * Takes in that str was added and now has frequency freq
+	 */
+	synchronized void added( String str, int freq ) {
+	    if( pending != null ) {
+		Integer before = pending.get( str );
+		if( before == null || before < freq )
+		    pending.put( str, freq );
+	    } else
+		update( str, freq );
+	}
+
+	private void update( String str, int freq ) {
+	    for( int i = 0 ; i < best.size() ; i++ ) {
+		if( best.get(i).getKey().equals( str ) ) {
+		    // Adds that race each other may arrive out of order
+		    if( best.get(i).getValue() >= freq )
+			return;
+		    best.remove( i );
+		    break;
+		}
+	    }
+	    SimpleImmutableEntry<String,Integer> e
+		= new SimpleImmutableEntry<String,Integer>( str, freq );
+	    int i = Collections.binarySearch( best, e, BEST_FIRST );
+	    best.add( -i - 1, e );
+	    if( best.size() > K )
+		best.remove( K );
+	}
+
+	synchronized List<SimpleImmutableEntry<String,Integer>> top( int k ) {
+	    return new ArrayList<SimpleImmutableEntry<String,Integer>>(
+		best.subList( 0, Math.min( k, best.size() ) ) );
+	}
+    }
+
+    TopKCache( Tree tree ) {
+	this.tree = tree;
+    }
+
+    /**
+     * @return the {@code k} most frequent words starting with
+     * {@code prefix}, most frequent first
+     */
+    List<SimpleImmutableEntry<String,Integer>> top( String prefix, int k ) {
+	if( k > K || prefix.length() > MAX_PREFIX )
+	    return scan( prefix, k, null );
+	Entry e = entries.get( prefix );
+	if( e != null && e.isReady() )
+	    return e.top( k );
+	// Unless another thread is filling it already
+	if( e != null || entries.size() >= MAX_ENTRIES )
+	    return scan( prefix, k, null );
+	e = new Entry();
+	if( entries.putIfAbsent( prefix, e ) != null )
+	    return scan( prefix, k, null );
+	synchronized( this ) {
+	    lengths |= 1 << prefix.length();
+	}
+	long[] visited = new long[1];
+	List<SimpleImmutableEntry<String,Integer>> found
+	    = scan( prefix, K, visited );
+	e.fill( found );
+	if( visited[0] < MIN_WORDS )
+	    entries.remove( prefix, e );
+	return e.top( k );
+    }
+
+    /**
+     * Walks the words under {@code prefix}, keeping the best {@code k}
+     * @param visited if it isn't {@code null}, where to put how many words
+     * were walked
+     */
+    private List<SimpleImmutableEntry<String,Integer>> scan(
+	String prefix, int k, long[] visited ) {
+	// The worst of the best so far is on top
+	PriorityQueue<SimpleImmutableEntry<String,Integer>> heap
+	    = new PriorityQueue<SimpleImmutableEntry<String,Integer>>(
+		k + 1, Collections.reverseOrder( BEST_FIRST ) );
+	long n = 0;
+	for( SimpleImmutableEntry<String,Integer> e
+		 : tree.prefixScan( prefix ) ) {
+	    n++;
+	    if( heap.size() < k )
+		heap.add( e );
+	    else if( BEST_FIRST.compare( e, heap.peek() ) < 0 ) {
+		heap.poll();
+		heap.add( e );
+	    }
+	}
+	if( visited != null )
+	    visited[0] = n;
+	List<SimpleImmutableEntry<String,Integer>> best
+	    = new ArrayList<SimpleImmutableEntry<String,Integer>>( heap );
+	Collections.sort( best, BEST_FIRST );
+	return best;
+    }
+
+    /**
+     * Called once {@code str} has been added to the tree
+     * @param freq its frequency once it was added
+     */
+    void added( String str, int freq ) {
+	int lens = lengths;
+	if( lens == 0 || entries.isEmpty() )
+	    return;
+	int max = Math.min( str.length(), MAX_PREFIX );
+	for( int len = 0 ; len <= max ; len++ ) {
+	    if( ( lens & ( 1 << len ) ) == 0 )
+		continue;
+	    Entry e = entries.get( str.substring( 0, len ) );
+	    if( e != null && e.wants( str, freq ) )
+		e.added( str, freq );
+	}
+    }
+
+    /**
+     * Called once some of the adds of {@code str} have been taken away
+     */
+    void removed( String str ) {
+	if( lengths == 0 || entries.isEmpty() )
+	    return;
+	int max = Math.min( str.length(), MAX_PREFIX );
+	for( int len = 0 ; len <= max ; len++ )
+	    entries.remove( str.substring( 0, len ) );
+    }
+
+    /**
+     * Forgets every prefix, when the whole tree is replaced
+     */
+    void clear() {
+	entries.clear();
+    }
+}
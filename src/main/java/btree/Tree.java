@@ -0,0 +1,1316 @@
+package btree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Spliterator;
+import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.management.JMException;
+
+public class Tree implements Iterable<SimpleImmutableEntry<String,Integer>>,
+			     AutoCloseable {
+    // public static final String DIRECTORY = "trees.d";
+    public final String FILEPATH ;
+    // The shape of the nodes in a tree made without a NodeFormat
+    public static final int ORDER = Node.ORDER;
+    public static final int MAX_KEYS = Node.MAX_KEYS;
+    public static final int NODE_SIZE = Node.NODE_SIZE;
+    public static final double DEFAULT_FILL_FACTOR = 1.0;
+    public Node root;
+    private Superblock superblock;
+    protected PageCache pages;
+    private WriteAheadLog log;
+    private volatile TreeMetrics metrics;
+    private final TopKCache topK = new TopKCache( this );
+    
+    public Tree(String fPath) {
+	this( fPath, PageCache.DEFAULT_CACHE_BYTES );
+    }
+
+    /**
+     * @param cacheBytes how much memory modified nodes may use before they
+     * are written back to the file
+     */
+    public Tree(String fPath, long cacheBytes) {
+	this( fPath, cacheBytes, false );
+    }
+
+    /**
+     * @param cacheBytes how much memory modified nodes may use before they
+     * are written back to the file
+     * @param lazy if {@code true} then nodes are only read from the file
+     * when they're first reached, and {@code cacheBytes} also bounds how much
+     * memory the loaded nodes may take up
+     */
+    public Tree(String fPath, long cacheBytes, boolean lazy) {
+	this( fPath, NodeFormat.DEFAULT, cacheBytes, lazy );
+    }
+
+    /**
+     * @param format the shape of the tree's nodes. Reading a tree from file
+     * switches to the shape it was saved with.
+     */
+    public Tree(String fPath, NodeFormat format) {
+	this( fPath, format, PageCache.DEFAULT_CACHE_BYTES, false );
+    }
+
+    public Tree(String fPath, NodeFormat format, long cacheBytes,
+		boolean lazy) {
+	this( fPath, format, cacheBytes, lazy, false );
+    }
+
+    /**
+     * @param offHeap if {@code true} then each node is kept in direct
+     * memory as a fixed-width page, with its words as UTF-8 bytes and its
+     * children as addresses, so the heap doesn't grow with the tree. Words
+     * are decoded into strings only when they're asked for. The format has
+     * to have fixed-width nodes.
+     */
+    public Tree(String fPath, NodeFormat format, long cacheBytes,
+		boolean lazy, boolean offHeap) {
+	FILEPATH = fPath;
+	// FILEPATH = DIRECTORY + "/" + fileName;
+	//	this.readFromFile();
+	try {
+	    pages = new PageCache( FILEPATH, format, cacheBytes, lazy,
+				   offHeap );
+	    superblock = pages.getSuperblock();
+	    root = new Node( 0, pages );
+	    pages.put( root );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	    superblock = new Superblock();
+	    root = new Node( 0, format, null );
+	}
+    }
+
+    /**
+     * @return how many nodes the tree is using, not counting the ones that
+     * removals freed
+     */
+    public int getNumNodes() {
+	return superblock.getNumNodes() - superblock.getNumFree();
+    }
+
+    /**
+     * @return how many different words are in the tree. This is kept in the
+     * file's header, apart from in files saved before it was, which are
+     * counted the first time it's asked for.
+     */
+    public long size() {
+	if( superblock.getNumKeys() == Superblock.UNKNOWN )
+	    countWords();
+	return superblock.getNumKeys();
+    }
+
+    /**
+     * @return how many times words have been added to the tree in all
+     */
+    public long totalFrequency() {
+	if( superblock.getTotalFrequency() == Superblock.UNKNOWN )
+	    countWords();
+	return superblock.getTotalFrequency();
+    }
+
+    // Works out the counts that a file from before the superblock lacks
+    protected void countWords() {
+	long keys = 0;
+	long freq = 0;
+	for( SimpleImmutableEntry<String,Integer> e : this ) {
+	    keys++;
+	    freq += e.getValue();
+	}
+	superblock.setCounts( keys, freq );
+    }
+
+    public NodeFormat getFormat() {
+	return root.getFormat();
+    }
+
+    public Tree add( String str ) {
+	return add( str, 1 );
+    }
+
+    /**
+     * Adds {@code str} {@code count} times in one go. A frequency that would
+     * pass {@code Integer.MAX_VALUE} stays there instead.
+     * @throws IllegalArgumentException if {@code count} isn't positive
+     */
+    public Tree add( String str, int count ) {
+	if( count <= 0 )
+	    throw new IllegalArgumentException( "Count " + count
+						+ " isn't positive" );
+	TreeMetrics m = metrics;
+	long start = ( m == null ? 0 : System.nanoTime() );
+	int freq = addWord( str, count );
+	if( m != null )
+	    m.added( System.nanoTime() - start );
+	if( freq > 0 )
+	    topK.added( str, freq );
+	return this;
+    }
+
+    /**
+     * Does the work of {@link #add(String,int)}, once the count is checked
+     * @return the word's frequency once it's added, or {@code 0} if it
+     * couldn't be
+     */
+    protected int addWord( String str, int count ) {
+	int freq = 0;
+	if( ! getFormat().canAdd( str ) ) {
+	    System.err.println("Error: Could not add \"" + str +
+			       "\" to tree because it's too big.");
+	} else {
+	    try {
+		logAdd( str, count );
+		freq = add( str, count, pathTo( str ) );
+	    } catch ( IOException e ) {
+		e.printStackTrace();
+	    }
+	    if( needsCheckpoint() )
+		flush();
+	}
+	return freq;
+    }
+
+    // The nodes from the root down to the one str belongs in
+    private Stack<Node> pathTo( String str ) {
+	Stack<Node> nodes = new Stack<Node>();
+	Node n = root;
+	nodes.push(n);
+	while( ! n.isLeaf() && ! n.holds( str ) ) {
+	    n = n.getLink( n.childIndex( str ) );
+	    nodes.push(n);
+	}
+	return nodes;
+    }
+    /**
+     * @param addStr the word that's being added to the node
+     * @param nodes  a stack containing the node being added to and all its
+     * parents
+     */
+    protected Tree add( String addStr, Stack<Node> nodes ) throws IOException {
+	add( addStr, 1, nodes );
+	return this;
+    }
+    /**
+     * @param addStr  the word that's being added to the node
+     * @param addFreq how many times the word is being added
+     * @param nodes   a stack containing the node being added to and all its
+     * parents. The nodes that didn't have to change are left on it.
+     * @return the word's frequency once it's added. Frequencies stop at
+     * {@code Integer.MAX_VALUE} instead of wrapping round.
+     */
+    protected int add( String addStr, int addFreq, Stack<Node> nodes )
+	throws IOException {
+	Node n = nodes.peek();
+	int index = findInsertionPoint( addStr, n );
+	if( index < n.getFormat().MAX_KEYS
+	    && addStr.equals( n.getWord( index ) ) ) {
+	    int before = n.getFreq( index );
+	    int freq = (int) Math.min( (long) before + addFreq,
+				       Integer.MAX_VALUE );
+	    n.setFreq( index, freq );
+	    markDirty( n );
+	    nodes.pop();
+	    superblock.added( false, freq - before );
+	    return freq;
+	}
+	insert( addStr, addFreq, null, null, nodes );
+	superblock.added( true, addFreq );
+	return addFreq;
+    }
+
+    /**
+     * Puts a word that isn't there yet in the node on top of {@code nodes},
+     * splitting it and its parents as needed.
+     * @param left  with {@code right}, the nodes either side of the word,
+     * or {@code null} if it's going in a leaf
+     */
+    private void insert( String addStr, int addFreq, Node left, Node right,
+			 Stack<Node> nodes ) throws IOException {
+	Node addNode = nodes.pop();
+	NodeFormat format = addNode.getFormat();
+	int index;
+	boolean keepAdding = true;
+	
+	// variables to keep track of node splitting
+	Node parent;
+	// How far above the leaves addNode is, once a split needs to know
+	int level = -1;
+
+	while(keepAdding) {
+	    keepAdding = false;
+	    index = findInsertionPoint( addStr, addNode );
+	    // If the node isn't already full then add the word to an empty slot
+	    if( addNode.hasRoomFor( addStr ) ) {
+		addNode.shiftRight( index );
+		addNode.set( index , addStr , addFreq );
+		if( left != null && right != null ) {
+		    addNode.setLink( index , left );
+		    addNode.setLink( index + 1 , right );
+		}
+		markDirty( addNode );
+	    }
+	    // If the node needs to be split
+	    else {
+		TreeMetrics m = metrics;
+		if( m != null ) {
+		    if( level == -1 )
+			level = height( addNode ) - 1;
+		    m.split( level++ );
+		}
+		// Make lists to keep track of the order in which words and
+		// frequencies will be added to the left and right children
+		LinkedList<String>  addWords = new LinkedList<String>();
+		LinkedList<Integer> addFreqs = new LinkedList<Integer>();
+		LinkedList<Integer> addLinks = null;
+		if( left != null && right != null )
+		    addLinks = new LinkedList<Integer>();
+
+		// add words, frequencies and links to the lists declared above
+		int numKeys = addNode.numKeys();
+		for( int i = 0 ; i < numKeys ; i ++ ) {
+		    if( i == index ) {
+			addWords.add( addStr );
+			addFreqs.add( addFreq );
+		    }
+		    addWords.add( addNode.getWord(i) );
+		    addFreqs.add( addNode.getFreq(i) );
+		}
+		if( index >= numKeys ) {
+		    addWords.add( addStr );
+		    addFreqs.add( addFreq );
+		}
+		if( addLinks != null ) {
+		    for( int i = 0 ; i <= numKeys ; i ++ ) {
+			if( i != index )
+			    addLinks.add( addNode.getLinkAddress(i) );
+			else {
+			    addLinks.add( left.ADDRESS );
+			    addLinks.add( right.ADDRESS );
+			}
+		    }
+		}
+		// Make new nodes
+		if( nodes.empty() ) {
+		    parent = newNode( addNode.ADDRESS ) ;
+		    root = parent;
+		    superblock.setRootAddress( parent.ADDRESS );
+		    left   = newNode( allocate() );
+		    right  = newNode( allocate() );
+		}
+		else {
+		    parent = nodes.pop();
+		    left   = newNode( addNode.ADDRESS );
+		    right  = newNode( allocate() );
+		}
+		
+		// Copy over words, frequencies and links to the new children.
+		// With an odd number of keys per node the right one gets the
+		// extra word, and slotted pages are split by size.
+		String[] wordArray
+		    = addWords.toArray( new String[addWords.size()] );
+		int leftSize  = format.splitPoint( wordArray, addWords.size(),
+						   addLinks != null );
+		int rightSize = addWords.size() - 1 - leftSize;
+		// A leaf of a linked format keeps every word, so only a
+		// separator goes up
+		boolean linkedLeaf = format.LINKED && addLinks == null;
+		if( linkedLeaf ) {
+		    leftSize = format.leafSplitPoint( wordArray,
+						      addWords.size() );
+		    rightSize = addWords.size() - leftSize;
+		}
+		for( int i = 0 ; i < leftSize ; i++ ) {
+		    left.set( i , addWords.remove() , addFreqs.remove() );
+		}
+		if( linkedLeaf ) {
+		    addStr = NodeFormat.separator( wordArray[leftSize - 1],
+						   wordArray[leftSize] );
+		    addFreq = Node.SEPARATOR;
+		    right.setNextAddress( addNode.getNextAddress() );
+		    left.setNextAddress( right.ADDRESS );
+		} else {
+		    addStr = addWords.remove();
+		    addFreq = addFreqs.remove();
+		}
+		// Copy over words, frequencies and links to the right node
+		for( int i = 0 ; i < rightSize ; i++ ) {
+		    right.set( i , addWords.remove() , addFreqs.remove() );
+		}
+		if( addLinks != null ) {
+		    for( int i = 0 ; i < leftSize + 1 ; i ++ )
+			left.setLinkAddress( i , addLinks.remove() );
+		    for( int i = 0 ; i < rightSize + 1 ; i ++ )
+			right.setLinkAddress( i , addLinks.remove() );
+		}
+
+		// Update the affected nodes on file
+		markDirty( left );
+		markDirty( right );
+
+		// Set variables for the next add iteration
+		addNode = parent;
+		keepAdding = true;
+
+	    }
+	}
+    }
+    
+    /**
+     * Takes {@code str} out of the tree altogether
+     * @return how many times it had been added, or {@code 0} if it wasn't
+     * in the tree
+     */
+    public int remove( String str ) {
+	int freq = getFrequency( str );
+	if( freq > 0 )
+	    decrement( str, freq );
+	return freq;
+    }
+
+    /**
+     * Takes away {@code count} of the times {@code str} was added. Once
+     * there are none left the word is taken out of the tree, and a node
+     * left underfull is merged with its neighbour or takes words from it.
+     * The nodes that merges free are reused by later splits.
+     * @return how many times the word is left in the tree
+     * @throws IllegalArgumentException if {@code count} isn't positive
+     */
+    public int decrement( String str, int count ) {
+	if( count <= 0 )
+	    throw new IllegalArgumentException( "Count " + count
+						+ " isn't positive" );
+	int left = 0;
+	try {
+	    Stack<Node> nodes = pathTo( str );
+	    Node n = nodes.peek();
+	    int i = n.indexOf( str );
+	    if( i == -1 )
+		return 0;
+	    int freq = n.getFreq( i );
+	    int taken = Math.min( count, freq );
+	    logAdd( str, - taken );
+	    left = freq - taken;
+	    if( left > 0 ) {
+		n.setFreq( i, left );
+		markDirty( n );
+	    } else
+		removeAt( str, i, nodes );
+	    superblock.removed( left == 0, taken );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+	topK.removed( str );
+	if( needsCheckpoint() )
+	    flush();
+	return left;
+    }
+
+    /**
+     * Takes word {@code index} out of the node on top of {@code nodes},
+     * which holds the path down to it. A word in an internal node is
+     * replaced by the one before it, which is taken out of its leaf first.
+     */
+    private void removeAt( String str, int index, Stack<Node> nodes )
+	throws IOException {
+	Node n = nodes.peek();
+	if( n.isLeaf() ) {
+	    nodes.pop();
+	    n.shiftLeft( index );
+	    markDirty( n );
+	    rebalance( n, nodes );
+	    return;
+	}
+	Node leaf = n.getLink( index );
+	nodes.push( leaf );
+	while( ! leaf.isLeaf() ) {
+	    leaf = leaf.getLink( leaf.numKeys() );
+	    nodes.push( leaf );
+	}
+	int last = leaf.numKeys() - 1;
+	String before = leaf.getWord( last );
+	int beforeFreq = leaf.getFreq( last );
+	removeAt( before, last, nodes );
+	// Rebalancing may have moved str, even down into a leaf. It's taken
+	// out and the word before it put in its place, which for slotted
+	// pages may need more room than str did.
+	nodes = pathTo( str );
+	n = nodes.peek();
+	index = n.indexOf( str );
+	Node left = n.getLink( index );
+	Node right = n.getLink( index + 1 );
+	n.shiftLeft( index );
+	insert( before, beforeFreq, left, right, nodes );
+    }
+
+    /**
+     * Fixes {@code n} if it's underfull, and then its parents, until a node
+     * is reached that isn't
+     * @param nodes the parents of {@code n}
+     */
+    private void rebalance( Node n, Stack<Node> nodes ) throws IOException {
+	NodeFormat format = n.getFormat();
+	while( ! nodes.empty() && n.isUnderfull() ) {
+	    Node parent = nodes.pop();
+	    int k = 0;
+	    while( parent.getLinkAddress( k ) != n.ADDRESS )
+		k++;
+	    // The word between n and its neighbour on the left, or on the
+	    // right for the first child
+	    int sep = ( k > 0 ? k - 1 : 0 );
+	    Node left = parent.getLink( sep );
+	    Node right = parent.getLink( sep + 1 );
+	    boolean internal = ! n.isLeaf();
+	    // Leaves of a linked format hold every word themselves, so the
+	    // separator between them is dropped rather than moved down
+	    boolean linkedLeaves = format.LINKED && ! internal;
+
+	    // Everything in both nodes and the word between them, in order
+	    LinkedList<String>  words = new LinkedList<String>();
+	    LinkedList<Integer> freqs = new LinkedList<Integer>();
+	    LinkedList<Integer> links = new LinkedList<Integer>();
+	    for( Node m : new Node[]{ left, right } ) {
+		for( int i = 0 ; i < m.numKeys() ; i++ ) {
+		    words.add( m.getWord(i) );
+		    freqs.add( m.getFreq(i) );
+		    links.add( m.getLinkAddress(i) );
+		}
+		links.add( m.getLinkAddress( m.numKeys() ) );
+		if( m == left && ! linkedLeaves ) {
+		    words.add( parent.getWord( sep ) );
+		    freqs.add( parent.getFreq( sep ) );
+		}
+	    }
+	    String[] wordArray = words.toArray( new String[words.size()] );
+	    parent.shiftLeft( sep );
+
+	    // If they fit in one node then the right one is freed
+	    if( format.fits( wordArray, wordArray.length, internal ) ) {
+		fill( left, words, freqs, links, words.size() );
+		if( linkedLeaves )
+		    left.setNextAddress( right.getNextAddress() );
+		markDirty( left );
+		markDirty( parent );
+		free( right );
+		n = parent;
+		continue;
+	    }
+	    // Otherwise they're split evenly again, with a new word between
+	    String up;
+	    int upFreq;
+	    if( linkedLeaves ) {
+		int leftSize = format.leafSplitPoint( wordArray,
+						      wordArray.length );
+		up = NodeFormat.separator( wordArray[leftSize - 1],
+					   wordArray[leftSize] );
+		upFreq = Node.SEPARATOR;
+		fill( left, words, freqs, links, leftSize );
+	    } else {
+		fill( left, words, freqs, links,
+		      format.splitPoint( wordArray, wordArray.length,
+					 internal ) );
+		up = words.remove();
+		upFreq = freqs.remove();
+	    }
+	    fill( right, words, freqs, links, words.size() );
+	    markDirty( left );
+	    markDirty( right );
+	    nodes.push( parent );
+	    insert( up, upFreq, left, right, nodes );
+	    return;
+	}
+	// A root left with no words takes the place of its only child
+	if( nodes.empty() && n.numKeys() == 0 && ! n.isLeaf() ) {
+	    Node child = n.getLink( 0 );
+	    copy( child, n );
+	    markDirty( n );
+	    free( child );
+	}
+    }
+
+    // Replaces the contents of n with the first count words from the lists
+    // and the links around them, taking them off the lists
+    private static void fill( Node n, LinkedList<String> words,
+			      LinkedList<Integer> freqs,
+			      LinkedList<Integer> links, int count ) {
+	for( int i = 0 ; i < count ; i++ ) {
+	    n.set( i, words.remove(), freqs.remove() );
+	    n.setLinkAddress( i, links.remove() );
+	}
+	n.setLinkAddress( count, links.remove() );
+	n.clear( count );
+    }
+
+    // Copies the words and links of from into to, which is empty
+    private static void copy( Node from, Node to ) {
+	int n = from.numKeys();
+	for( int i = 0 ; i < n ; i++ )
+	    to.set( i, from.getWord(i), from.getFreq(i) );
+	for( int i = 0 ; i <= n ; i++ )
+	    to.setLinkAddress( i, from.getLinkAddress(i) );
+	to.setNextAddress( from.getNextAddress() );
+    }
+
+    public Tree addAll( Iterable<String> c ) {
+	Iterator<String> iter = c.iterator();
+	while( iter.hasNext() )
+	    this.add( iter.next() );
+	return this;
+    }
+
+    /**
+     * Adds every word in {@code c}. Repeated words are counted up first and
+     * the words are added in sorted order, each descent starting from the
+     * lowest node on the previous word's path whose range still covers the
+     * word instead of from the root. The nodes that change are written once,
+     * together, at the end of the batch, or sooner if more change than the
+     * cache holds. With a log those writes are checkpoints, so the batch is
+     * on disk once it returns without its words being logged.
+     */
+    public Tree addBatch( Collection<String> c ) {
+	TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+	for( String str : c ) {
+	    Integer count = counts.get( str );
+	    counts.put( str, count == null ? 1 : count + 1 );
+	}
+	return addCounts( counts );
+    }
+
+    /**
+     * Adds each word in {@code counts} as many times as its count, as one
+     * batch in the same way as {@link #addBatch}. Frequencies stop at
+     * {@code Integer.MAX_VALUE}, as they do for {@link #add(String,int)}.
+     * With a log a long batch is checkpointed as it goes, so a crash part
+     * way through can leave the words before the last checkpoint added and
+     * the rest not.
+     * @throws IllegalArgumentException if a count isn't positive, in which
+     * case nothing is added
+     */
+    public Tree addCounts( SortedMap<String,Integer> counts ) {
+	for( Map.Entry<String,Integer> e : counts.entrySet() )
+	    if( e.getValue() <= 0 )
+		throw new IllegalArgumentException( "\"" + e.getKey()
+						    + "\" has count "
+						    + e.getValue() );
+	// The path down to the last word added, and for each node on it the
+	// word that bounds its subtree on the right (null for no bound)
+	Stack<Node>   path   = new Stack<Node>();
+	Stack<String> bounds = new Stack<String>();
+	try {
+	    for( Map.Entry<String,Integer> e : counts.entrySet() ) {
+		String str = e.getKey();
+		if( ! getFormat().canAdd( str ) ) {
+		    System.err.println("Error: Could not add \"" + str +
+				       "\" to tree because it's too big.");
+		    continue;
+		}
+		// A long batch is checkpointed as it goes, like single adds, so
+		// that modified nodes don't pile up. Once they're written they
+		// can be dropped from the cache, so the path is found again.
+		if( needsCheckpoint() ) {
+		    pages.flush();
+		    path.clear();
+		    bounds.clear();
+		}
+		// Words arrive in increasing order, so only the right-hand
+		// bounds can rule out a node
+		while( ! bounds.empty() && bounds.peek() != null
+		       && str.compareTo( bounds.peek() ) >= 0 ) {
+		    path.pop();
+		    bounds.pop();
+		}
+		if( path.empty() ) {
+		    path.push( root );
+		    bounds.push( null );
+		}
+		Node n = path.peek();
+		while( ! n.isLeaf() && ! n.holds( str ) ) {
+		    int i = n.childIndex( str );
+		    bounds.push( i < n.numKeys() ? n.getWord(i)
+				 : bounds.peek() );
+		    n = n.getLink( i );
+		    path.push( n );
+		}
+		Stack<Node> nodes = new Stack<Node>();
+		nodes.addAll( path );
+		topK.added( str, add( str, e.getValue(), nodes ) );
+		// Everything that was split is gone; the node that took the
+		// last separator stays, since its range didn't change
+		int keep = nodes.size() + 1;
+		if( path.firstElement() != root )
+		    keep = 0;
+		while( path.size() > keep ) {
+		    path.pop();
+		    bounds.pop();
+		}
+	    }
+	    if( pages != null )
+		pages.flush();
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+	return this;
+    }
+
+    /**
+     * Replaces the contents of the tree with {@code entries}, building it
+     * bottom-up with every node full. See
+     * {@link #bulkLoad(Iterator,double)}.
+     */
+    public Tree bulkLoad( Iterator<? extends Map.Entry<String,Integer>>
+			  entries ) {
+	return bulkLoad( entries, DEFAULT_FILL_FACTOR );
+    }
+
+    /**
+     * Replaces the contents of the tree with {@code entries}, which have to
+     * be in strictly increasing order with positive frequencies. Nodes are
+     * packed bottom-up and written straight to the file, each exactly once,
+     * which is much faster than adding the words one at a time.
+     *
+     * The nodes don't go through the log, so a crash part way through
+     * leaves the file unusable, but once it returns the new tree and its
+     * header have been written and nothing logged before it will be
+     * replayed.
+     *
+     * @param fillFactor the fraction of each node to fill. Leaving room
+     * makes later calls to {@code add} split fewer nodes.
+     * @throws IllegalArgumentException if the fill factor isn't in (0,1],
+     * in which case the tree is left as it was, or if the entries aren't
+     * sorted and unique with positive frequencies and words that fit in a
+     * node. That's only found once the old tree is gone, so the tree is
+     * left empty.
+     */
+    public Tree bulkLoad( Iterator<? extends Map.Entry<String,Integer>>
+			  entries, double fillFactor ) {
+	BulkLoader loader = new BulkLoader( pages, fillFactor,
+					    ! pages.isLazy() );
+	try {
+	    pages.truncate( 0 );
+	    long keys = 0;
+	    long freq = 0;
+	    try {
+		while( entries.hasNext() ) {
+		    Map.Entry<String,Integer> e = entries.next();
+		    loader.add( e.getKey(), e.getValue() );
+		    keys++;
+		    freq += e.getValue();
+		}
+	    } catch ( RuntimeException e ) {
+		// Part of the new tree may have been written over the old
+		// one, so an empty tree takes the place of both
+		pages.truncate( 0 );
+		finishLoad( new BulkLoader( pages, fillFactor,
+					    ! pages.isLazy() ), 0, 0 );
+		throw e;
+	    }
+	    finishLoad( loader, keys, freq );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	} finally {
+	    topK.clear();
+	}
+	return this;
+    }
+
+    private void finishLoad( BulkLoader loader, long keys, long freq )
+	throws IOException {
+	root = loader.finish();
+	superblock.setRootAddress( root.ADDRESS );
+	superblock.setNumNodes( loader.getNumNodes() );
+	superblock.setCounts( keys, freq );
+	superblock.clearFree();
+	pages.flush();
+    }
+
+    /**
+     * Writes every word and its frequency, in order, to a snapshot at
+     * {@code path}. See {@link Snapshot}.
+     */
+    public void exportSnapshot( String path ) {
+	try {
+	    Snapshot.Writer w = new Snapshot.Writer( path );
+	    try {
+		for( SimpleImmutableEntry<String,Integer> e : this )
+		    w.add( e.getKey(), e.getValue() );
+	    } finally {
+		w.close();
+	    }
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * Replaces the contents of the tree with the snapshot at {@code path},
+     * built bottom-up as {@link #bulkLoad(Iterator,double)} builds it. The
+     * whole snapshot is checked before the tree is touched, so a damaged
+     * one leaves the tree as it was.
+     * @throws IOException if the snapshot is damaged or cut short. If it
+     * was fine when checked but changes while it's loaded, the tree is left
+     * empty.
+     */
+    public Tree importSnapshot( String path, double fillFactor )
+	throws IOException {
+	Snapshot.verify( path );
+	Snapshot.Reader r = new Snapshot.Reader( path );
+	try {
+	    bulkLoad( r, fillFactor );
+	} catch ( UncheckedIOException e ) {
+	    throw e.getCause();
+	} finally {
+	    r.close();
+	}
+	return this;
+    }
+
+    public Tree importSnapshot( String path ) throws IOException {
+	return importSnapshot( path, DEFAULT_FILL_FACTOR );
+    }
+
+    public boolean contains( String str ) {
+	return getFrequency( str ) != 0;
+    }
+
+    /**
+     * @return how many times {@code str} has been added to the tree, or
+     * {@code 0} if it isn't in the tree
+     */
+    public int getFrequency( String str ) {
+	TreeMetrics m = metrics;
+	if( m == null )
+	    return findFrequency( str );
+	long start = System.nanoTime();
+	int freq = findFrequency( str );
+	m.lookedUp( System.nanoTime() - start );
+	return freq;
+    }
+
+    /**
+     * Does the work of {@link #getFrequency}
+     */
+    protected int findFrequency( String str ) {
+	Node current = root;
+	while( current != null ) {
+	    int i = findInsertionPoint( str, current );
+	    if( i < current.getFormat().MAX_KEYS
+		&& str.equals( current.getWord(i) ) ) {
+		// Separators of a linked format lead on to the leaf
+		if( ! current.getFormat().LINKED || current.isLeaf() )
+		    return current.getFreq(i);
+		i++;
+	    }
+	    current = current.getLink(i);
+	}
+	return 0;
+    }
+
+    /**
+     * Looks {@code str} up without waiting on the file. Nodes that aren't
+     * loaded are read on the page cache's I/O threads, and the lookup goes
+     * on from there once they arrive, so the calling thread never blocks on
+     * a read. The tree shouldn't be changed while the lookup runs.
+     * @return a future of the word's frequency, which is {@code 0} if it
+     * isn't in the tree
+     */
+    public CompletableFuture<Integer> getAsync( String str ) {
+	return getAsync( root, str );
+    }
+
+    public CompletableFuture<Boolean> containsAsync( String str ) {
+	return getAsync( str ).thenApply( new Function<Integer,Boolean>() {
+		public Boolean apply( Integer freq ) {
+		    return freq != 0;
+		}
+	    } );
+    }
+
+    private CompletableFuture<Integer> getAsync( Node current,
+						 final String str ) {
+	while( current != null ) {
+	    int i = findInsertionPoint( str, current );
+	    if( i < current.getFormat().MAX_KEYS
+		&& str.equals( current.getWord(i) ) ) {
+		if( ! current.getFormat().LINKED || current.isLeaf() )
+		    return CompletableFuture.completedFuture(
+			current.getFreq(i) );
+		i++;
+	    }
+	    CompletableFuture<Node> next = current.getLinkAsync(i);
+	    if( ! next.isDone() )
+		return next.thenCompose(
+		    new Function<Node,CompletionStage<Integer>>() {
+			public CompletionStage<Integer> apply( Node n ) {
+			    return getAsync( n, str );
+			}
+		    } );
+	    current = next.join();
+	}
+	return CompletableFuture.completedFuture( 0 );
+    }
+
+    /**
+     * @return how many levels the tree has, counting the root
+     */
+    public int getHeight() {
+	return height( root );
+    }
+
+    // How many levels there are from n down to the leaves, counting both
+    private static int height( Node n ) {
+	int height = 1;
+	while( ! n.isLeaf() ) {
+	    n = n.getLink( 0 );
+	    height++;
+	}
+	return height;
+    }
+
+    /**
+     * Starts counting what the tree does, if it isn't already
+     * @return the tree's metrics
+     */
+    public synchronized TreeMetrics enableMetrics() {
+	if( metrics == null ) {
+	    metrics = new TreeMetrics( this );
+	    pages.setMetrics( metrics );
+	}
+	return metrics;
+    }
+
+    /**
+     * Stops counting, and takes the metrics out of JMX if they're there
+     */
+    public synchronized void disableMetrics() {
+	if( metrics == null )
+	    return;
+	try {
+	    metrics.unregister();
+	} catch ( JMException e ) {
+	    e.printStackTrace();
+	}
+	if( pages != null )
+	    pages.setMetrics( null );
+	metrics = null;
+    }
+
+    /**
+     * @return the tree's metrics, or {@code null} if they're off
+     */
+    public TreeMetrics getMetrics() {
+	return metrics;
+    }
+
+    public int findNumNodes( Node node ) {
+	if( node == null )
+	    return 0;
+	else if( node.isLeaf() )
+	    return 1;
+	else {
+	    int numNodes = 1;
+	    for( int i = 0 ; i < node.getFormat().ORDER ; i++ )
+		numNodes += findNumNodes( node.getLink(i) );
+	    return numNodes;
+	}
+    }
+
+    /**
+     * Replaces the tree in memory with the one saved on file, taking on the
+     * shape of node it was saved with. The root and the counts come from
+     * the file's header, so in lazy mode only the root is read; every other
+     * node is read when it's first reached.
+     */
+    public void readFromFile() {
+	try {
+	    pages.flush();
+	    pages.clear();
+	    pages.readFormat();
+	    if( pages.readSuperblock() )
+		root = pages.get( superblock.getRootAddress() );
+	    else {
+		// Saved before there was a superblock, with the root first
+		root = pages.get( 0 );
+		superblock.setRootAddress( 0 );
+		if( pages.isLazy() )
+		    superblock.setNumNodes( pages.numPages() );
+		else
+		    superblock.setNumNodes( this.findNumNodes(root) );
+		superblock.setCounts( Superblock.UNKNOWN, Superblock.UNKNOWN );
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	} catch (UncheckedIOException e) {
+	    e.printStackTrace();
+	}
+	topK.clear();
+    }
+
+    /**
+     * Recovers whatever an earlier run logged in {@code FILEPATH + ".wal"}
+     * and from then on logs every add there before it's made, so that a
+     * crash loses at most the adds still waiting to be synced. Modified
+     * nodes are written back in checkpoints through the log, and recovery
+     * only has to read the log since the last one.
+     *
+     * @param syncBatch how many adds are synced to the log together. See
+     * {@link WriteAheadLog#WriteAheadLog(String,int)}.
+     */
+    public void openLog( int syncBatch ) {
+	try {
+	    pages.flush();
+	    pages.clear();
+	    pages.readFormat();
+	    WriteAheadLog wal = new WriteAheadLog( FILEPATH + ".wal",
+						   syncBatch );
+	    WriteAheadLog.Recovery r = wal.recover();
+	    // The last checkpoint's nodes may not all have reached the file
+	    for( SimpleImmutableEntry<Integer,byte[]> p : r.pages ) {
+		ByteBuffer buf = ByteBuffer.allocate( p.getValue().length );
+		buf.put( p.getValue() );
+		pages.writePages( buf, p.getKey() );
+	    }
+	    pages.force();
+	    if( pages.numPages() > 0 )
+		readFromFile();
+	    else
+		pages.put( root );
+	    // The log is attached to the cache but not to the tree while the
+	    // adds are replayed, so they end in a checkpoint without being
+	    // logged again
+	    pages.setLog( wal );
+	    for( SimpleImmutableEntry<String,Integer> a : r.adds ) {
+		if( a.getValue() > 0 )
+		    add( a.getKey(), a.getValue(), pathTo( a.getKey() ) );
+		else
+		    decrement( a.getKey(), - a.getValue() );
+	    }
+	    pages.flush();
+	    log = wal;
+	    topK.clear();
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+    }
+
+    // Logs an add before it's made
+    protected void logAdd( String str, int count ) throws IOException {
+	if( log != null )
+	    log.append( str, count );
+    }
+
+    // Whether enough nodes have changed to be written back. Without a log
+    // the cache does that by itself.
+    protected boolean needsCheckpoint() {
+	return log != null && pages.needsFlush();
+    }
+
+    /**
+     * @return the address of the node freed last, or of a new node at the
+     * end of the file if none are free
+     */
+    private synchronized int allocate() {
+	int addr = superblock.getFreeHead();
+	if( addr == -1 )
+	    return superblock.allocate();
+	superblock.popFree( pages.get( addr ).getLinkAddress( 0 ) );
+	return addr;
+    }
+
+    // Puts the node's address on the free list, overwriting it with a link
+    // to the node freed before it
+    private synchronized void free( Node n ) throws IOException {
+	Node freed = newNode( n.ADDRESS );
+	freed.setLinkAddress( 0, superblock.getFreeHead() );
+	superblock.pushFree( n.ADDRESS );
+	markDirty( freed );
+    }
+
+    /**
+     * Moves the nodes at the end of the file into the places of nodes that
+     * removals freed, and cuts the file down to the nodes in use. Only the
+     * nodes that move and their parents are written; the tree can go on
+     * being used as it was.
+     */
+    public void compact() {
+	try {
+	    int numNodes = superblock.getNumNodes();
+	    int inUse = getNumNodes();
+	    BitSet free = new BitSet( numNodes );
+	    for( int addr = superblock.getFreeHead() ; addr != -1 ;
+		 addr = pages.get( addr ).getLinkAddress( 0 ) )
+		free.set( addr );
+	    // There are as many free places before inUse as nodes in use
+	    // from there on
+	    TreeMap<Integer,Integer> moves = new TreeMap<Integer,Integer>();
+	    int to = free.nextSetBit( 0 );
+	    for( int addr = inUse ; addr < numNodes ; addr++ ) {
+		if( ! free.get( addr ) ) {
+		    moves.put( addr, to );
+		    to = free.nextSetBit( to + 1 );
+		}
+	    }
+	    if( ! moves.isEmpty() && ! root.isLeaf() ) {
+		int height = 0;
+		for( Node n = root ; ! n.isLeaf() ; n = n.getLink(0) )
+		    height++;
+		relink( root, height, moves, -1 );
+	    }
+	    for( Map.Entry<Integer,Integer> m : moves.entrySet() ) {
+		Node from = pages.get( m.getKey() );
+		Node moved = newNode( m.getValue() );
+		copy( from, moved );
+		markDirty( moved );
+		if( from.ADDRESS == superblock.getRootAddress() ) {
+		    root = moved;
+		    superblock.setRootAddress( moved.ADDRESS );
+		}
+	    }
+	    superblock.clearFree();
+	    superblock.setNumNodes( inUse );
+	    pages.shrink( inUse );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * Writes back every changed node and checks the file from top to bottom
+     * with {@link TreeVerifier}, on as many threads as there are processors
+     * or {@link PageCache#IO_THREADS}, whichever is more
+     * @return what the check found, or {@code null} if the file couldn't be
+     * read
+     */
+    public TreeVerifier.Report verify() {
+	return verify( Math.max( PageCache.IO_THREADS,
+				 Runtime.getRuntime().availableProcessors() ) );
+    }
+
+    public TreeVerifier.Report verify( int threads ) {
+	try {
+	    if( pages != null )
+		pages.flush();
+	    return TreeVerifier.verify( FILEPATH, threads );
+	} catch ( IOException e ) {
+	    e.printStackTrace();
+	    return null;
+	}
+    }
+
+    /**
+     * Points the links below n, which has height levels below it, at the
+     * places their nodes are moving to. Leaves are only read in a linked
+     * format, where the leaf before one that moves has to be pointed at its
+     * new place too.
+     * @param lastLeaf the leaf before the ones below n
+     * @return the last leaf below n
+     */
+    private int relink( Node n, int height, Map<Integer,Integer> moves,
+			int lastLeaf ) throws IOException {
+	boolean changed = false;
+	for( int i = 0 ; i <= n.numKeys() ; i++ ) {
+	    int addr = n.getLinkAddress(i);
+	    Integer to = moves.get( addr );
+	    if( height > 1 )
+		lastLeaf = relink( pages.get( addr ), height - 1, moves,
+				   lastLeaf );
+	    else {
+		if( to != null && lastLeaf != -1 && n.getFormat().LINKED ) {
+		    Node before = pages.get( lastLeaf );
+		    before.setNextAddress( to );
+		    markDirty( before );
+		}
+		lastLeaf = addr;
+	    }
+	    if( to != null ) {
+		n.setLinkAddress( i, to );
+		changed = true;
+	    }
+	}
+	if( changed )
+	    markDirty( n );
+	return lastLeaf;
+    }
+
+    private Node newNode( int addr ) {
+	return new Node( addr, pages );
+    }
+
+    private void markDirty( Node n ) throws IOException {
+	if( pages != null )
+	    pages.markDirty( n );
+    }
+
+    /**
+     * Writes every node that has changed since the last flush to the file
+     */
+    public void flush() {
+	try {
+	    if( pages != null )
+		pages.flush();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * Flushes the tree and releases its file and log. The tree shouldn't be
+     * used after it has been closed.
+     */
+    public void close() {
+	disableMetrics();
+	try {
+	    if( pages != null )
+		pages.close();
+	    if( log != null )
+		log.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	pages = null;
+	log = null;
+    }
+    
+    protected int findInsertionPoint( String str, Node node ) {
+	return node.insertionPoint( str );
+    }
+
+    public void printTree() {
+	printTree( root );
+    }
+    public void printTree( Node n ) {
+	n.printNode();
+	for( int i = 0 ; i < n.getFormat().ORDER ; i ++ )
+	    if( n.getLink(i) != null )
+		printTree( n.getLink(i) );
+    }
+
+    /**
+     * The words are read as the iterator reaches them, so a scan only ever
+     * holds one path of the tree. The tree shouldn't be changed while it's
+     * being iterated over.
+     */
+    public Iterator<SimpleImmutableEntry<String,Integer>> iterator() {
+	return rangeIterator( null, null );
+    }
+
+    /**
+     * Splits at child links, handing whole subtrees to each part, so that
+     * parallel streams work on separate parts of the tree. The tree
+     * shouldn't be changed while it's being visited.
+     */
+    @Override
+    public Spliterator<SimpleImmutableEntry<String,Integer>> spliterator() {
+	long estimate = superblock.getNumKeys();
+	if( estimate == Superblock.UNKNOWN )
+	    estimate = (long) getNumNodes() * root.getFormat().MAX_KEYS;
+	return new SubtreeSpliterator( root, estimate );
+    }
+
+    public Stream<SimpleImmutableEntry<String,Integer>> stream() {
+	return StreamSupport.stream( spliterator(), false );
+    }
+
+    /**
+     * @return a stream that runs subtrees as separate tasks in the common
+     * fork-join pool, for totals and other aggregates over the whole tree
+     */
+    public Stream<SimpleImmutableEntry<String,Integer>> parallelStream() {
+	return StreamSupport.stream( spliterator(), true );
+    }
+
+    /**
+     * @return the words from {@code from}, inclusive, up to {@code to},
+     * exclusive, in order. A {@code null} bound leaves that end open. Each
+     * iterator seeks straight to {@code from} instead of walking past the
+     * words before it.
+     */
+    public Iterable<SimpleImmutableEntry<String,Integer>> range(
+	final String from, final String to ) {
+	return new Iterable<SimpleImmutableEntry<String,Integer>>() {
+	    public Iterator<SimpleImmutableEntry<String,Integer>> iterator() {
+		return rangeIterator( from, to );
+	    }
+	    @Override
+	    public Spliterator<SimpleImmutableEntry<String,Integer>>
+		spliterator() {
+		return TreeIterator.spliterator( iterator() );
+	    }
+	};
+    }
+
+    /**
+     * @return the words less than {@code to}
+     */
+    public Iterable<SimpleImmutableEntry<String,Integer>> head( String to ) {
+	return range( null, to );
+    }
+
+    /**
+     * @return the words from {@code from} on
+     */
+    public Iterable<SimpleImmutableEntry<String,Integer>> tail( String from ) {
+	return range( from, null );
+    }
+
+    /**
+     * @return the words that start with {@code prefix}, in order. Like
+     * {@link #range}, each iterator seeks straight to the first of them, and
+     * it stops after the last.
+     */
+    public Iterable<SimpleImmutableEntry<String,Integer>> prefixScan(
+	String prefix ) {
+	return range( prefix, prefixEnd( prefix ) );
+    }
+
+    /**
+     * @return the first word after every word that starts with
+     * {@code prefix}, or {@code null} if there's none
+     */
+    static String prefixEnd( String prefix ) {
+	for( int i = prefix.length() - 1 ; i >= 0 ; i-- ) {
+	    char c = prefix.charAt( i );
+	    if( c != Character.MAX_VALUE )
+		return prefix.substring( 0, i ) + (char) ( c + 1 );
+	}
+	return null;
+    }
+
+    /**
+     * @return the {@code k} most frequent words that start with
+     * {@code prefix}, most frequent first and in order among words that
+     * are as frequent. The answers for prefixes with many words are kept
+     * and brought up to date by later adds, so asking again doesn't walk
+     * the words; see {@link TopKCache}.
+     * @throws IllegalArgumentException if {@code k} is negative
+     */
+    public List<SimpleImmutableEntry<String,Integer>> topKByPrefix(
+	String prefix, int k ) {
+	if( k < 0 )
+	    throw new IllegalArgumentException( "k is " + k );
+	if( k == 0 )
+	    return new ArrayList<SimpleImmutableEntry<String,Integer>>();
+	return topK.top( prefix, k );
+    }
+
+    protected Iterator<SimpleImmutableEntry<String,Integer>> rangeIterator(
+	String from, String to ) {
+	return new TreeIterator( root, from, to );
+    }
+}
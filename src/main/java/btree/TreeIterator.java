@@ -0,0 +1,105 @@
+package btree;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Stack;
+
+/**
+ * Walks the words of a tree in order as they're asked for. Only the path
+ * down to the next word is kept, as a stack of nodes and, for each, the
+ * index of the next word to visit in it. In a linked format that's just the
+ * current leaf, and the walk goes on from each leaf to the next one. The
+ * node the walk will need after the current one is read ahead in the
+ * background. The tree shouldn't be changed while it's being walked.
+ */
+class TreeIterator implements Iterator<SimpleImmutableEntry<String,Integer>> {
+    private final String to;
+    private final Stack<SimpleEntry<Node,Integer>> nodes
+	= new Stack<SimpleEntry<Node,Integer>>();
+    private SimpleImmutableEntry<String,Integer> next;
+
+    /**
+     * @param from the first word to visit, or {@code null} to start at the
+     * beginning
+     * @param to   the word to stop before, or {@code null} to go to the end
+     */
+    TreeIterator( Node root, String from, String to ) {
+	this.to = to;
+	// Go straight down to the first word that isn't less than from
+	Node n = root;
+	boolean linked = root.getFormat().LINKED;
+	while( linked && ! n.isLeaf() )
+	    n = n.getLink( from == null ? 0 : n.childIndex( from ) );
+	if( linked )
+	    n.prefetchNext();
+	while( n != null ) {
+	    int i = ( from == null ? 0 : n.insertionPoint( from ) );
+	    nodes.push( new SimpleEntry<Node,Integer>( n, i ) );
+	    if( from != null && i < n.getFormat().MAX_KEYS
+		&& from.equals( n.getWord( i ) ) )
+		break;
+	    n = n.getLink( i );
+	}
+	advance();
+    }
+
+    /**
+     * @return a spliterator over {@code iter}, which visits a tree's words
+     */
+    static <T> Spliterator<T> spliterator( Iterator<T> iter ) {
+	return Spliterators.spliteratorUnknownSize(
+	    iter, Spliterator.ORDERED | Spliterator.DISTINCT
+	    | Spliterator.NONNULL );
+    }
+
+    // Finds the word after the last one visited
+    private void advance() {
+	next = null;
+	while( ! nodes.empty() ) {
+	    Node n = nodes.peek().getKey();
+	    int i = nodes.peek().getValue();
+	    if( i >= n.getFormat().MAX_KEYS || n.getWord( i ) == null ) {
+		nodes.pop();
+		Node next = n.getNext();
+		if( next != null ) {
+		    next.prefetchNext();
+		    nodes.push( new SimpleEntry<Node,Integer>( next, 0 ) );
+		}
+		continue;
+	    }
+	    if( to != null && n.getWord( i ).compareTo( to ) >= 0 ) {
+		nodes.clear();
+		return;
+	    }
+	    next = new SimpleImmutableEntry<String,Integer>( n.getWord( i ),
+							     n.getFreq( i ) );
+	    nodes.peek().setValue( i + 1 );
+	    // The words after this one start at the bottom left of the next
+	    // link, and go on to the link after it
+	    Node child = n.getLink( i + 1 );
+	    if( child != null && i + 1 < n.numKeys() )
+		n.prefetchLink( i + 2 );
+	    while( child != null ) {
+		nodes.push( new SimpleEntry<Node,Integer>( child, 0 ) );
+		child = child.getLink( 0 );
+	    }
+	    return;
+	}
+    }
+
+    public boolean hasNext() {
+	return next != null;
+    }
+
+    public SimpleImmutableEntry<String,Integer> next() {
+	if( next == null )
+	    throw new NoSuchElementException();
+	SimpleImmutableEntry<String,Integer> e = next;
+	advance();
+	return e;
+    }
+}
@@ -0,0 +1,285 @@
+package btree;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what a tree does and how long its adds and lookups take. A tree
+ * only keeps metrics once {@link Tree#enableMetrics} is called, and until
+ * then each operation pays for a single null check.
+ *
+ * The counters can be polled with {@link #snapshot}, or read through JMX
+ * once {@link #register} is called. Counters are {@code LongAdder}s, so
+ * threads bumping them at once don't contend, and latencies go into
+ * histograms with a bucket for each power of two nanoseconds.
+ */
+public class TreeMetrics implements TreeMetricsMBean {
+    /**
+     * Splits of nodes this many levels or more above the leaves are counted
+     * together
+     */
+    public static final int MAX_LEVELS = 16;
+
+    private final Tree tree;
+    private final Histogram adds = new Histogram();
+    private final Histogram lookups = new Histogram();
+    private final LongAdder[] splits = new LongAdder[MAX_LEVELS];
+    private final LongAdder nodeReads = new LongAdder();
+    private final LongAdder nodeWrites = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    // The cache counts its own hits, so these are its counts at the last
+    // reset. They're read by whichever thread polls the metrics.
+    private volatile long hitsBefore;
+    private volatile long missesBefore;
+    private ObjectName name;
+
+    TreeMetrics( Tree tree ) {
+	this.tree = tree;
+	for( int i = 0 ; i < MAX_LEVELS ; i++ )
+	    splits[i] = new LongAdder();
+	hitsBefore = tree.pages.getHits();
+	missesBefore = tree.pages.getMisses();
+    }
+
+    /**
+     * Latencies, counted in buckets where bucket {@code i} holds the ones
+     * below {@code 2^i} nanoseconds
+     */
+    public static class Histogram {
+	private final LongAdder[] buckets = new LongAdder[64];
+
+	Histogram() {
+	    for( int i = 0 ; i < buckets.length ; i++ )
+		buckets[i] = new LongAdder();
+	}
+
+	void record( long nanos ) {
+	    buckets[64 - Long.numberOfLeadingZeros( Math.max( 0, nanos ) )]
+		.increment();
+	}
+
+	long[] counts() {
+	    long[] counts = new long[buckets.length];
+	    for( int i = 0 ; i < counts.length ; i++ )
+		counts[i] = buckets[i].sum();
+	    return counts;
+	}
+
+	void reset() {
+	    for( LongAdder bucket : buckets )
+		bucket.reset();
+	}
+    }
+
+    /**
+     * @return the number of nanoseconds that the fraction {@code p} of the
+     * latencies counted in {@code counts} are below, rounded up to a power
+     * of two, or {@code 0} if nothing was counted
+     */
+    public static long percentile( long[] counts, double p ) {
+	long total = 0;
+	for( long c : counts )
+	    total += c;
+	long seen = 0;
+	for( int i = 0 ; i < counts.length ; i++ ) {
+	    seen += counts[i];
+	    if( seen > 0 && seen >= p * total )
+		return i == 63 ? Long.MAX_VALUE : 1L << i;
+	}
+	return 0;
+    }
+
+    private static long count( long[] counts ) {
+	long total = 0;
+	for( long c : counts )
+	    total += c;
+	return total;
+    }
+
+    // ======================  Called by the tree  =======================
+
+    void added( long nanos ) {
+	adds.record( nanos );
+    }
+
+    void lookedUp( long nanos ) {
+	lookups.record( nanos );
+    }
+
+    /**
+     * @param level how far above the leaves the node that split is
+     */
+    void split( int level ) {
+	splits[Math.min( level, MAX_LEVELS - 1 )].increment();
+    }
+
+    void nodeRead() {
+	nodeReads.increment();
+    }
+
+    void written( int nodes, long bytes ) {
+	nodeWrites.add( nodes );
+	bytesWritten.add( bytes );
+    }
+
+    // ===========================  Reading  ============================
+
+    /**
+     * Every counter at one moment, apart from the counters changing while
+     * they're being read
+     */
+    public static class Snapshot {
+	public final long[] addLatencies;
+	public final long[] lookupLatencies;
+	public final long[] splits;
+	public final long nodeReads;
+	public final long nodeWrites;
+	public final long bytesWritten;
+	public final long cacheHits;
+	public final long cacheMisses;
+	public final int height;
+	public final double fillFactor;
+
+	private Snapshot( TreeMetrics m ) {
+	    addLatencies = m.adds.counts();
+	    lookupLatencies = m.lookups.counts();
+	    splits = m.getSplits();
+	    nodeReads = m.getNodeReads();
+	    nodeWrites = m.getNodeWrites();
+	    bytesWritten = m.getBytesWritten();
+	    cacheHits = m.getCacheHits();
+	    cacheMisses = m.getCacheMisses();
+	    height = m.getHeight();
+	    fillFactor = m.getFillFactor();
+	}
+
+	public long adds() {
+	    return count( addLatencies );
+	}
+
+	public long lookups() {
+	    return count( lookupLatencies );
+	}
+
+	public String toString() {
+	    return "adds " + adds() + " (median "
+		+ percentile( addLatencies, 0.5 ) + "ns, 99% "
+		+ percentile( addLatencies, 0.99 ) + "ns), lookups "
+		+ lookups() + " (median " + percentile( lookupLatencies, 0.5 )
+		+ "ns, 99% " + percentile( lookupLatencies, 0.99 )
+		+ "ns), splits " + Arrays.toString( splits ) + ", node reads "
+		+ nodeReads + ", node writes " + nodeWrites + " ("
+		+ bytesWritten + " bytes), cache hits " + cacheHits
+		+ ", misses " + cacheMisses + ", height " + height
+		+ ", fill factor " + fillFactor;
+	}
+    }
+
+    public Snapshot snapshot() {
+	return new Snapshot( this );
+    }
+
+    public long getAdds() {
+	return count( adds.counts() );
+    }
+
+    public long getAddLatencyMedian() {
+	return percentile( adds.counts(), 0.5 );
+    }
+
+    public long getAddLatency99() {
+	return percentile( adds.counts(), 0.99 );
+    }
+
+    public long getLookups() {
+	return count( lookups.counts() );
+    }
+
+    public long getLookupLatencyMedian() {
+	return percentile( lookups.counts(), 0.5 );
+    }
+
+    public long getLookupLatency99() {
+	return percentile( lookups.counts(), 0.99 );
+    }
+
+    public long[] getSplits() {
+	long[] counts = new long[MAX_LEVELS];
+	for( int i = 0 ; i < MAX_LEVELS ; i++ )
+	    counts[i] = splits[i].sum();
+	return counts;
+    }
+
+    public long getNodeReads() {
+	return nodeReads.sum();
+    }
+
+    public long getNodeWrites() {
+	return nodeWrites.sum();
+    }
+
+    public long getBytesWritten() {
+	return bytesWritten.sum();
+    }
+
+    public long getCacheHits() {
+	return tree.pages.getHits() - hitsBefore;
+    }
+
+    public long getCacheMisses() {
+	return tree.pages.getMisses() - missesBefore;
+    }
+
+    public int getHeight() {
+	return tree.getHeight();
+    }
+
+    /**
+     * @return how many words the tree's nodes hold on average, as a
+     * fraction of {@code MAX_KEYS}
+     */
+    public double getFillFactor() {
+	int nodes = tree.getNumNodes();
+	if( nodes == 0 )
+	    return 0;
+	return (double) tree.size() / nodes / tree.getFormat().MAX_KEYS;
+    }
+
+    /**
+     * Starts every counter again from zero
+     */
+    public void reset() {
+	adds.reset();
+	lookups.reset();
+	for( LongAdder split : splits )
+	    split.reset();
+	nodeReads.reset();
+	nodeWrites.reset();
+	bytesWritten.reset();
+	hitsBefore = tree.pages.getHits();
+	missesBefore = tree.pages.getMisses();
+    }
+
+    /**
+     * Makes the metrics visible through the platform's MBean server, named
+     * after the tree's file
+     */
+    public synchronized void register() throws JMException {
+	if( name != null )
+	    return;
+	ObjectName n = new ObjectName( "BTree:type=TreeMetrics,file="
+				       + ObjectName.quote( tree.FILEPATH ) );
+	ManagementFactory.getPlatformMBeanServer().registerMBean( this, n );
+	name = n;
+    }
+
+    public synchronized void unregister() throws JMException {
+	if( name == null )
+	    return;
+	ManagementFactory.getPlatformMBeanServer().unregisterMBean( name );
+	name = null;
+    }
+}
@@ -0,0 +1,24 @@
+package btree;
+
+/**
+ * The attributes {@link TreeMetrics} shows through JMX. Latencies are in
+ * nanoseconds, rounded up to a power of two.
+ */
+public interface TreeMetricsMBean {
+    long getAdds();
+    long getAddLatencyMedian();
+    long getAddLatency99();
+    long getLookups();
+    long getLookupLatencyMedian();
+    long getLookupLatency99();
+    /** Splits of nodes at each height, leaves first */
+    long[] getSplits();
+    long getNodeReads();
+    long getNodeWrites();
+    long getBytesWritten();
+    long getCacheHits();
+    long getCacheMisses();
+    int getHeight();
+    double getFillFactor();
+    void reset();
+}
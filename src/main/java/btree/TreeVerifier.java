@@ -0,0 +1,448 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks a tree file from top to bottom without loading it: every node is
+ * read straight from the file, checked, and dropped again, with subtrees
+ * checked on several threads at once.
+ *
+ * Each node has to match its checksum if the format has them, decode, hold
+ * its words in order and inside the range its parent gives it, and link
+ * only to nodes in the file that are neither free nor reached some other
+ * way, which also rules out cycles. Every leaf has to be at the same depth,
+ * in a linked format each leaf has to link to the one after it, and the
+ * words and frequencies have to add up to the counts in the header. Nodes
+ * that are neither in the tree nor free, and nodes other than the root that
+ * are underfull, are counted but aren't errors.
+ */
+public class TreeVerifier {
+    /** How many errors a report describes; the rest are only counted */
+    public static final int MAX_MESSAGES = 100;
+    // Deeper than any tree whose addresses fit in an int
+    private static final int MAX_HEIGHT = 64;
+
+    private final String path;
+    private final NodeFormat format;
+    private final FileChannel channel;
+    private final int numNodes;
+    // Nodes reached so far, and nodes on the free list
+    private final BitSet reached;
+    private final BitSet free;
+    private final List<String> messages = new ArrayList<String>();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder badChecksums = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+    private final LongAdder underfull = new LongAdder();
+    private final LongAdder keys = new LongAdder();
+    private final LongAdder totalFrequency = new LongAdder();
+    // Fill of every node together, in millionths
+    private final LongAdder fill = new LongAdder();
+
+    /**
+     * What a check found. Counts of words, nodes and fill only cover the
+     * nodes that could be read.
+     */
+    public static class Report {
+	public final String path;
+	public final NodeFormat format;
+	public final int height;
+	public final long nodes;
+	public final long leaves;
+	public final long keys;
+	public final long totalFrequency;
+	/** The average fraction of a node that's filled */
+	public final double fillFactor;
+	public final long underfull;
+	public final long freeNodes;
+	/** Nodes that are neither in the tree nor free */
+	public final long unreachable;
+	public final long badChecksums;
+	public final long errors;
+	/** The first {@code MAX_MESSAGES} errors */
+	public final List<String> messages;
+	public final long millis;
+
+	private Report( TreeVerifier v, int height, long millis ) {
+	    path = v.path;
+	    format = v.format;
+	    this.height = height;
+	    nodes = v.nodes.sum();
+	    leaves = v.leaves.sum();
+	    keys = v.keys.sum();
+	    totalFrequency = v.totalFrequency.sum();
+	    fillFactor = ( nodes == 0 ? 0
+			   : v.fill.sum() / 1e6 / nodes );
+	    underfull = v.underfull.sum();
+	    freeNodes = v.free.cardinality();
+	    BitSet unused = (BitSet) v.reached.clone();
+	    unused.or( v.free );
+	    unreachable = v.numNodes - unused.cardinality();
+	    badChecksums = v.badChecksums.sum();
+	    errors = v.errors.sum();
+	    messages = Collections.unmodifiableList(
+		new ArrayList<String>( v.messages ) );
+	    this.millis = millis;
+	}
+
+	/**
+	 * @return whether no errors were found
+	 */
+	public boolean isOk() {
+	    return errors == 0;
+	}
+
+	public String toString() {
+	    StringBuilder s = new StringBuilder();
+	    s.append( path ).append( ": " ).append( isOk() ? "OK" : "DAMAGED" )
+		.append( " (" ).append( format ).append( ")\n" );
+	    s.append( "  height " ).append( height ).append( ", " )
+		.append( nodes ).append( " nodes, " ).append( leaves )
+		.append( " leaves, " ).append( freeNodes ).append( " free, " )
+		.append( unreachable ).append( " unreachable\n" );
+	    s.append( "  " ).append( keys ).append( " words, total frequency " )
+		.append( totalFrequency ).append( "\n" );
+	    s.append( String.format( "  fill factor %.3f, %d underfull\n",
+				     fillFactor, underfull ) );
+	    s.append( "  " ).append( errors ).append( " errors, " )
+		.append( badChecksums ).append( " bad checksums, " )
+		.append( millis ).append( "ms\n" );
+	    for( String m : messages )
+		s.append( "  " ).append( m ).append( "\n" );
+	    if( errors > messages.size() )
+		s.append( "  ... and " ).append( errors - messages.size() )
+		    .append( " more\n" );
+	    return s.toString();
+	}
+    }
+
+    // The leaves below a node that was checked
+    private static class Subtree {
+	final int height;
+	final int firstLeaf;
+	final int lastLeaf;
+	// Where the last leaf links to, in a linked format
+	final int next;
+
+	Subtree( int height, int firstLeaf, int lastLeaf, int next ) {
+	    this.height = height;
+	    this.firstLeaf = firstLeaf;
+	    this.lastLeaf = lastLeaf;
+	    this.next = next;
+	}
+    }
+
+    private TreeVerifier( String path, NodeFormat format, FileChannel channel,
+			  int numNodes ) {
+	this.path = path;
+	this.format = format;
+	this.channel = channel;
+	this.numNodes = numNodes;
+	reached = new BitSet( numNodes );
+	free = new BitSet( numNodes );
+    }
+
+    /**
+     * Checks the tree file at {@code path}, which nothing should be writing
+     * to at the time
+     * @param threads how many nodes may be read and checked at once
+     * @throws IOException if the file can't be read or has no usable header
+     */
+    public static Report verify( String path, int threads )
+	throws IOException {
+	long start = System.currentTimeMillis();
+	RandomAccessFile file = new RandomAccessFile( path, "r" );
+	try {
+	    FileChannel channel = file.getChannel();
+	    NodeFormat format = NodeFormat.readHeader( channel );
+	    if( format == null )
+		throw new IOException( path + " is empty" );
+	    Superblock sb = new Superblock();
+	    int slots = format.numSlots( channel.size() );
+	    int root = 0;
+	    int numNodes = slots;
+	    boolean hasSuperblock = NodeFormat.readSuperblock( channel, sb );
+	    if( hasSuperblock ) {
+		root = sb.getRootAddress();
+		numNodes = sb.getNumNodes();
+	    }
+	    TreeVerifier v = new TreeVerifier( path, format, channel,
+					       Math.min( numNodes, slots ) );
+	    if( numNodes > slots )
+		v.error( "The header counts " + numNodes + " nodes, but the"
+			 + " file only has room for " + slots );
+	    if( hasSuperblock )
+		v.readFreeList( sb.getFreeHead(), sb.getNumFree() );
+	    int height = -1;
+	    if( v.claim( root, "the header" ) ) {
+		ForkJoinPool pool = new ForkJoinPool( threads );
+		try {
+		    Subtree s = pool.invoke( v.new Check( root, null, null,
+							  0 ) );
+		    if( s != null ) {
+			height = s.height;
+			if( format.LINKED && s.next != -1 )
+			    v.error( "The last leaf, " + s.lastLeaf
+				     + ", links to " + s.next );
+		    }
+		} finally {
+		    pool.shutdown();
+		}
+	    }
+	    if( hasSuperblock && sb.getNumKeys() != Superblock.UNKNOWN
+		&& v.errors.sum() == 0
+		&& ( sb.getNumKeys() != v.keys.sum()
+		     || sb.getTotalFrequency() != v.totalFrequency.sum() ) )
+		v.error( "The header counts " + sb.getNumKeys() + " words of "
+			 + sb.getTotalFrequency() + " adds, but the tree has "
+			 + v.keys.sum() + " of " + v.totalFrequency.sum() );
+	    return new Report( v, height,
+			       System.currentTimeMillis() - start );
+	} finally {
+	    file.close();
+	}
+    }
+
+    private void error( String message ) {
+	errors.increment();
+	synchronized( messages ) {
+	    if( messages.size() < MAX_MESSAGES )
+		messages.add( message );
+	}
+    }
+
+    /**
+     * Marks {@code addr} as reached from {@code from}
+     * @return whether it's a node that hadn't been reached yet
+     */
+    private boolean claim( int addr, String from ) {
+	if( addr < 0 || addr >= numNodes ) {
+	    error( from + " links to " + addr + ", outside the file" );
+	    return false;
+	}
+	synchronized( reached ) {
+	    if( free.get( addr ) ) {
+		error( from + " links to " + addr + ", which is free" );
+		return false;
+	    }
+	    if( reached.get( addr ) ) {
+		error( from + " links to " + addr + ", which is already in"
+		       + " the tree" );
+		return false;
+	    }
+	    reached.set( addr );
+	}
+	return true;
+    }
+
+    /**
+     * @return the node at {@code addr}, or {@code null} if it can't be read
+     * or doesn't match its checksum
+     */
+    private Node read( int addr ) {
+	ByteBuffer buf = ByteBuffer.allocate( format.SLOT_SIZE );
+	long pos = format.offset( addr );
+	try {
+	    while( buf.hasRemaining() )
+		if( channel.read( buf, pos + buf.position() ) < 0 ) {
+		    error( "Node " + addr + " is past the end of the file" );
+		    return null;
+		}
+	} catch ( IOException e ) {
+	    error( "Node " + addr + " can't be read: " + e );
+	    return null;
+	}
+	buf.flip();
+	if( ! format.checkPage( buf, 0, addr ) ) {
+	    badChecksums.increment();
+	    error( "Node " + addr + " doesn't match its checksum" );
+	    return null;
+	}
+	try {
+	    return Node.readFrom( addr, buf, format, null );
+	} catch ( RuntimeException e ) {
+	    error( "Node " + addr + " can't be decoded: " + e );
+	    return null;
+	}
+    }
+
+    private void readFreeList( int head, int count ) {
+	int n = 0;
+	for( int addr = head ; addr != -1 ; n++ ) {
+	    if( addr < 0 || addr >= numNodes ) {
+		error( "The free list links to " + addr
+		       + ", outside the file" );
+		return;
+	    }
+	    if( free.get( addr ) ) {
+		error( "The free list goes round in a loop at " + addr );
+		return;
+	    }
+	    free.set( addr );
+	    Node freed = read( addr );
+	    if( freed == null )
+		return;
+	    addr = freed.getLinkAddress( 0 );
+	}
+	if( n != count )
+	    error( "The header counts " + count + " free nodes, but the free"
+		   + " list has " + n );
+    }
+
+    /**
+     * Checks the node at {@code addr}, whose words have to come after
+     * {@code lower} and before {@code upper}, and the nodes below it
+     */
+    private class Check extends RecursiveTask<Subtree> {
+	private static final long serialVersionUID = 1L;
+
+	private final int addr;
+	private final String lower;
+	private final String upper;
+	private final int depth;
+
+	Check( int addr, String lower, String upper, int depth ) {
+	    this.addr = addr;
+	    this.lower = lower;
+	    this.upper = upper;
+	    this.depth = depth;
+	}
+
+	protected Subtree compute() {
+	    Node n = read( addr );
+	    if( n == null )
+		return null;
+	    nodes.increment();
+	    int numKeys = n.numKeys();
+	    boolean leaf = n.isLeaf();
+	    String[] words = new String[numKeys];
+	    for( int i = 0 ; i < numKeys ; i++ )
+		words[i] = n.getWord(i);
+	    checkWords( n, words, leaf );
+	    if( depth > 0 && n.isUnderfull() )
+		underfull.increment();
+	    fill.add( (long) ( 1e6 * fill( words, leaf ) ) );
+	    if( leaf ) {
+		leaves.increment();
+		for( int i = 0 ; i < numKeys ; i++ )
+		    if( n.getFreq(i) > 0 ) {
+			keys.increment();
+			totalFrequency.add( n.getFreq(i) );
+		    }
+		return new Subtree( 0, addr, addr, n.getNextAddress() );
+	    }
+	    if( numKeys == 0 ) {
+		error( "Node " + addr + " has links but no words" );
+		return null;
+	    }
+	    if( depth + 1 >= MAX_HEIGHT ) {
+		error( "Node " + addr + " is deeper than " + MAX_HEIGHT );
+		return null;
+	    }
+	    if( ! format.LINKED )
+		for( int i = 0 ; i < numKeys ; i++ ) {
+		    keys.increment();
+		    totalFrequency.add( n.getFreq(i) );
+		}
+	    List<Check> children = new ArrayList<Check>();
+	    for( int i = 0 ; i <= numKeys ; i++ ) {
+		int child = n.getLinkAddress(i);
+		if( claim( child, "Node " + addr ) )
+		    children.add( new Check( child,
+					     i == 0 ? lower : words[i - 1],
+					     i == numKeys ? upper : words[i],
+					     depth + 1 ) );
+	    }
+	    n = null;
+	    invokeAll( children );
+	    Subtree first = null;
+	    Subtree last = null;
+	    for( Check c : children ) {
+		Subtree s = c.join();
+		if( s == null ) {
+		    last = null;
+		    continue;
+		}
+		if( first == null )
+		    first = s;
+		else if( s.height != first.height )
+		    error( "Node " + addr + " has leaves at depths "
+			   + ( depth + 1 + first.height ) + " and "
+			   + ( depth + 1 + s.height ) );
+		if( format.LINKED && last != null
+		    && last.next != s.firstLeaf )
+		    error( "Leaf " + last.lastLeaf + " links to "
+			   + last.next + " instead of " + s.firstLeaf );
+		last = s;
+	    }
+	    if( first == null || last == null )
+		return null;
+	    return new Subtree( first.height + 1, first.firstLeaf,
+				last.lastLeaf, last.next );
+	}
+
+	private void checkWords( Node n, String[] words, boolean leaf ) {
+	    for( int i = 0 ; i < words.length ; i++ ) {
+		int freq = n.getFreq(i);
+		boolean separator = ( format.LINKED && ! leaf );
+		if( separator ? freq != Node.SEPARATOR : freq <= 0 ) {
+		    error( "Word " + i + " of node " + addr + " has frequency "
+			   + freq );
+		    return;
+		}
+		if( words[i] == null ) {
+		    error( "Word " + i + " of node " + addr + " is missing" );
+		    return;
+		}
+		if( i > 0 && words[i - 1].compareTo( words[i] ) >= 0 ) {
+		    error( "Node " + addr + " has \"" + words[i - 1]
+			   + "\" before \"" + words[i] + "\"" );
+		    return;
+		}
+	    }
+	    if( words.length == 0 )
+		return;
+	    // The leaves of a linked format hold the separator above them
+	    int low = ( lower == null ? 1 : words[0].compareTo( lower ) );
+	    if( low < 0 || low == 0 && ! ( format.LINKED && leaf ) )
+		error( "Node " + addr + " starts with \"" + words[0]
+		       + "\", which doesn't come after \"" + lower + "\"" );
+	    String high = words[words.length - 1];
+	    if( upper != null && high.compareTo( upper ) >= 0 )
+		error( "Node " + addr + " ends with \"" + high
+		       + "\", which doesn't come before \"" + upper + "\"" );
+	    if( leaf )
+		for( int i = 1 ; i <= words.length ; i++ )
+		    if( n.getLinkAddress(i) != -1 ) {
+			error( "Leaf " + addr + " has a link" );
+			return;
+		    }
+	}
+
+	// How much of the node its words take, as a fraction
+	private double fill( String[] words, boolean leaf ) {
+	    if( ! format.SLOTTED )
+		return (double) words.length / format.MAX_KEYS;
+	    if( words.length == 0 )
+		return 0;
+	    int total = 0;
+	    for( String w : words )
+		total += NodeFormat.utf8Length( w, w.length() );
+	    int prefix = NodeFormat.prefixLength( words[0],
+						  words[words.length - 1] );
+	    return (double) NodeFormat.pageSize( words.length, total, prefix,
+						 ! leaf ) / format.PAGE_SPACE;
+	}
+    }
+}
@@ -0,0 +1,277 @@
+package btree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the words added to a tree since its file was last
+ * brought up to date, so that adds survive a crash without every node they
+ * touch being written first.
+ *
+ * Adds are logged as words and counts, and removals as negative counts.
+ * They're written and synced to disk in groups: once {@code syncBatch} of
+ * them are waiting, the add that fills the group syncs them all, and
+ * threads that are waiting on the same sync share it instead of each
+ * syncing on its own.
+ *
+ * Bringing the tree file up to date is done as a checkpoint. The changed
+ * pages are first copied into the log and synced, followed by a marker, and
+ * only then written over their old versions in the tree file. Once the tree
+ * file is synced the log is emptied. A crash part way through writing the
+ * tree file is repaired by writing the logged pages again, so the tree file
+ * is always left as it was after some checkpoint. Recovery only has to read
+ * the log, which never holds more than one checkpoint's worth of changes.
+ */
+public class WriteAheadLog implements AutoCloseable {
+    // Record types. Each record is its type, the length of its body, the
+    // body, and a checksum of the type and body.
+    private static final byte ADD = 1;
+    private static final byte PAGE = 2;
+    private static final byte CHECKPOINT = 3;
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+
+    public final String FILEPATH;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int syncBatch;
+    // Records that haven't been written to the file yet
+    private ByteBuffer pending;
+    private int numPending;
+    // Numbers of the last record appended and the last one synced
+    private long appended;
+    private long synced;
+    private final Object syncLock = new Object();
+
+    /**
+     * @param syncBatch how many adds may wait before they're synced. With
+     * {@code 1} every add is on disk before it returns; with more, up to
+     * {@code syncBatch - 1} of the latest adds can be lost in a crash. With
+     * {@code 0} adds are only synced at checkpoints.
+     */
+    public WriteAheadLog( String fPath, int syncBatch ) throws IOException {
+	if( syncBatch < 0 )
+	    throw new IllegalArgumentException( "Sync batch " + syncBatch
+						+ " is negative" );
+	FILEPATH = fPath;
+	this.syncBatch = syncBatch;
+	file = new RandomAccessFile( fPath, "rw" );
+	channel = file.getChannel();
+	pending = ByteBuffer.allocate( 4096 );
+    }
+
+    /**
+     * Logs that {@code word} was added {@code count} times, or if the count
+     * is negative, that that many of its adds were taken away. Syncs the
+     * log if that fills a group.
+     */
+    public void append( String word, int count ) throws IOException {
+	byte[] bytes = word.getBytes( StandardCharsets.UTF_8 );
+	ByteBuffer body = ByteBuffer.allocate( 4 + bytes.length );
+	body.putInt( count );
+	body.put( bytes );
+	long seq;
+	synchronized( this ) {
+	    put( ADD, body.array() );
+	    seq = appended;
+	    if( syncBatch == 0 || ++numPending < syncBatch )
+		return;
+	}
+	sync( seq );
+    }
+
+    /**
+     * Syncs every record appended so far
+     */
+    public void sync() throws IOException {
+	long seq;
+	synchronized( this ) {
+	    seq = appended;
+	}
+	sync( seq );
+    }
+
+    // Makes sure record seq and everything before it is on disk. Whoever
+    // gets the lock first syncs every record waiting at the time, which
+    // often covers the threads queued behind it too.
+    private void sync( long seq ) throws IOException {
+	synchronized( syncLock ) {
+	    if( synced >= seq )
+		return;
+	    ByteBuffer buf;
+	    long upTo;
+	    synchronized( this ) {
+		buf = pending;
+		upTo = appended;
+		pending = ByteBuffer.allocate( Math.max( 4096,
+							 buf.capacity() ) );
+		numPending = 0;
+	    }
+	    buf.flip();
+	    while( buf.hasRemaining() )
+		channel.write( buf, channel.size() );
+	    channel.force( false );
+	    synced = upTo;
+	}
+    }
+
+    private synchronized void put( byte type, byte[] body ) {
+	if( pending.remaining() < RECORD_OVERHEAD + body.length ) {
+	    ByteBuffer bigger = ByteBuffer.allocate(
+		2 * pending.capacity() + RECORD_OVERHEAD + body.length );
+	    pending.flip();
+	    bigger.put( pending );
+	    pending = bigger;
+	}
+	CRC32 crc = new CRC32();
+	crc.update( type );
+	crc.update( body );
+	pending.put( type );
+	pending.putInt( body.length );
+	pending.put( body );
+	pending.putInt( (int) crc.getValue() );
+	appended++;
+    }
+
+    /**
+     * Copies the pages about to be written to the tree file into the log,
+     * marks the copy as complete and syncs it, along with every add before
+     * it. The file's header, if it's given, is logged as the page at
+     * {@link PageCache#HEADER_ADDRESS}.
+     */
+    public void logPages( Collection<Node> nodes, ByteBuffer header )
+	throws IOException {
+	if( header != null ) {
+	    ByteBuffer body = ByteBuffer.allocate( 4 + header.position() );
+	    body.putInt( PageCache.HEADER_ADDRESS );
+	    body.put( header.array(), 0, header.position() );
+	    put( PAGE, body.array() );
+	}
+	for( Node n : nodes ) {
+	    ByteBuffer body = ByteBuffer.allocate( 4
+						   + n.getFormat().SLOT_SIZE );
+	    body.putInt( n.ADDRESS );
+	    n.writeTo( body );
+	    put( PAGE, body.array() );
+	}
+	put( CHECKPOINT, new byte[0] );
+	sync();
+    }
+
+    /**
+     * @return whether nothing has been logged since the log was emptied
+     */
+    public synchronized boolean isEmpty() throws IOException {
+	return pending.position() == 0 && channel.size() == 0;
+    }
+
+    /**
+     * Empties the log once the tree file holds everything in it
+     */
+    public void checkpointed() throws IOException {
+	synchronized( syncLock ) {
+	    synchronized( this ) {
+		channel.truncate( 0 );
+		channel.force( false );
+		pending.clear();
+		numPending = 0;
+		synced = appended;
+	    }
+	}
+    }
+
+    /**
+     * What the log holds after a crash: the pages of the last checkpoint
+     * that was logged in full, which may not have reached the tree file,
+     * and the adds that came after that checkpoint
+     */
+    public static class Recovery {
+	public final LinkedList<SimpleImmutableEntry<Integer,byte[]>> pages
+	    = new LinkedList<SimpleImmutableEntry<Integer,byte[]>>();
+	public final LinkedList<SimpleImmutableEntry<String,Integer>> adds
+	    = new LinkedList<SimpleImmutableEntry<String,Integer>>();
+    }
+
+    /**
+     * Reads back everything logged since the log was last emptied. A record
+     * that was cut short or doesn't match its checksum ends the log, since
+     * the crash came while it was being written.
+     */
+    public synchronized Recovery recover() throws IOException {
+	Recovery r = new Recovery();
+	LinkedList<SimpleImmutableEntry<Integer,byte[]>> pages
+	    = new LinkedList<SimpleImmutableEntry<Integer,byte[]>>();
+	ByteBuffer head = ByteBuffer.allocate( 5 );
+	ByteBuffer crcBuf = ByteBuffer.allocate( 4 );
+	long pos = 0;
+	long size = channel.size();
+	while( pos + RECORD_OVERHEAD <= size ) {
+	    head.clear();
+	    readFully( head, pos );
+	    byte type = head.get( 0 );
+	    int length = head.getInt( 1 );
+	    if( length < 0 || pos + RECORD_OVERHEAD + length > size )
+		break;
+	    ByteBuffer body = ByteBuffer.allocate( length );
+	    readFully( body, pos + 5 );
+	    crcBuf.clear();
+	    readFully( crcBuf, pos + 5 + length );
+	    CRC32 crc = new CRC32();
+	    crc.update( type );
+	    crc.update( body.array() );
+	    if( crcBuf.getInt( 0 ) != (int) crc.getValue() )
+		break;
+	    pos += RECORD_OVERHEAD + length;
+	    body.flip();
+	    if( type == ADD ) {
+		int count = body.getInt();
+		String word = new String( body.array(), 4, length - 4,
+					  StandardCharsets.UTF_8 );
+		r.adds.add( new SimpleImmutableEntry<String,Integer>( word,
+								      count ));
+	    } else if( type == PAGE ) {
+		int addr = body.getInt();
+		byte[] page = new byte[length - 4];
+		body.get( page );
+		pages.add( new SimpleImmutableEntry<Integer,byte[]>( addr,
+								     page ) );
+	    } else if( type == CHECKPOINT ) {
+		// Everything added before the checkpoint is in its pages
+		r.pages.clear();
+		r.pages.addAll( pages );
+		pages.clear();
+		r.adds.clear();
+	    } else
+		break;
+	}
+	// Whatever follows the last good record is dropped
+	channel.truncate( pos );
+	return r;
+    }
+
+    private void readFully( ByteBuffer buf, long pos ) throws IOException {
+	while( buf.hasRemaining() ) {
+	    int n = channel.read( buf, pos + buf.position() );
+	    if( n < 0 )
+		throw new EOFException( FILEPATH );
+	}
+    }
+
+    /**
+     * Syncs anything still waiting and closes the file
+     */
+    public void close() throws IOException {
+	try {
+	    sync();
+	} finally {
+	    file.close();
+	}
+    }
+}
@@ -0,0 +1,262 @@
+package btree;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * Collects adds in sorted memory tables and merges them into a tree in
+ * batches, so the tree's file is written in key order a table at a time
+ * instead of a node at a time wherever each add lands.
+ *
+ * Adds go into the active table, a skip list of counts. Once it holds
+ * {@code CAPACITY} words it's frozen and a fresh one takes its place, and a
+ * background thread merges the frozen tables into the tree, oldest first,
+ * with {@link Tree#addCounts}. If {@code MAX_FROZEN} tables are waiting,
+ * adds wait for the merges to catch up.
+ *
+ * Lookups add up the word's counts in the active table, the frozen ones
+ * and the tree, so they're always exact. A table leaves the frozen ones in
+ * the same step that merges it, so no lookup sees its counts twice or not
+ * at all. Lookups wait while a merge is running, and adds never do.
+ *
+ * While the buffer is open, the tree should only be reached through it.
+ * Adds that are still in a table aren't in the tree's log, so a crash loses
+ * the adds since the last merge.
+ */
+public class WriteBuffer implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final int MAX_FROZEN = 2;
+
+    // Counts stop at Integer.MAX_VALUE, as the tree's frequencies do
+    private static final BiFunction<Integer,Integer,Integer> SUM
+	= new BiFunction<Integer,Integer,Integer>() {
+		public Integer apply( Integer a, Integer b ) {
+		    return sum( a, b );
+		}
+	    };
+
+    /** How many different words the active table holds before it's frozen */
+    public final int CAPACITY;
+    private final Tree tree;
+    private volatile ConcurrentSkipListMap<String,Integer> active;
+    private final AtomicInteger activeWords = new AtomicInteger();
+    // Oldest first. Only changed while holding the swap lock for writing.
+    private final LinkedList<ConcurrentSkipListMap<String,Integer>> frozen
+	= new LinkedList<ConcurrentSkipListMap<String,Integer>>();
+    private volatile int numFrozen;
+    // Held shared by adds and lookups while they use the tables, and
+    // exclusively to change which tables there are
+    private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+    // Held shared by lookups, and exclusively by a merge until its table is
+    // out of the frozen ones
+    private final ReentrantReadWriteLock merging
+	= new ReentrantReadWriteLock();
+    private final Thread merger;
+    // Guarded by this, which is also what waits for merges are made on
+    private boolean closed;
+
+    public WriteBuffer( Tree tree ) {
+	this( tree, DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param capacity how many different words the active table holds
+     * before it's frozen and merged
+     */
+    public WriteBuffer( Tree tree, int capacity ) {
+	if( capacity <= 0 )
+	    throw new IllegalArgumentException( "Capacity " + capacity
+						+ " isn't positive" );
+	this.tree = tree;
+	CAPACITY = capacity;
+	active = new ConcurrentSkipListMap<String,Integer>();
+	merger = new Thread( "WriteBuffer merge " + tree.FILEPATH ) {
+		public void run() {
+		    merge();
+		}
+	    };
+	merger.setDaemon( true );
+	merger.start();
+    }
+
+    public Tree getTree() {
+	return tree;
+    }
+
+    public WriteBuffer add( String str ) {
+	// Words that are too big go straight to the tree to be turned away
+	if( ! tree.getFormat().canAdd( str ) ) {
+	    tree.add( str );
+	    return this;
+	}
+	boolean full = false;
+	swap.readLock().lock();
+	try {
+	    if( active.merge( str, 1, SUM ) == 1 )
+		full = ( activeWords.incrementAndGet() >= CAPACITY );
+	} finally {
+	    swap.readLock().unlock();
+	}
+	if( full )
+	    freeze( false );
+	return this;
+    }
+
+    /**
+     * Hands the active table to the merges, once there's room for it
+     * @param force whether to freeze a table that isn't full yet
+     */
+    private void freeze( boolean force ) {
+	synchronized( this ) {
+	    while( numFrozen >= MAX_FROZEN && ! closed ) {
+		try {
+		    wait();
+		} catch ( InterruptedException e ) {
+		    Thread.currentThread().interrupt();
+		    return;
+		}
+	    }
+	}
+	swap.writeLock().lock();
+	try {
+	    // Another thread may have frozen it in the meantime
+	    int words = activeWords.get();
+	    if( words == 0 || words < CAPACITY && ! force )
+		return;
+	    frozen.addLast( active );
+	    numFrozen = frozen.size();
+	    active = new ConcurrentSkipListMap<String,Integer>();
+	    activeWords.set( 0 );
+	} finally {
+	    swap.writeLock().unlock();
+	}
+	synchronized( this ) {
+	    notifyAll();
+	}
+    }
+
+    // Run by the merge thread until the buffer is closed
+    private void merge() {
+	while( true ) {
+	    synchronized( this ) {
+		while( numFrozen == 0 && ! closed ) {
+		    try {
+			wait();
+		    } catch ( InterruptedException e ) {
+			return;
+		    }
+		}
+		if( numFrozen == 0 )
+		    return;
+	    }
+	    ConcurrentSkipListMap<String,Integer> table;
+	    swap.readLock().lock();
+	    try {
+		table = frozen.getFirst();
+	    } finally {
+		swap.readLock().unlock();
+	    }
+	    merging.writeLock().lock();
+	    try {
+		tree.addCounts( table );
+	    } catch ( RuntimeException e ) {
+		e.printStackTrace();
+	    } finally {
+		// Even a table that failed is dropped, rather than merged
+		// again on top of whatever part of it made it in
+		swap.writeLock().lock();
+		try {
+		    frozen.removeFirst();
+		    numFrozen = frozen.size();
+		} finally {
+		    swap.writeLock().unlock();
+		}
+		merging.writeLock().unlock();
+	    }
+	    synchronized( this ) {
+		notifyAll();
+	    }
+	}
+    }
+
+    public boolean contains( String str ) {
+	return getFrequency( str ) != 0;
+    }
+
+    private static int sum( int a, int b ) {
+	return (int) Math.min( (long) a + b, Integer.MAX_VALUE );
+    }
+
+    /**
+     * @return how many times {@code str} has been added, whether or not
+     * the adds have been merged into the tree. Like the tree's, it stops at
+     * {@code Integer.MAX_VALUE}.
+     */
+    public int getFrequency( String str ) {
+	merging.readLock().lock();
+	try {
+	    int freq = 0;
+	    swap.readLock().lock();
+	    try {
+		Integer count = active.get( str );
+		if( count != null )
+		    freq = sum( freq, count );
+		for( ConcurrentSkipListMap<String,Integer> table : frozen ) {
+		    count = table.get( str );
+		    if( count != null )
+			freq = sum( freq, count );
+		}
+	    } finally {
+		swap.readLock().unlock();
+	    }
+	    return sum( freq, tree.getFrequency( str ) );
+	} finally {
+	    merging.readLock().unlock();
+	}
+    }
+
+    /**
+     * @return how many tables are frozen and waiting to be merged
+     */
+    public int numFrozen() {
+	return numFrozen;
+    }
+
+    /**
+     * Freezes the active table and waits until every table is merged into
+     * the tree
+     */
+    public void flush() {
+	freeze( true );
+	synchronized( this ) {
+	    while( numFrozen > 0 ) {
+		try {
+		    wait();
+		} catch ( InterruptedException e ) {
+		    Thread.currentThread().interrupt();
+		    return;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Merges everything into the tree and stops the merge thread. The tree
+     * is left open.
+     */
+    public void close() {
+	flush();
+	synchronized( this ) {
+	    closed = true;
+	    notifyAll();
+	}
+	try {
+	    merger.join();
+	} catch ( InterruptedException e ) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
@@ -0,0 +1,1728 @@
+// These tests were done using JUnit 4.12 and hamcrest 1.3
+
+package btree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class Tests {
+    static final String TEST_OUTPUT_DIR = "test-outputs.d";
+    
+    @BeforeClass
+    public static void openDir() {
+	File dir = new File( TEST_OUTPUT_DIR );
+	if( ! dir.exists() )
+	    dir.mkdir();
+    }
+    @AfterClass
+    public static void removeDir() {
+	File dir = new File( TEST_OUTPUT_DIR );
+	File[] contents = dir.listFiles();
+	if (contents != null) {
+	    for (File f : contents) {
+		f.delete();
+	    }
+	}
+	dir.delete();
+    }
+
+    
+    boolean testNodeValues( Node n, String[] words, int[] freqs ) {
+	if(words.length != freqs.length || words.length > Node.MAX_KEYS)
+	    return false;
+	for( int i = 0; i < Node.MAX_KEYS ; i++ ){
+	    if( i >= freqs.length ) {
+	    	if( n.getWord(i) != null || n.getFreq(i) != 0 )
+	    	    return false;
+	    } else if( n.getWord(i) == null
+		       || (! n.getWord(i).equals(words[i]))
+		       || n.getFreq(i) != freqs[i] )
+		return false;
+	}
+	return true;
+    }
+    
+    @Test
+    public void nodeFileIO() {
+	Node n = new Node(0);
+	n.set( 0, "Åçhálîëorßkhriåch", 1);
+	n.set( 1, "aaa",2);
+	n.set( 2, "zzzz",1);
+	n.set( 3, "åáâàå",3);
+	n.set( 4, "Güten Tag, World!",1);
+	n.set( 5, "こんにちは世界！",1);
+	n.set( 6,
+	    "IWantedToTestForA64ByteWordSoHereIsOneSuchWordThatIAmTestingNow!"
+	       ,1);
+	
+	n.writeToFile( TEST_OUTPUT_DIR + "/nodeFileIO");
+	n = null;
+	try{
+	    RandomAccessFile file =
+		new RandomAccessFile(TEST_OUTPUT_DIR + "/nodeFileIO", "rw");
+	    n = Node.readFromFile(0,file);
+	    file.close();
+	} catch( IOException e ) {
+	    e.printStackTrace();
+	}
+	assertTrue( testNodeValues( n, new String[]{"Åçhálîëorßkhriåch",
+	   "aaa","zzzz","åáâàå","Güten Tag, World!","こんにちは世界！",
+	   "IWantedToTestForA64ByteWordSoHereIsOneSuchWordThatIAmTestingNow!"},
+		new int[]{1,2,1,3,1,1,1} ));
+    }
+        
+    @Test
+    public void nodeSearch() throws IOException {
+	// Empty slots at the end come after every word
+	String[] words = { "b", "d", "f", null, null };
+	assertEquals( 0, Node.insertionPoint( words, "a" ) );
+	assertEquals( 0, Node.insertionPoint( words, "b" ) );
+	assertEquals( 1, Node.insertionPoint( words, "c" ) );
+	assertEquals( 2, Node.insertionPoint( words, "f" ) );
+	assertEquals( 3, Node.insertionPoint( words, "g" ) );
+	assertEquals( 0, Node.insertionPoint( new String[0], "a" ) );
+	assertEquals( 0, Node.insertionPoint( new String[3], "a" ) );
+	assertEquals( 3, Node.insertionPoint( new String[]{ "a", "b", "c" },
+					      "d" ) );
+
+	PageCache pages = new PageCache( TEST_OUTPUT_DIR + "/nodeSearch",
+					 NodeFormat.DEFAULT,
+					 PageCache.DEFAULT_CACHE_BYTES, false,
+					 true );
+	Node[] nodes = { new Node( 0 ),
+			 new Node( 0, NodeFormat.slotted( 256 ), null ),
+			 new Node( 0, pages.getFormat(), pages ) };
+	assertTrue( nodes[2].isOffHeap() );
+	for( Node n : nodes ) {
+	    assertEquals( 0, n.insertionPoint( "a" ) );
+	    assertEquals( -1, n.indexOf( "a" ) );
+	    assertEquals( -1, n.indexOf( "" ) );
+
+	    // Ordered by UTF-16 unit, as String.compareTo orders them, and
+	    // not by code point
+	    String[] in = { "b", "d", "f", "\uD83D\uDE00", "\uE000" };
+	    for( int i = 0 ; i < in.length ; i++ )
+		n.set( i, in[i], i + 1 );
+	    for( int i = 0 ; i < in.length ; i++ ) {
+		assertEquals( i, n.insertionPoint( in[i] ) );
+		assertEquals( i, n.indexOf( in[i] ) );
+	    }
+	    assertEquals( 0, n.insertionPoint( "" ) );
+	    assertEquals( -1, n.indexOf( "" ) );
+	    assertEquals( 1, n.insertionPoint( "c" ) );
+	    assertEquals( -1, n.indexOf( "c" ) );
+	    assertEquals( 2, n.insertionPoint( "dd" ) );
+	    assertEquals( -1, n.indexOf( "dd" ) );
+	    assertEquals( -1, n.indexOf( "f\u0000" ) );
+	    assertEquals( 5, n.insertionPoint( "\uFFFF" ) );
+	    assertEquals( -1, n.indexOf( "\uFFFF" ) );
+	    assertEquals( 3, n.insertionPoint( "z" ) );
+
+	    // A full node has no empty slots to stop at
+	    int full = 0;
+	    for( int i = 0 ; i < n.getFormat().MAX_KEYS ; i++ ) {
+		String str = String.format( "w%04d", i );
+		if( ! n.hasRoomFor( str ) && n.getWord( i ) == null )
+		    break;
+		n.set( i, str, 1 );
+		full = i + 1;
+	    }
+	    String last = String.format( "w%04d", full - 1 );
+	    assertEquals( 0, n.indexOf( "w0000" ) );
+	    assertEquals( full - 1, n.indexOf( last ) );
+	    assertEquals( full, n.insertionPoint( last + "a" ) );
+	    assertEquals( -1, n.indexOf( last + "a" ) );
+	}
+	pages.close();
+    }
+        
+    @Test
+    public void leafSplit(){
+	Tree myTree = new Tree(TEST_OUTPUT_DIR + "/leafSplit");
+	myTree.addAll( testWords.subList(0,19) );
+
+	assertTrue(testNodeValues(myTree.root,
+				  new String[]{"b","d","f"},
+				  new int[]{1,1,1} ));
+	assertTrue(testNodeValues(myTree.root.getLink(0),
+				  new String[]{"a0","a1","a2","a3"},
+				  new int[]{1,1,1,1} ));
+	assertTrue(testNodeValues(myTree.root.getLink(1),
+				  new String[]{"c0","c1","c2","c3"},
+				  new int[]{1,1,1,1} ));
+	assertTrue(testNodeValues(myTree.root.getLink(3),
+				  new String[]{"g0","g1","g2","g3"},
+				  new int[]{1,1,1,1} ));
+    }
+
+    @Test
+    public void nonLeafSplit(){
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/nonLeafSplit");
+	t.addAll( testWords );
+
+	assertTrue(testNodeValues(t.root,
+				  new String[]{"b","d","f","h","j","l","n","p"},
+				  new int[]{1,1,1,1,1,1,1,1} ));
+	assertTrue(testNodeValues(t.root.getLink(8),
+				  new String[]{"q0","q1","q2","q3"},
+				  new int[]{1,1,1,1} ));
+
+	t.addAll( Arrays.asList( "a4","a5","a6","a7","a8" ));
+	assertTrue(testNodeValues(t.root,
+				  new String[]{"h"},
+				  new int[]{1} ));
+	assertTrue(testNodeValues(t.root.getLink(0),
+				  new String[]{"a4","b","d","f"},
+				  new int[]{1,1,1,1} ));
+	assertTrue(testNodeValues(t.root.getLink(1),
+				  new String[]{"j","l","n","p"},
+				  new int[]{1,1,1,1} ));
+
+	t = new Tree(TEST_OUTPUT_DIR + "/nonLeafSplit");
+	t.addAll(testWords).addAll(Arrays.asList( "q4","q5","q6","q7","q8" ));
+	assertTrue(testNodeValues(t.root,
+				  new String[]{"j"},
+				  new int[]{1} ));
+	assertTrue(testNodeValues(t.root.getLink(0),
+				  new String[]{"b","d","f","h"},
+				  new int[]{1,1,1,1} ));
+	assertTrue(testNodeValues(t.root.getLink(1),
+				  new String[]{"l","n","p","q4"},
+				  new int[]{1,1,1,1} ));
+
+	t = new Tree(TEST_OUTPUT_DIR + "/nonLeafSplit");
+	t.addAll(testWords).addAll(Arrays.asList( "i4","i5","i6","i7","i8" ));
+	assertTrue(testNodeValues(t.root,
+				  new String[]{"i4"},
+				  new int[]{1} ));
+	assertTrue(testNodeValues(t.root.getLink(0),
+				  new String[]{"b","d","f","h"},
+				  new int[]{1,1,1,1} ));
+	assertTrue(testNodeValues(t.root.getLink(1),
+				  new String[]{"j","l","n","p"},
+				  new int[]{1,1,1,1} ));	
+    }
+
+    @Test
+    public void iteratorTest() {	
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/iteratorTest");
+
+	List<String> l = new ArrayList<String>();
+	l.addAll( testWords );
+	l.addAll( moreTestWords );
+	t.addAll( l );
+	// list of some words that are already in l
+	List<String> repeats = Arrays.asList("a2","A2","d","f",
+					     "Z3","c3","n","p");
+	t.addAll( repeats );
+	l.sort(new Comparator<String>(){
+		public int compare(String a, String b){
+		    return a.compareTo(b);
+		}});
+	Iterator<String> listIter = l.iterator();
+	Iterator<SimpleImmutableEntry<String,Integer>> treeIter = t.iterator();
+	while( listIter.hasNext() ) {
+	    SimpleImmutableEntry<String,Integer> ent = treeIter.next();
+	    String tStr = ent.getKey();
+	    int    tFrq = ent.getValue();
+	    String lStr = listIter.next();
+	    assertTrue( tStr.equals(lStr) );
+	    if( repeats.contains(tStr) )
+		assertEquals( tFrq, 2 );
+	    else
+		assertEquals( tFrq, 1 );
+	}
+    }
+
+    @Test
+    public void TreeFileIO() {
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/treeFileIO");
+
+	t.addAll( testWords );
+	t.addAll( moreTestWords );
+	t.addAll(Arrays.asList("a2","A2","d","f","Z3","c3","n","p"));
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = t.iterator();
+	t.close();
+
+	t = new Tree(TEST_OUTPUT_DIR + "/treeFileIO");
+	t.readFromFile();
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1 = t.iterator();
+	
+	while( iter0.hasNext() && iter1.hasNext() ) {
+	    SimpleImmutableEntry<String,Integer> e0 = iter0.next();
+	    SimpleImmutableEntry<String,Integer> e1 = iter1.next();
+	    assertEquals( e0.getValue(), e1.getValue() );
+	    assertTrue( e0.getKey().equals( e1.getKey() ));
+	}
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+    }
+
+    @Test
+    public void smallPageCache() {
+	// A cache that only holds two nodes has to write back during the adds
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/smallPageCache",
+			  2 * Node.NODE_SIZE);
+	t.addAll( testWords ).addAll( moreTestWords ).addAll( testWords );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = t.iterator();
+	t.close();
+
+	t = new Tree(TEST_OUTPUT_DIR + "/smallPageCache");
+	t.readFromFile();
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1 = t.iterator();
+	while( iter0.hasNext() && iter1.hasNext() ) {
+	    SimpleImmutableEntry<String,Integer> e0 = iter0.next();
+	    SimpleImmutableEntry<String,Integer> e1 = iter1.next();
+	    assertEquals( e0.getValue(), e1.getValue() );
+	    assertTrue( e0.getKey().equals( e1.getKey() ));
+	}
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+	t.close();
+    }
+
+    @Test
+    public void lazyLoading() {
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/lazyLoading");
+	t.addAll( testWords ).addAll( moreTestWords ).addAll( testWords );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = t.iterator();
+	t.close();
+
+	// Only a handful of nodes fit in the cache, so most of them have to
+	// be read again as they're reached
+	t = new Tree(TEST_OUTPUT_DIR + "/lazyLoading",
+		     4 * PageCache.NODE_HEAP_SIZE, true);
+	t.readFromFile();
+	assertTrue( t.contains( "こんにちは世界！" ) );
+	assertFalse( t.contains( "a9" ) );
+	t.addAll( Arrays.asList( "a9", "a9" ) );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1 = t.iterator();
+	while( iter0.hasNext() && iter1.hasNext() ) {
+	    SimpleImmutableEntry<String,Integer> e1 = iter1.next();
+	    if( e1.getKey().equals( "a9" ) ) {
+		assertEquals( 2, (int) e1.getValue() );
+		continue;
+	    }
+	    SimpleImmutableEntry<String,Integer> e0 = iter0.next();
+	    assertEquals( e0.getValue(), e1.getValue() );
+	    assertTrue( e0.getKey().equals( e1.getKey() ));
+	}
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+	t.close();
+    }
+
+    @Test
+    public void mappedTree() throws IOException {
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/mappedTree");
+	// "\uFF5A" sorts after "\uD83D\uDE00" as a String, but before it
+	// as UTF-8 bytes
+	List<String> odd = Arrays.asList( "\uFF5A", "\uD83D\uDE00", "\uE000" );
+	t.addAll( testWords ).addAll( moreTestWords ).addAll( odd );
+	t.addAll( Arrays.asList( "a2", "a2", "Z3" ) );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = t.iterator();
+	t.close();
+
+	MappedTree m = new MappedTree(TEST_OUTPUT_DIR + "/mappedTree");
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1 = m.iterator();
+	while( iter0.hasNext() && iter1.hasNext() ) {
+	    SimpleImmutableEntry<String,Integer> e0 = iter0.next();
+	    SimpleImmutableEntry<String,Integer> e1 = iter1.next();
+	    assertEquals( e0.getValue(), e1.getValue() );
+	    assertTrue( e0.getKey().equals( e1.getKey() ));
+	    assertEquals( (int) e0.getValue(), m.getFrequency( e0.getKey() ) );
+	}
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+	for( String str : odd )
+	    assertTrue( m.contains( str ) );
+	assertEquals( 3, m.getFrequency( "a2" ) );
+	assertFalse( m.contains( "a9" ) );
+	assertFalse( m.contains( "" ) );
+	m.close();
+    }
+
+    // Returns the depth of every leaf below n, or -1 if they differ or a
+    // node other than the root is less than half full. Slotted pages are
+    // split by size, so only their depths are checked.
+    int checkShape( Node n, boolean isRoot ) {
+	if( ! isRoot && ! n.getFormat().SLOTTED
+	    && n.numKeys() < n.getFormat().MAX_KEYS / 2 )
+	    return -1;
+	if( n.isLeaf() )
+	    return 0;
+	int depth = checkShape( n.getLink(0), false );
+	for( int i = 1 ; i <= n.numKeys() ; i++ )
+	    if( checkShape( n.getLink(i), false ) != depth )
+		return -1;
+	return depth < 0 ? -1 : depth + 1;
+    }
+
+    @Test
+    public void bulkLoad() {
+	List<SimpleImmutableEntry<String,Integer>> entries
+	    = new ArrayList<SimpleImmutableEntry<String,Integer>>();
+	for( int size : new int[]{ 0, 1, 8, 9, 13, 14, 100, 5000 } ) {
+	    for( double fill : new double[]{ 0.5, 0.75, 1.0 } ) {
+		entries.clear();
+		for( int i = 0 ; i < size ; i++ )
+		    entries.add( new SimpleImmutableEntry<String,Integer>(
+					 String.format( "w%06d", i ), i + 1 ));
+		Tree t = new Tree(TEST_OUTPUT_DIR + "/bulkLoad");
+		t.bulkLoad( entries.iterator(), fill );
+		assertTrue( checkShape( t.root, true ) >= 0 );
+		t.close();
+
+		t = new Tree(TEST_OUTPUT_DIR + "/bulkLoad");
+		t.readFromFile();
+		assertTrue( checkShape( t.root, true ) >= 0 );
+		Iterator<SimpleImmutableEntry<String,Integer>> iter
+		    = entries.iterator();
+		if( size > 0 )
+		    for( SimpleImmutableEntry<String,Integer> e : t ) {
+			SimpleImmutableEntry<String,Integer> expected
+			    = iter.next();
+			assertEquals( expected.getKey(), e.getKey() );
+			assertEquals( expected.getValue(), e.getValue() );
+		    }
+		assertFalse( iter.hasNext() );
+
+		// The loaded tree has to keep working as a normal tree
+		t.addAll( Arrays.asList( "a", "w000000", "x" ) );
+		assertTrue( t.contains( "a" ) && t.contains( "x" ) );
+		assertTrue( checkShape( t.root, true ) >= 0 );
+		t.close();
+	    }
+	}
+    }
+
+    @Test
+    public void bulkLoadBadInput() {
+	String path = TEST_OUTPUT_DIR + "/bulkLoadBadInput";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	for( int i = 0 ; i < 2000 ; i++ )
+	    t.add( "w" + i );
+	t.topKByPrefix( "w", 3 );
+
+	// A bad fill factor is caught before anything is changed
+	boolean caught = false;
+	try {
+	    t.bulkLoad( new TreeMap<String,Integer>().entrySet().iterator(),
+			1.5 );
+	} catch ( IllegalArgumentException e ) {
+	    caught = true;
+	}
+	assertTrue( caught );
+	assertEquals( 2000, t.size() );
+	assertTrue( t.contains( "w5" ) );
+
+	// Bad entries are only found once the old tree is gone, which leaves
+	// an empty tree that still works
+	List<SimpleImmutableEntry<String,Integer>> entries
+	    = new ArrayList<SimpleImmutableEntry<String,Integer>>();
+	for( int i = 0 ; i < 500 ; i++ )
+	    entries.add( new SimpleImmutableEntry<String,Integer>(
+			     String.format( "x%04d", i ), 1 ) );
+	entries.add( new SimpleImmutableEntry<String,Integer>( "a", 1 ) );
+	caught = false;
+	try {
+	    t.bulkLoad( entries.iterator() );
+	} catch ( IllegalArgumentException e ) {
+	    caught = true;
+	}
+	assertTrue( caught );
+	assertFalse( t.contains( "w5" ) );
+	assertFalse( t.contains( "x0001" ) );
+	assertEquals( 0, t.size() );
+	assertEquals( 0, t.totalFrequency() );
+	assertEquals( 1, t.getNumNodes() );
+	assertTrue( t.topKByPrefix( "w", 3 ).isEmpty() );
+	TreeVerifier.Report report = t.verify();
+	assertTrue( report.toString(), report.isOk() );
+	t.add( "w5" );
+	assertEquals( 1, t.getFrequency( "w5" ) );
+	t.close();
+
+	t = new Tree( path );
+	t.readFromFile();
+	assertEquals( 1, t.size() );
+	assertEquals( 1, t.getFrequency( "w5" ) );
+	t.close();
+    }
+
+    @Test
+    public void concurrentStress() throws InterruptedException {
+	stress( new ConcurrentTree(TEST_OUTPUT_DIR + "/concurrentStress") );
+	// The same again, with nodes being dropped and read back constantly
+	stress( new ConcurrentTree(TEST_OUTPUT_DIR + "/concurrentStress",
+				   64 * PageCache.NODE_HEAP_SIZE, true) );
+	stress( new ConcurrentTree(TEST_OUTPUT_DIR + "/concurrentStress",
+				   NodeFormat.slotted( 256 ), 64 * 512, true) );
+	stress( new ConcurrentTree(TEST_OUTPUT_DIR + "/concurrentStress",
+				   NodeFormat.DEFAULT,
+				   64 * PageCache.NODE_HEAP_SIZE, true, true) );
+    }
+
+    void stress( final ConcurrentTree t ) throws InterruptedException {
+	final int numWriters = 4, numReaders = 4, numWords = 3000;
+	final int[] expected = new int[numWords];
+	final List<List<String>> batches = new ArrayList<List<String>>();
+	java.util.Random rand = new java.util.Random( 42 );
+	for( int w = 0 ; w < numWriters ; w++ )
+	    batches.add( new ArrayList<String>() );
+	for( int i = 0 ; i < numWords ; i++ ) {
+	    // Some words are added by several writers at once
+	    int copies = 1 + rand.nextInt( 5 );
+	    for( int c = 0 ; c < copies ; c++ )
+		batches.get( rand.nextInt( numWriters ) ).add( "w" + i );
+	    expected[i] = copies;
+	}
+	for( List<String> batch : batches )
+	    java.util.Collections.shuffle( batch, rand );
+
+	final java.util.concurrent.atomic.AtomicBoolean done
+	    = new java.util.concurrent.atomic.AtomicBoolean( false );
+	final java.util.concurrent.ConcurrentLinkedQueue<String> errors
+	    = new java.util.concurrent.ConcurrentLinkedQueue<String>();
+	List<Thread> writers = new ArrayList<Thread>();
+	List<Thread> readers = new ArrayList<Thread>();
+	for( final List<String> batch : batches )
+	    writers.add( new Thread() {
+		    public void run() {
+			t.addAll( batch );
+		    }
+		});
+	for( int r = 0 ; r < numReaders ; r++ ) {
+	    final long seed = r;
+	    readers.add( new Thread() {
+		    public void run() {
+			java.util.Random rand = new java.util.Random( seed );
+			int[] seen = new int[numWords];
+			while( ! done.get() ) {
+			    int i = rand.nextInt( numWords );
+			    int f = t.getFrequency( "w" + i );
+			    // Counts can only go up, and never past the end
+			    if( f < seen[i] || f > expected[i] )
+				errors.add( "w" + i + " read as " + f );
+			    seen[i] = f;
+			}
+		    }
+		});
+	}
+	for( Thread th : readers )
+	    th.start();
+	for( Thread th : writers )
+	    th.start();
+	for( Thread th : writers )
+	    th.join();
+	done.set( true );
+	for( Thread th : readers )
+	    th.join();
+
+	assertTrue( errors.toString(), errors.isEmpty() );
+	for( int i = 0 ; i < numWords ; i++ )
+	    assertEquals( "w" + i, expected[i], t.getFrequency( "w" + i ) );
+	assertTrue( checkShape( t.root, true ) >= 0 );
+	t.close();
+
+	Tree reread = new Tree(t.FILEPATH);
+	reread.readFromFile();
+	for( int i = 0 ; i < numWords ; i++ )
+	    assertEquals( expected[i], reread.getFrequency( "w" + i ) );
+	reread.close();
+    }
+
+    @Test
+    public void addBatch() {
+	Tree batched = new Tree(TEST_OUTPUT_DIR + "/addBatch");
+	Tree single  = new Tree(TEST_OUTPUT_DIR + "/addBatchSingle");
+	java.util.Random rand = new java.util.Random( 7 );
+	for( int b = 0 ; b < 20 ; b++ ) {
+	    List<String> batch = new ArrayList<String>();
+	    for( int i = 0 ; i < 500 ; i++ )
+		batch.add( "w" + rand.nextInt( 2000 ) );
+	    batched.addBatch( batch );
+	    single.addAll( batch );
+	}
+	assertTrue( checkShape( batched.root, true ) >= 0 );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = single.iterator();
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1
+	    = batched.iterator();
+	while( iter0.hasNext() && iter1.hasNext() ) {
+	    SimpleImmutableEntry<String,Integer> e0 = iter0.next();
+	    SimpleImmutableEntry<String,Integer> e1 = iter1.next();
+	    assertEquals( e0.getValue(), e1.getValue() );
+	    assertTrue( e0.getKey().equals( e1.getKey() ));
+	}
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+	single.close();
+	batched.close();
+    }
+
+    @Test
+    public void rangeScans() {
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/rangeScans");
+	assertFalse( t.iterator().hasNext() );
+	java.util.TreeMap<String,Integer> expected
+	    = new java.util.TreeMap<String,Integer>();
+	for( int i = 0 ; i < 3000 ; i += 2 ) {
+	    String str = String.format( "w%04d", i );
+	    t.add( str );
+	    expected.put( str, 1 );
+	}
+	String[][] bounds = { { null, null }, { "w0100", "w0200" },
+			      { "w0101", "w0199" }, { null, "w0005" },
+			      { "w2990", null }, { "w0500", "w0500" },
+			      { "a", "b" }, { "x", null }, { "", "w0001" } };
+	for( String[] b : bounds ) {
+	    java.util.SortedMap<String,Integer> sub = expected;
+	    if( b[0] != null )
+		sub = sub.tailMap( b[0] );
+	    if( b[1] != null )
+		sub = sub.headMap( b[1] );
+	    Iterator<String> iter0 = sub.keySet().iterator();
+	    Iterable<SimpleImmutableEntry<String,Integer>> range
+		= t.range( b[0], b[1] );
+	    for( SimpleImmutableEntry<String,Integer> e : range )
+		assertEquals( iter0.next(), e.getKey() );
+	    assertFalse( iter0.hasNext() );
+	}
+	assertEquals( "w0000", t.head( "w0005" ).iterator().next().getKey() );
+	assertEquals( "w2998", t.tail( "w2997" ).iterator().next().getKey() );
+	assertEquals( expected.size(), t.stream().count() );
+	t.close();
+
+	// Concurrent iterators read in batches and pick up where they left off
+	ConcurrentTree c = new ConcurrentTree(TEST_OUTPUT_DIR + "/rangeScans");
+	c.addAll( expected.keySet() );
+	Iterator<String> iter0 = expected.keySet().iterator();
+	for( SimpleImmutableEntry<String,Integer> e : c )
+	    assertEquals( iter0.next(), e.getKey() );
+	assertFalse( iter0.hasNext() );
+	assertEquals( expected.headMap( "w2000" ).size(),
+		      countAll( c.head( "w2000" ) ) );
+	c.close();
+    }
+
+    @Test
+    public void parallelStreams() {
+	Tree t = new Tree(TEST_OUTPUT_DIR + "/parallelStreams");
+	t.addAll( testWords ).addAll( moreTestWords ).addAll( testWords );
+	long total = 0;
+	List<String> inOrder = new ArrayList<String>();
+	for( SimpleImmutableEntry<String,Integer> e : t ) {
+	    total += e.getValue();
+	    inOrder.add( e.getKey() );
+	}
+	assertEquals( total, t.parallelStream()
+		      .mapToLong( SimpleImmutableEntry::getValue ).sum() );
+	assertEquals( inOrder, t.parallelStream()
+		      .map( SimpleImmutableEntry::getKey )
+		      .collect( java.util.stream.Collectors.toList() ) );
+	// Split all the way down to single words
+	List<Spliterator<SimpleImmutableEntry<String,Integer>>> parts
+	    = new ArrayList<
+		Spliterator<SimpleImmutableEntry<String,Integer>>>();
+	parts.add( t.spliterator() );
+	for( int i = 0 ; i < parts.size() ; i++ ) {
+	    Spliterator<SimpleImmutableEntry<String,Integer>> front;
+	    while( ( front = parts.get( i ).trySplit() ) != null )
+		parts.add( i, front );
+	}
+	assertEquals( inOrder.size(), parts.size() );
+	final List<String> keys = new ArrayList<String>();
+	for( Spliterator<SimpleImmutableEntry<String,Integer>> part : parts )
+	    part.forEachRemaining( e -> keys.add( e.getKey() ) );
+	assertEquals( inOrder, keys );
+	t.close();
+    }
+
+    int countAll( Iterable<?> c ) {
+	int n = 0;
+	for( Object o : c )
+	    n++;
+	return n;
+    }
+
+    @Test
+    public void nodeFormats() throws IOException {
+	String path = TEST_OUTPUT_DIR + "/nodeFormats";
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	words.addAll( testWords );
+	NodeFormat[] formats = { new NodeFormat( 4, 64 ),
+				 new NodeFormat( 5, 64, 1024 ),
+				 NodeFormat.forPageSize( 512, 64 ) };
+	for( NodeFormat f : formats ) {
+	    Tree t = new Tree( path, f );
+	    t.addAll( words );
+	    assertTrue( checkShape( t.root, true ) >= 0 );
+	    t.close();
+	    // Every node, and the header before them, takes up a whole slot
+	    assertEquals( 0, new File( path ).length() % f.SLOT_SIZE );
+
+	    // The format is read back from the file
+	    t = new Tree( path );
+	    t.readFromFile();
+	    assertEquals( f, t.getFormat() );
+	    assertTrue( checkShape( t.root, true ) >= 0 );
+	    assertEquals( 2, t.getFrequency( "e0" ) );
+	    assertEquals( 1, t.getFrequency( "Z9" ) );
+	    t.close();
+	    MappedTree m = new MappedTree( path );
+	    assertEquals( 2, m.getFrequency( "q3" ) );
+	    m.close();
+	    new File( path ).delete();
+	}
+	assertTrue( NodeFormat.forPageSize( 4096, 64 ).NODE_SIZE <= 4096 );
+	assertTrue( NodeFormat.forPageSize( 4096, 64 ).ORDER > Node.ORDER );
+
+	// Files from before the header was added still read the same way
+	Node n = new Node(0);
+	n.set( 0, "legacy", 3 );
+	n.writeToFile( path );
+	Tree t = new Tree( path );
+	t.readFromFile();
+	assertEquals( NodeFormat.LEGACY, t.getFormat() );
+	assertEquals( 3, t.getFrequency( "legacy" ) );
+	t.add( "legacy" );
+	t.close();
+	assertEquals( Node.NODE_SIZE, new File( path ).length() );
+	MappedTree m = new MappedTree( path );
+	assertEquals( 4, m.getFrequency( "legacy" ) );
+	m.close();
+    }
+
+    @Test
+    public void slottedPages() throws IOException {
+	String path = TEST_OUTPUT_DIR + "/slottedPages";
+	String fixedPath = TEST_OUTPUT_DIR + "/slottedPagesFixed";
+	NodeFormat f = NodeFormat.slotted( 512 );
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	for( int i = 0 ; i < 2000 ; i++ )
+	    words.add( "prefix" + i );
+	Tree fixed = new Tree( fixedPath );
+	fixed.addAll( words );
+	fixed.close();
+	// Longer than a fixed node allows
+	String longWord = String.format( "%100s", "long" );
+	assertFalse( NodeFormat.DEFAULT.canAdd( longWord ) );
+	words.add( longWord );
+	words.add( "\uD83D\uDE00\uD83D\uDE01" );
+	words.add( "\uD83D\uDE00\uD83D\uDE02" );
+
+	Tree t = new Tree( path, f );
+	t.addAll( words ).addAll( testWords );
+	assertTrue( checkShape( t.root, true ) >= 0 );
+	t.close();
+	assertTrue( new File( path ).length()
+		    < new File( fixedPath ).length() / 2 );
+
+	t = new Tree( path );
+	t.readFromFile();
+	assertEquals( f, t.getFormat() );
+	MappedTree m = new MappedTree( path );
+	for( String str : words ) {
+	    int expected = testWords.contains( str ) ? 2 : 1;
+	    assertEquals( expected, t.getFrequency( str ) );
+	    assertEquals( expected, m.getFrequency( str ) );
+	}
+	assertFalse( m.contains( "prefix" ) || m.contains( "prefix20000" ) );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = t.iterator();
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1 = m.iterator();
+	while( iter0.hasNext() && iter1.hasNext() )
+	    assertEquals( iter0.next().getKey(), iter1.next().getKey() );
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+	m.close();
+	t.close();
+    }
+
+    @Test
+    public void writeAheadLog() throws IOException {
+	String path = TEST_OUTPUT_DIR + "/writeAheadLog";
+	String crashed = TEST_OUTPUT_DIR + "/writeAheadLogCrashed";
+	String unlogged = TEST_OUTPUT_DIR + "/writeAheadLogUnlogged";
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	words.addAll( testWords );
+	// Small enough that the adds go through several checkpoints
+	Tree t = new Tree( path, 16 * Node.NODE_SIZE );
+	t.openLog( 1 );
+	t.addAll( words );
+	// Copying the files while the tree is open is as good as a crash
+	Files.copy( Paths.get( path ), Paths.get( crashed ),
+		    StandardCopyOption.REPLACE_EXISTING );
+	Files.copy( Paths.get( path ), Paths.get( unlogged ),
+		    StandardCopyOption.REPLACE_EXISTING );
+	Files.copy( Paths.get( path + ".wal" ), Paths.get( crashed + ".wal" ),
+		    StandardCopyOption.REPLACE_EXISTING );
+	t.close();
+	assertEquals( 0, new File( path + ".wal" ).length() );
+
+	// Some of the adds only made it to the log
+	Tree u = new Tree( unlogged );
+	u.readFromFile();
+	long total = 0;
+	for( SimpleImmutableEntry<String,Integer> e : u )
+	    total += e.getValue();
+	assertTrue( total < words.size() );
+	u.close();
+
+	// A record cut short by the crash is dropped
+	RandomAccessFile wal = new RandomAccessFile( crashed + ".wal", "rw" );
+	wal.seek( wal.length() );
+	wal.write( new byte[] { 1, 0, 0, 0, 20, 'x' } );
+	wal.close();
+	t = new Tree( crashed, 16 * Node.NODE_SIZE );
+	t.openLog( 4 );
+	assertEquals( 0, new File( crashed + ".wal" ).length() );
+	assertTrue( checkShape( t.root, true ) >= 0 );
+	for( String str : words )
+	    assertEquals( testWords.contains( str ) ? 2 : 1,
+			  t.getFrequency( str ) );
+	assertEquals( words.size(), t.totalFrequency() );
+	t.addAll( testWords );
+	t.close();
+	t = new Tree( crashed );
+	t.readFromFile();
+	assertEquals( 3, t.getFrequency( "e0" ) );
+	assertEquals( 1, t.getFrequency( "Z9" ) );
+	t.close();
+    }
+
+    @Test
+    public void loggedBatch() {
+	String path = TEST_OUTPUT_DIR + "/loggedBatch";
+	new File( path ).delete();
+	new File( path + ".wal" ).delete();
+	// Room for 64 modified nodes and half as many loaded ones
+	Tree t = new Tree( path, 64 * Node.NODE_SIZE, true );
+	t.openLog( 1 );
+	List<String> words = new ArrayList<String>();
+	for( int i = 0 ; i < 20000 ; i++ )
+	    words.add( String.format( "w%06d", i * 7 % 20000 ) );
+	t.addBatch( words );
+	// The batch went through checkpoints instead of keeping every node
+	// it changed, and the cache is back within its budget
+	assertTrue( t.pages.numCached() <= 32 );
+	assertEquals( 0, t.pages.numDirty() );
+	assertEquals( 20000, t.size() );
+	t.close();
+
+	t = new Tree( path, 64 * Node.NODE_SIZE, true );
+	t.readFromFile();
+	assertEquals( 20000, t.size() );
+	for( int i = 0 ; i < 20000 ; i += 997 )
+	    assertEquals( 1, t.getFrequency( String.format( "w%06d", i ) ) );
+	TreeVerifier.Report report = t.verify();
+	assertTrue( report.toString(), report.isOk() );
+	t.close();
+    }
+
+    @Test
+    public void superblock() throws IOException {
+	String path = TEST_OUTPUT_DIR + "/superblock";
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	words.addAll( testWords );
+	Tree t = new Tree( path );
+	t.addAll( words );
+	assertEquals( testWords.size() + moreTestWords.size(), t.size() );
+	assertEquals( words.size(), t.totalFrequency() );
+	int numNodes = t.getNumNodes();
+	t.close();
+
+	// Opening lazily reads nothing but the header and the root
+	t = new Tree( path, PageCache.DEFAULT_CACHE_BYTES, true );
+	t.readFromFile();
+	assertEquals( 1, t.pages.numCached() );
+	assertEquals( numNodes, t.getNumNodes() );
+	assertEquals( testWords.size() + moreTestWords.size(), t.size() );
+	assertEquals( words.size(), t.totalFrequency() );
+	t.add( "e0" ).add( "new" );
+	assertEquals( words.size() + 2, t.totalFrequency() );
+	t.close();
+	MappedTree m = new MappedTree( path );
+	assertEquals( 3, m.getFrequency( "e0" ) );
+	m.close();
+
+	// Files from before the superblock are counted when asked
+	RandomAccessFile file = new RandomAccessFile( path, "rw" );
+	file.seek( 4 );
+	file.writeInt( 2 );
+	file.close();
+	t = new Tree( path );
+	t.readFromFile();
+	assertEquals( numNodes, t.getNumNodes() );
+	assertEquals( testWords.size() + moreTestWords.size() + 1, t.size() );
+	assertEquals( words.size() + 2, t.totalFrequency() );
+	t.close();
+
+	TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+	counts.put( "only", 5 );
+	t = new Tree( path );
+	t.bulkLoad( counts.entrySet().iterator() );
+	t.close();
+	t = new Tree( path );
+	t.readFromFile();
+	assertEquals( 1, t.size() );
+	assertEquals( 5, t.totalFrequency() );
+	assertEquals( 1, t.getNumNodes() );
+	t.close();
+    }
+
+    @Test
+    public void offHeapNodes() throws IOException {
+	String path = TEST_OUTPUT_DIR + "/offHeapNodes";
+	String heapPath = TEST_OUTPUT_DIR + "/offHeapNodesHeap";
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	// Sorted differently by code point and by UTF-16 unit
+	words.add( "\uE000" );
+	words.add( "\uD83D\uDE00" );
+	words.add( "" );
+	words.addAll( testWords );
+	Tree heap = new Tree( heapPath );
+	heap.addAll( words );
+	Tree t = new Tree( path, NodeFormat.DEFAULT,
+			   PageCache.DEFAULT_CACHE_BYTES, false, true );
+	t.addAll( words );
+	assertTrue( t.root.isOffHeap() );
+	assertTrue( checkShape( t.root, true ) >= 0 );
+	Iterator<SimpleImmutableEntry<String,Integer>> iter0 = heap.iterator();
+	Iterator<SimpleImmutableEntry<String,Integer>> iter1 = t.iterator();
+	while( iter0.hasNext() && iter1.hasNext() )
+	    assertEquals( iter0.next(), iter1.next() );
+	assertFalse( iter0.hasNext() || iter1.hasNext() );
+	t.close();
+	heap.close();
+	// The same bytes reach the file either way
+	assertTrue( Arrays.equals( Files.readAllBytes( Paths.get( heapPath ) ),
+				   Files.readAllBytes( Paths.get( path ) ) ) );
+
+	t = new Tree( path, NodeFormat.DEFAULT, 4 * Node.NODE_SIZE, true,
+		      true );
+	t.readFromFile();
+	for( String str : words )
+	    assertEquals( testWords.contains( str ) ? 2 : 1,
+			  t.getFrequency( str ) );
+	assertEquals( 0, t.getFrequency( "e" ) );
+	assertEquals( 0, t.getFrequency( "\uE000\uE000" ) );
+	t.close();
+
+	try {
+	    new PageCache( path, NodeFormat.slotted( 512 ),
+			   PageCache.DEFAULT_CACHE_BYTES, false, true );
+	    assertTrue( false );
+	} catch ( IllegalArgumentException e ) {
+	}
+    }
+
+    @Test
+    public void removal() throws IOException {
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	NodeFormat[] formats = { NodeFormat.DEFAULT, new NodeFormat( 4, 64 ),
+				 NodeFormat.slotted( 512 ) };
+	for( NodeFormat format : formats ) {
+	    String path = TEST_OUTPUT_DIR + "/removal";
+	    new File( path ).delete();
+	    Tree t = new Tree( path, format );
+	    t.addAll( words );
+	    t.addAll( testWords );
+	    TreeMap<String,Integer> expected = new TreeMap<String,Integer>();
+	    for( String str : words )
+		expected.put( str, testWords.contains( str ) ? 2 : 1 );
+
+	    assertEquals( 1, t.decrement( "e0", 1 ) );
+	    expected.put( "e0", 1 );
+	    assertEquals( 0, t.decrement( "f", 5 ) );
+	    expected.remove( "f" );
+	    assertEquals( 0, t.remove( "nothing" ) );
+	    // Every other word, which empties whole nodes along the way
+	    for( int i = 0 ; i < words.size() ; i += 2 ) {
+		String str = words.get(i);
+		if( expected.containsKey( str ) )
+		    assertEquals( (int) expected.remove( str ),
+				  t.remove( str ) );
+	    }
+	    assertTrue( checkShape( t.root, true ) >= 0 );
+	    assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			      expected.entrySet() ), toList( t ) );
+	    assertEquals( expected.size(), t.size() );
+	    t.flush();
+	    long length = new File( path ).length();
+
+	    // Adding words back reuses the freed nodes before growing the file
+	    int used = t.getNumNodes();
+	    t.add( "new0" ).add( "new1" ).add( "new2" );
+	    assertTrue( t.getNumNodes() <= used + 2 );
+	    t.flush();
+	    assertEquals( length, new File( path ).length() );
+	    t.remove( "new0" );
+	    t.remove( "new1" );
+	    t.remove( "new2" );
+
+	    t.compact();
+	    assertTrue( new File( path ).length() < length );
+	    assertEquals( t.getNumNodes(),
+			  format.numSlots( new File( path ).length() ) );
+	    t.close();
+	    t = new Tree( path );
+	    t.readFromFile();
+	    assertTrue( checkShape( t.root, true ) >= 0 );
+	    assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			      expected.entrySet() ), toList( t ) );
+	    for( String str : expected.keySet() )
+		t.remove( str );
+	    assertEquals( 0, t.size() );
+	    assertEquals( 0, t.totalFrequency() );
+	    t.compact();
+	    assertEquals( 1, t.getNumNodes() );
+	    t.close();
+	}
+    }
+
+    @Test
+    public void linkedLeaves() throws IOException {
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	TreeMap<String,Integer> expected = new TreeMap<String,Integer>();
+	for( String str : words )
+	    expected.put( str, 1 );
+	List<Map.Entry<String,Integer>> all
+	    = new ArrayList<Map.Entry<String,Integer>>( expected.entrySet() );
+	NodeFormat[] formats = { NodeFormat.DEFAULT.linked(),
+				 NodeFormat.slotted( 512 ).linked() };
+	for( NodeFormat format : formats ) {
+	    String path = TEST_OUTPUT_DIR + "/linkedLeaves";
+	    new File( path ).delete();
+	    Tree t = new Tree( path, format );
+	    t.addAll( words );
+	    assertTrue( checkShape( t.root, true ) > 0 );
+	    assertEquals( all, toList( t ) );
+	    // Internal nodes only hold separators
+	    for( int i = 0 ; i < t.root.numKeys() ; i++ )
+		assertEquals( Node.SEPARATOR, t.root.getFreq( i ) );
+	    for( String str : words )
+		assertEquals( 1, t.getFrequency( str ) );
+	    assertEquals( 0, t.getFrequency( "c" ) );
+	    // The leaves are chained in order
+	    Node leaf = t.root;
+	    while( ! leaf.isLeaf() )
+		leaf = leaf.getLink( 0 );
+	    int count = 0;
+	    for( ; leaf != null ; leaf = leaf.getNext() )
+		count += leaf.numKeys();
+	    assertEquals( words.size(), count );
+	    assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			      expected.subMap( "C5", "i" ).entrySet() ),
+			  toList( t.range( "C5", "i" ) ) );
+
+	    for( int i = 0 ; i < words.size() ; i += 3 )
+		t.remove( words.get(i) );
+	    t.compact();
+	    t.close();
+	    t = new Tree( path );
+	    t.readFromFile();
+	    assertEquals( format, t.getFormat() );
+	    assertTrue( checkShape( t.root, true ) >= 0 );
+	    assertEquals( expected.size() - ( words.size() + 2 ) / 3,
+			  toList( t ).size() );
+	    t.close();
+
+	    new File( path ).delete();
+	    t = new Tree( path, format );
+	    t.bulkLoad( expected.entrySet().iterator(), 0.8 );
+	    assertEquals( all, toList( t ) );
+	    t.close();
+	    MappedTree mapped = new MappedTree( path );
+	    List<Map.Entry<String,Integer>> seen
+		= new ArrayList<Map.Entry<String,Integer>>();
+	    for( SimpleImmutableEntry<String,Integer> e : mapped )
+		seen.add( e );
+	    assertEquals( all, seen );
+	    for( String str : words )
+		assertEquals( 1, mapped.getFrequency( str ) );
+	    assertEquals( 0, mapped.getFrequency( "c" ) );
+	    mapped.close();
+	}
+    }
+
+    @Test
+    public void asyncLookups() {
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	String path = TEST_OUTPUT_DIR + "/asyncLookups";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	t.addAll( words ).addAll( testWords );
+	t.close();
+
+	// Few enough nodes stay loaded that most lookups have to read some
+	Tree[] trees = { new Tree( path, 4 * Node.NODE_SIZE, true ),
+			 new ConcurrentTree( path, 4 * Node.NODE_SIZE, true ) };
+	for( Tree lazy : trees ) {
+	    lazy.readFromFile();
+	    for( String str : words )
+		assertEquals( testWords.contains( str ) ? 2 : 1,
+			      (int) lazy.getAsync( str ).join() );
+	    assertFalse( lazy.containsAsync( "nothing" ).join() );
+	    assertTrue( lazy.containsAsync( "A0" ).join() );
+	    // Reading ahead doesn't change what the walk sees
+	    assertEquals( new HashSet<String>( words ).size(),
+			  toList( lazy ).size() );
+	    lazy.close();
+	}
+    }
+
+    @Test
+    public void overlappingReads() throws IOException {
+	String path = TEST_OUTPUT_DIR + "/overlappingReads";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	t.addAll( testWords );
+	t.close();
+
+	// Every read waits until another one is under way too, so they only
+	// get anywhere if two of them run at once
+	final CyclicBarrier both = new CyclicBarrier( 2 );
+	final AtomicInteger reads = new AtomicInteger();
+	PageCache pages = new PageCache( path, 16 * Node.NODE_SIZE, true ) {
+		@Override
+		ByteBuffer read( NodeFormat format, int addr )
+		    throws IOException {
+		    reads.incrementAndGet();
+		    try {
+			both.await( 10, TimeUnit.SECONDS );
+		    } catch ( InterruptedException | BrokenBarrierException
+			      | TimeoutException e ) {
+			throw new IOException( "Reads didn't overlap", e );
+		    }
+		    return super.read( format, addr );
+		}
+	    };
+	pages.readFormat();
+	assertTrue( pages.numPages() >= 6 );
+	CompletableFuture<Node> first = pages.getAsync( 0 );
+	// Waits for the read already under way instead of starting another
+	CompletableFuture<Node> again = pages.getAsync( 0 );
+	CompletableFuture<Node> second = pages.getAsync( 1 );
+	assertEquals( 0, first.join().ADDRESS );
+	assertEquals( 1, second.join().ADDRESS );
+	assertSame( first.join(), again.join() );
+	assertEquals( 2, reads.get() );
+
+	// The calling thread reads alongside an I/O thread, and a node that's
+	// loaded comes straight back while both are stuck in their reads
+	CompletableFuture<Node> third = pages.getAsync( 2 );
+	assertSame( first.join(), pages.get( 0 ) );
+	assertEquals( 3, pages.get( 3 ).ADDRESS );
+	assertEquals( 2, third.join().ADDRESS );
+	assertEquals( 4, reads.get() );
+	pages.close();
+    }
+
+    @Test
+    public void outdatedReadAhead() throws Exception {
+	String path = TEST_OUTPUT_DIR + "/outdatedReadAhead";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	t.addAll( testWords );
+	t.close();
+
+	// The read ahead is held up until the file has been cut short under
+	// it, as compact() cuts it
+	final CountDownLatch reading = new CountDownLatch( 1 );
+	final CountDownLatch shrunk = new CountDownLatch( 1 );
+	PageCache pages = new PageCache( path, 16 * Node.NODE_SIZE, true ) {
+		@Override
+		ByteBuffer read( NodeFormat format, int addr )
+		    throws IOException {
+		    reading.countDown();
+		    try {
+			shrunk.await();
+		    } catch ( InterruptedException e ) {
+			throw new IOException( e );
+		    }
+		    return super.read( format, addr );
+		}
+	    };
+	pages.readFormat();
+	assertTrue( pages.numPages() >= 6 );
+	PrintStream err = System.err;
+	ByteArrayOutputStream errors = new ByteArrayOutputStream();
+	System.setErr( new PrintStream( errors, true ) );
+	try {
+	    pages.prefetch( 5 );
+	    reading.await();
+	    pages.shrink( 2 );
+	    shrunk.countDown();
+	    // Closing waits for the read ahead to finish
+	    pages.close();
+	} finally {
+	    System.setErr( err );
+	}
+	// It fails, but there's no one to tell
+	assertEquals( "", errors.toString() );
+    }
+
+    @Test
+    public void hotWordCache() throws InterruptedException {
+	List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	String path = TEST_OUTPUT_DIR + "/hotWordCache";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	HotWordCache cache = new HotWordCache( t, 1024, 0 );
+	for( int i = 0 ; i < 10 ; i++ )
+	    cache.add( "hot" );
+	cache.add( "a0" );
+	// The adds are counted, but haven't reached the tree
+	assertEquals( 10, cache.getFrequency( "hot" ) );
+	assertEquals( 1, cache.getFrequency( "a0" ) );
+	assertEquals( 0, t.getFrequency( "hot" ) );
+	cache.flush();
+	assertEquals( 10, t.getFrequency( "hot" ) );
+	assertEquals( 0, cache.size() );
+
+	// With one word per stripe, the rest are pushed out to the tree
+	cache = new HotWordCache( t, 1, 0 );
+	cache.add( "hot" );
+	for( String str : words )
+	    cache.add( str );
+	assertTrue( cache.size() <= HotWordCache.STRIPES );
+	assertEquals( 11, cache.getFrequency( "hot" ) );
+	assertEquals( 2, cache.getFrequency( "a0" ) );
+	cache.close();
+	assertEquals( words.size() + 1, t.size() );
+	t.close();
+
+	// Threads adding at once, with flushes going on under them and words
+	// pushed out as they go. A plain tree is only reached under the
+	// cache's lock, so it copes too.
+	final List<String> skewed = words.subList( 0, 200 );
+	for( int k = 0 ; k < 2 ; k++ ) {
+	    new File( path ).delete();
+	    Tree target = ( k == 0 ) ? new Tree( path )
+		: new ConcurrentTree( path );
+	    final HotWordCache shared = new HotWordCache( target, 64, 1 );
+	    Thread[] threads = new Thread[4];
+	    for( int i = 0 ; i < threads.length ; i++ ) {
+		threads[i] = new Thread() {
+			public void run() {
+			    for( int j = 0 ; j < 50 ; j++ )
+				for( String str : skewed ) {
+				    shared.add( str );
+				    assertTrue( shared.getFrequency( str )
+						> 0 );
+				}
+			}
+		    };
+		threads[i].start();
+	    }
+	    for( Thread th : threads )
+		th.join();
+	    for( String str : skewed )
+		assertEquals( 200, shared.getFrequency( str ) );
+	    shared.close();
+	    for( String str : skewed )
+		assertEquals( 200, target.getFrequency( str ) );
+	    assertEquals( skewed.size(), target.size() );
+	    target.close();
+	}
+    }
+
+    @Test
+    public void frequencyLimit() {
+	String path = TEST_OUTPUT_DIR + "/frequencyLimit";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	t.add( "a", Integer.MAX_VALUE );
+	t.add( "a", 1 );
+	t.add( "b" );
+	// A frequency that can't go any higher stays where it is
+	assertEquals( Integer.MAX_VALUE, t.getFrequency( "a" ) );
+	t.add( "b", Integer.MAX_VALUE );
+	assertEquals( Integer.MAX_VALUE, t.getFrequency( "b" ) );
+	TreeMap<String,Integer> counts = new TreeMap<String,Integer>();
+	counts.put( "a", 5 );
+	counts.put( "c", 7 );
+	t.addCounts( counts );
+	assertEquals( Integer.MAX_VALUE, t.getFrequency( "a" ) );
+	assertEquals( 7, t.getFrequency( "c" ) );
+	assertEquals( 3, t.size() );
+	assertEquals( 2L * Integer.MAX_VALUE + 7, t.totalFrequency() );
+	TreeVerifier.Report report = t.verify();
+	assertTrue( report.toString(), report.isOk() );
+	assertEquals( t.totalFrequency(), report.totalFrequency );
+
+	// A hot word's count reaches the tree whole
+	HotWordCache cache = new HotWordCache( t, 1024, 0 );
+	cache.add( "a" );
+	assertEquals( Integer.MAX_VALUE, cache.getFrequency( "a" ) );
+	cache.close();
+	assertEquals( Integer.MAX_VALUE, t.getFrequency( "a" ) );
+
+	// So do the adds waiting in a write buffer
+	WriteBuffer buffer = new WriteBuffer( t, 1024 );
+	buffer.add( "a" );
+	buffer.add( "c" );
+	assertEquals( Integer.MAX_VALUE, buffer.getFrequency( "a" ) );
+	assertEquals( 8, buffer.getFrequency( "c" ) );
+	buffer.close();
+	assertEquals( Integer.MAX_VALUE, t.getFrequency( "a" ) );
+	assertEquals( 8, t.getFrequency( "c" ) );
+	t.close();
+    }
+
+    @Test
+    public void metrics() throws Exception {
+	String path = TEST_OUTPUT_DIR + "/metrics";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	assertEquals( null, t.getMetrics() );
+	TreeMetrics m = t.enableMetrics();
+	t.addAll( testWords ).addAll( moreTestWords );
+	for( String str : testWords )
+	    assertTrue( t.contains( str ) );
+	t.flush();
+
+	TreeMetrics.Snapshot s = m.snapshot();
+	assertEquals( testWords.size() + moreTestWords.size(), s.adds() );
+	assertEquals( testWords.size(), s.lookups() );
+	assertTrue( TreeMetrics.percentile( s.addLatencies, 0.99 ) > 0 );
+	// Leaves split more often than the nodes above them
+	assertTrue( s.splits[0] > s.splits[1] && s.splits[1] > 0 );
+	assertEquals( t.getNumNodes(), s.nodeWrites );
+	assertEquals( t.getNumNodes() * Node.NODE_SIZE + NodeFormat.HEADER_SIZE,
+		      s.bytesWritten );
+	assertEquals( checkShape( t.root, true ) + 1, s.height );
+	assertTrue( s.fillFactor > 0.5 && s.fillFactor <= 1 );
+
+	// The same counters are there through JMX
+	m.register();
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	ObjectName name = new ObjectName( "BTree:type=TreeMetrics,file="
+					  + ObjectName.quote( path ) );
+	assertEquals( s.adds(), server.getAttribute( name, "Adds" ) );
+	assertEquals( s.height, server.getAttribute( name, "Height" ) );
+	m.reset();
+	assertEquals( 0L, server.getAttribute( name, "Adds" ) );
+	t.close();
+	assertFalse( server.isRegistered( name ) );
+    }
+
+    @Test
+    public void writeBuffer() throws InterruptedException {
+	final List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	String path = TEST_OUTPUT_DIR + "/writeBuffer";
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	WriteBuffer buffer = new WriteBuffer( t, 16 );
+	for( int round = 1 ; round <= 3 ; round++ ) {
+	    for( String str : words )
+		buffer.add( str );
+	    // Some of the adds are still in tables, but none go missing
+	    for( String str : words )
+		assertEquals( round, buffer.getFrequency( str ) );
+	}
+	assertFalse( buffer.contains( "nothing" ) );
+	buffer.close();
+	assertEquals( 0, buffer.numFrozen() );
+	for( String str : words )
+	    assertEquals( 3, t.getFrequency( str ) );
+	assertEquals( 3 * words.size(), t.totalFrequency() );
+	t.close();
+
+	// Lookups never see a count go down while merges run under them
+	new File( path ).delete();
+	ConcurrentTree ct = new ConcurrentTree( path );
+	final WriteBuffer shared = new WriteBuffer( ct, 32 );
+	Thread[] threads = new Thread[4];
+	for( int i = 0 ; i < threads.length ; i++ ) {
+	    threads[i] = new Thread() {
+		    public void run() {
+			int[] seen = new int[words.size()];
+			for( int round = 0 ; round < 20 ; round++ )
+			    for( int j = 0 ; j < words.size() ; j++ ) {
+				shared.add( words.get(j) );
+				int freq = shared.getFrequency( words.get(j) );
+				assertTrue( freq > seen[j] );
+				seen[j] = freq;
+			    }
+		    }
+		};
+	    threads[i].start();
+	}
+	for( Thread th : threads )
+	    th.join();
+	shared.close();
+	for( String str : words )
+	    assertEquals( 80, ct.getFrequency( str ) );
+	ct.close();
+    }
+
+    @Test
+    public void shardedTree() throws InterruptedException {
+	final List<String> words = new ArrayList<String>( testWords );
+	words.addAll( moreTestWords );
+	TreeMap<String,Integer> expected = new TreeMap<String,Integer>();
+	for( String str : words )
+	    expected.put( str, 4 );
+	String hashed = TEST_OUTPUT_DIR + "/shardedTree";
+	String ranged = TEST_OUTPUT_DIR + "/shardedRanges";
+	for( int i = 0 ; i < 4 ; i++ ) {
+	    new File( hashed + "." + i ).delete();
+	    new File( ranged + "." + i ).delete();
+	}
+	ShardedTree[] trees = {
+	    new ShardedTree( hashed, 4 ),
+	    new ShardedTree( ranged, new String[]{ "F", "a", "e" } ) };
+	for( final ShardedTree st : trees ) {
+	    // Several threads adding at once
+	    Thread[] threads = new Thread[4];
+	    for( int i = 0 ; i < threads.length ; i++ ) {
+		threads[i] = new Thread() {
+			public void run() {
+			    st.addAll( words );
+			}
+		    };
+		threads[i].start();
+	    }
+	    for( Thread th : threads )
+		th.join();
+	    st.flush();
+	    for( String str : words )
+		assertEquals( 4, st.getFrequency( str ) );
+	    assertEquals( words.size(), st.size() );
+	    for( int i = 0 ; i < st.numShards() ; i++ )
+		assertTrue( st.getShard(i).size() > 0 );
+	    assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			      expected.entrySet() ), toList( st ) );
+	    assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			      expected.subMap( "C5", "i" ).entrySet() ),
+			  toList( st.range( "C5", "i" ) ) );
+	    st.add( "new" );
+	    st.close();
+	}
+
+	// Closing applies the adds still queued, and the files reopen
+	ShardedTree st = new ShardedTree( hashed, 4 );
+	assertEquals( 1, st.getFrequency( "new" ) );
+	assertEquals( words.size() + 1, st.size() );
+	st.close();
+
+	// A flush waits for the caller's own adds, even with other threads
+	// adding and flushing at the same time
+	String flushed = TEST_OUTPUT_DIR + "/shardedFlush";
+	for( int i = 0 ; i < 4 ; i++ )
+	    new File( flushed + "." + i ).delete();
+	final ShardedTree shared = new ShardedTree( flushed, 4 );
+	final AtomicInteger missing = new AtomicInteger();
+	Thread[] threads = new Thread[4];
+	for( int i = 0 ; i < threads.length ; i++ ) {
+	    final int id = i;
+	    threads[i] = new Thread() {
+		    public void run() {
+			for( int j = 0 ; j < 500 ; j++ ) {
+			    String str = "t" + id + "w" + j;
+			    shared.add( str );
+			    shared.flush();
+			    if( shared.getFrequency( str ) != 1 )
+				missing.incrementAndGet();
+			}
+		    }
+		};
+	    threads[i].start();
+	}
+	for( Thread th : threads )
+	    th.join();
+	assertEquals( 0, missing.get() );
+	assertEquals( 2000, shared.size() );
+	shared.close();
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+	TreeMap<String,Integer> expected = new TreeMap<String,Integer>();
+	for( int i = 0 ; i < 20000 ; i++ )
+	    expected.put( String.format( "word%07d", i * 7 ), i % 100 + 1 );
+	String path = TEST_OUTPUT_DIR + "/snapshot";
+	String snap = path + ".snap";
+	new File( path ).delete();
+	Tree t = new Tree( path, NodeFormat.slotted( 4096 ) );
+	t.addCounts( expected );
+	t.exportSnapshot( snap );
+	t.close();
+	assertEquals( expected.size(), Snapshot.verify( snap ) );
+	assertTrue( new File( snap ).length() * 4 < new File( path ).length() );
+
+	// It loads into a tree of another format
+	String copy = path + ".copy";
+	new File( copy ).delete();
+	t = new Tree( copy );
+	t.importSnapshot( snap );
+	assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			  expected.entrySet() ), toList( t ) );
+	assertEquals( expected.size(), t.size() );
+	t.close();
+
+	// A damaged block is noticed, and so is a snapshot cut short
+	byte[] bytes = Files.readAllBytes( Paths.get( snap ) );
+	bytes[bytes.length / 2] ^= 1;
+	Files.write( Paths.get( snap + ".bad" ), bytes );
+	Files.write( Paths.get( snap + ".short" ),
+		     Arrays.copyOf( Files.readAllBytes( Paths.get( snap ) ),
+				    bytes.length - 6 ) );
+	for( String bad : new String[]{ snap + ".bad", snap + ".short" } ) {
+	    boolean caught = false;
+	    try {
+		Snapshot.verify( bad );
+	    } catch ( IOException e ) {
+		caught = true;
+	    }
+	    assertTrue( caught );
+	    // The tree it was to replace is still there
+	    t = new Tree( copy );
+	    t.readFromFile();
+	    caught = false;
+	    try {
+		t.importSnapshot( bad );
+	    } catch ( IOException e ) {
+		caught = true;
+	    }
+	    assertTrue( caught );
+	    assertEquals( expected.size(), t.size() );
+	    assertEquals( expected.get( "word0000700" ),
+			  (Integer) t.getFrequency( "word0000700" ) );
+	    t.close();
+	}
+
+	// Nor does a snapshot with a frequency that can't have been written
+	Snapshot.Writer w = new Snapshot.Writer( snap + ".zero" );
+	w.add( "a", 1 );
+	w.close();
+	bytes = Files.readAllBytes( Paths.get( snap + ".zero" ) );
+	// The frequency is the last byte of the first block's body, just
+	// before its checksum, which is then made to match
+	int end = 4 + 8 + 4;
+	bytes[end - 1] = 0;
+	CRC32C crc = new CRC32C();
+	crc.update( bytes, 4, 4 );
+	crc.update( bytes, 12, end - 12 );
+	ByteBuffer.wrap( bytes ).putInt( end, (int) crc.getValue() );
+	Files.write( Paths.get( snap + ".zero" ), bytes );
+	boolean caught = false;
+	try {
+	    Snapshot.verify( snap + ".zero" );
+	} catch ( IOException e ) {
+	    caught = true;
+	}
+	assertTrue( caught );
+    }
+
+    @Test
+    public void verify() throws IOException {
+	List<String> words = testWords;
+	String path = TEST_OUTPUT_DIR + "/verify";
+	for( NodeFormat f : new NodeFormat[]{ NodeFormat.DEFAULT.checksummed(),
+					      NodeFormat.slotted( 256 )
+					      .linked().checksummed() } ) {
+	    new File( path ).delete();
+	    Tree t = new Tree( path, f );
+	    for( int i = 0 ; i < 20 ; i++ )
+		for( String str : words )
+		    t.add( str + i );
+	    for( String str : words )
+		t.remove( str + 3 );
+	    TreeVerifier.Report report = t.verify();
+	    assertTrue( report.toString(), report.isOk() );
+	    assertEquals( t.size(), report.keys );
+	    assertEquals( t.totalFrequency(), report.totalFrequency );
+	    assertEquals( t.getNumNodes(), report.nodes );
+	    assertEquals( 0, report.unreachable );
+	    int leaf = t.root.getLinkAddress( 0 );
+	    t.close();
+
+	    // A damaged page is caught by its checksum, when it's verified and
+	    // when it's read
+	    RandomAccessFile file = new RandomAccessFile( path, "rw" );
+	    file.seek( f.offset( leaf ) + 10 );
+	    int b = file.read();
+	    file.seek( f.offset( leaf ) + 10 );
+	    file.write( b ^ 0x20 );
+	    file.close();
+	    report = TreeVerifier.verify( path, 2 );
+	    assertFalse( report.isOk() );
+	    assertEquals( 1, report.badChecksums );
+	    t = new Tree( path, f );
+	    t.readFromFile();
+	    boolean caught = false;
+	    try {
+		t.root.getLink( 0 );
+	    } catch ( UncheckedIOException e ) {
+		caught = true;
+	    }
+	    assertTrue( caught );
+	    t.close();
+	}
+
+	// Without checksums, a link back up the tree is still caught rather
+	// than followed round
+	new File( path ).delete();
+	Tree t = new Tree( path );
+	t.addAll( words );
+	t.root.getLink( 1 ).setLinkAddress( 0, t.root.ADDRESS );
+	t.pages.markDirty( t.root.getLink( 1 ) );
+	TreeVerifier.Report report = t.verify();
+	assertFalse( report.isOk() );
+	assertEquals( 0, report.badChecksums );
+	t.close();
+    }
+
+    @Test
+    public void prefixQueries() throws InterruptedException {
+	String path = TEST_OUTPUT_DIR + "/prefixQueries";
+	new File( path ).delete();
+	final ConcurrentTree t = new ConcurrentTree( path );
+	final TreeMap<String,Integer> expected = new TreeMap<String,Integer>();
+	for( int i = 0 ; i < 3000 ; i++ ) {
+	    String str = "w" + i;
+	    int count = i * 37 % 101 + 1;
+	    t.add( str, count );
+	    expected.put( str, count );
+	}
+	assertEquals( new ArrayList<Map.Entry<String,Integer>>(
+			  expected.subMap( "w12", "w13" ).entrySet() ),
+		      toList( t.prefixScan( "w12" ) ) );
+	assertEquals( expected.size(), toList( t.prefixScan( "" ) ).size() );
+	assertTrue( toList( t.prefixScan( "x" ) ).isEmpty() );
+	assertEquals( "b", Tree.prefixEnd( "a\uffff" ) );
+
+	String[] prefixes = { "", "w", "w1", "w12", "w123", "w9999" };
+	for( String p : prefixes )
+	    assertEquals( topK( expected, p, 10 ), t.topKByPrefix( p, 10 ) );
+	// The kept answers follow adds, including a word that joins the best
+	t.add( "w1234", 500 );
+	expected.put( "w1234", expected.get( "w1234" ) + 500 );
+	t.add( "w2", 3 );
+	expected.put( "w2", expected.get( "w2" ) + 3 );
+	// ...and removals
+	String top = t.topKByPrefix( "w", 1 ).get( 0 ).getKey();
+	t.remove( top );
+	expected.remove( top );
+	for( String p : prefixes )
+	    assertEquals( topK( expected, p, 10 ), t.topKByPrefix( p, 10 ) );
+	assertEquals( topK( expected, "w1", 40 ), t.topKByPrefix( "w1", 40 ) );
+
+	// Adds from several threads while the answers are kept
+	Thread[] threads = new Thread[4];
+	for( int i = 0 ; i < threads.length ; i++ ) {
+	    final int first = i;
+	    threads[i] = new Thread() {
+		    public void run() {
+			for( int j = first ; j < 3000 ; j += threads.length ) {
+			    t.add( "w" + j, j % 7 + 1 );
+			    t.topKByPrefix( "w" + ( j % 10 ), 5 );
+			}
+		    }
+		};
+	    threads[i].start();
+	}
+	for( Thread th : threads )
+	    th.join();
+	for( int j = 0 ; j < 3000 ; j++ )
+	    if( expected.containsKey( "w" + j ) )
+		expected.put( "w" + j, expected.get( "w" + j ) + j % 7 + 1 );
+	    else
+		expected.put( "w" + j, j % 7 + 1 );
+	for( String p : prefixes )
+	    assertEquals( topK( expected, p, 10 ), t.topKByPrefix( p, 10 ) );
+	t.close();
+    }
+
+    // The k most frequent words starting with prefix, worked out the long way
+    List<SimpleImmutableEntry<String,Integer>> topK(
+	TreeMap<String,Integer> words, String prefix, int k ) {
+	List<SimpleImmutableEntry<String,Integer>> all
+	    = new ArrayList<SimpleImmutableEntry<String,Integer>>();
+	for( Map.Entry<String,Integer> e : words.entrySet() )
+	    if( e.getKey().startsWith( prefix ) )
+		all.add( new SimpleImmutableEntry<String,Integer>( e ) );
+	all.sort( new Comparator<SimpleImmutableEntry<String,Integer>>() {
+		public int compare( SimpleImmutableEntry<String,Integer> a,
+				    SimpleImmutableEntry<String,Integer> b ) {
+		    if( ! a.getValue().equals( b.getValue() ) )
+			return b.getValue() - a.getValue();
+		    return a.getKey().compareTo( b.getKey() );
+		}
+	    } );
+	return all.subList( 0, Math.min( k, all.size() ) );
+    }
+
+    // The words of a tree, or part of one, as plain entries
+    List<Map.Entry<String,Integer>> toList(
+	Iterable<SimpleImmutableEntry<String,Integer>> t ) {
+	List<Map.Entry<String,Integer>> list
+	    = new ArrayList<Map.Entry<String,Integer>>();
+	for( SimpleImmutableEntry<String,Integer> e : t )
+	    list.add( e );
+	return list;
+    }
+
+    List<String> testWords = Arrays.asList(
+	// These should make a node of the tree get split into a node with
+	// "e"s and another with "g"s by adding an element on the right:
+	"e0","e1","e2","e3","f", "g0","g1","g2","g3",
+	// These should make the "e" node split by adding to the left, where the
+	// old middle element gets added to the left part of the parent node:
+	"b", "a3","a2","a1","a0",
+	// These should make the "a" node split by adding to the middle, where
+	// the old middle gets added to a middle part of the parent node:
+	"c0","c1","c2","c3","d",
+	// These should fill out the tree until the root node is the fullest
+	// it can be before getting split:
+	"h","i0","i1","i2","i3","j","k0","k1","k2","k3","l","m0","m1","m2",
+	"m3","n","o0","o1","o2","o3","p","q0","q1","q2","q3");
+
+
+    List<String> moreTestWords = Arrays.asList( "i4","i5","i6","i7","i8","A0","A1","こんにちは世界！","IWantedToTestForA64ByteWordSoHereIsOneSuchWordThatIAmTestingNow!","A2","A3","A4","A5","A6","A7","A8","A9","B0","B1","B2","B3","B4","B5","B6","B7","B8","B9","C0","C1","C2","C3","C4","C5","C6","C7","C8","C9","D0","D1","D2","D3","D4","D5","D6","D7","D8","D9","E0","E1","E2","E3","E4","E5","E6","E7","E8","E9","F0","F1","F2","F3","F4","F5","F6","F7","F8","F9","G0","G1","G2","G3","G4","G5","G6","G7","G8","G9","H0","H1","H2","H3","H4","H5","H6","H7","H8","H9","I0","I1","I2","I3","I4","I5","I6","I7","I8","I9","J0","J1","J2","J3","J4","J5","J6","J7","J8","J9","K0","K1","K2","K3","K4","K5","K6","K7","K8","K9","L0","L1","L2","L3","L4","L5","L6","L7","L8","L9","M0","M1","M2","M3","M4","M5","M6","M7","M8","M9","N0","N1","N2","N3","N4","N5","N6","N7","N8","N9","O0","O1","O2","O3","O4","O5","O6","O7","O8","O9","P0","P1","P2","P3","P4","P5","P6","P7","P8","P9","Q0","Q1","Q2","Q3","Q4","Q5","Q6","Q7","Q8","Q9","R0","R1","R2","R3","R4","R5","R6","R7","R8","R9","S0","S1","S2","S3","S4","S5","S6","S7","S8","S9","T0","T1","T2","T3","T4","T5","T6","T7","T8","T9","U0","U1","U2","U3","U4","U5","U6","U7","U8","U9","V0","V1","V2","V3","V4","V5","V6","V7","V8","V9","W0","W1","W2","W3","W4","W5","W6","W7","W8","W9","X0","X1","X2","X3","X4","X5","X6","X7","X8","X9","Y0","Y1","Y2","Y3","Y4","Y5","Y6","Y7","Y8","Y9","Z0","Z1","Z2","Z3","Z4","Z5","Z6","Z7","Z8","Z9");
+
+}